@@ -14,7 +14,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.sql.*;
-import java.util.HashMap;
 import java.util.Properties;
 import java.util.concurrent.Callable;
 
@@ -52,15 +51,8 @@ public class Db implements Cloneable, AutoCloseable {
     public void close() {
         synchronized (connectionString) {
             if (connection != null) {
-                for (PreparedStatement s : cachedStatements.values()) {
-                    try {
-                        s.close();
-                    } catch (SQLException e) {
-                        // connection is closed, we ignore it
-//                        log.d("failure closing statemment: " + e);
-                    }
-                }
-                cachedStatements.clear();
+                if (statementCache != null)
+                    statementCache.clear();
                 try {
                     connection.close();
                 } catch (SQLException e) {
@@ -76,6 +68,22 @@ public class Db implements Cloneable, AutoCloseable {
         return connection == null;
     }
 
+    /**
+     * Check that the connection is alive. Depending on the driver, it could take a round trip to the database.
+     *
+     * @param timeoutSeconds is max time to wait for the answer, 0 to wait forever
+     *
+     * @return true if the connection could be used
+     */
+    public boolean isValid(int timeoutSeconds) {
+        Connection c = connection;
+        try {
+            return c != null && c.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
         close();
@@ -164,6 +172,9 @@ public class Db implements Cloneable, AutoCloseable {
         if (System.currentTimeMillis() - prevResetTime < 2000)
             return false;
         prevResetTime = System.currentTimeMillis();
+        // statements of the old connection could not be used anymore
+        if (statementCache != null)
+            statementCache.clear();
         try {
             if (this.properties != null)
                 this.connection = DriverManager.getConnection(connectionString, properties);
@@ -209,6 +220,13 @@ public class Db implements Cloneable, AutoCloseable {
     }
 
 
+    /**
+     * @return true if {@link #transaction(Callable)} is running on this connection
+     */
+    public boolean isInTransaction() {
+        return isInTransaction;
+    }
+
     public <T> T transaction(Callable<T> worker) throws Exception {
         synchronized (connection) {
             try {
@@ -305,22 +323,39 @@ public class Db implements Cloneable, AutoCloseable {
         createDB(migrationsResource);
     }
 
-    private HashMap<String, PreparedStatement> cachedStatements = new HashMap<>();
+    private StatementCache statementCache = null;
+
+    /**
+     * Cache prepared statements of this connection: closed statement returns to the cache to be reused by the next
+     * {@link #statement(String, Object...)} with the same SQL.
+     *
+     * @param capacity is max number of cached statements, least recently used are closed first
+     * @param stats is counters of cache hits, misses and evictions to update
+     */
+    void enableStatementCache(int capacity, StatementCache.Stats stats) {
+        statementCache = new StatementCache(capacity, stats);
+    }
+
+    /**
+     * @return number of cached prepared statements
+     */
+    public int getCachedStatementsCount() {
+        return statementCache == null ? 0 : statementCache.size();
+    }
+
+    private PreparedStatement prepare(String sqlText, boolean returningKeys) throws SQLException {
+        if (statementCache != null)
+            return statementCache.statement(connection, sqlText, returningKeys);
+        synchronized (connection) {
+            return returningKeys ?
+                    connection.prepareStatement(sqlText, Statement.RETURN_GENERATED_KEYS) :
+                    connection.prepareStatement(sqlText);
+        }
+    }
 
     public PreparedStatement statement(String sqlText, Object... args) throws SQLException {
         try {
-//        log.d("statement: |" + sqlText + "|  " + Arrays.toString(args));
-//        System.out.println("statement: |" + sqlText + "|  " + Arrays.toString(args));
-//        PreparedStatement statement = cachedStatements.get(sqlText);
-            PreparedStatement statement = null;
-//        if (statement == null) {
-            synchronized (connection) {
-                statement = connection.prepareStatement(sqlText);
-            }
-//            cachedStatements.put(sqlText, statement);
-//        } else {
-//            statement.clearParameters();
-//        }
+            PreparedStatement statement = prepare(sqlText, false);
             int index = 1;
             for (Object arg : args) {
                 statement.setObject(index, arg);
@@ -335,10 +370,7 @@ public class Db implements Cloneable, AutoCloseable {
 
     public PreparedStatement statementReturningKeys(String sqlText, Object... args) throws SQLException {
         try {
-            PreparedStatement statement = null;
-            synchronized (connection) {
-                statement = connection.prepareStatement(sqlText, Statement.RETURN_GENERATED_KEYS);
-            }
+            PreparedStatement statement = prepare(sqlText, true);
             int index = 1;
             for (Object arg : args) {
                 statement.setObject(index, arg);
@@ -360,8 +392,7 @@ public class Db implements Cloneable, AutoCloseable {
             if (rs.next()) {
                 return rs;
             } else {
-                if (sqlite)
-                    s.close();
+                s.close();
                 return null;
             }
         } catch (SQLException se) {
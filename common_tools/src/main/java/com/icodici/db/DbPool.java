@@ -1,28 +1,83 @@
 package com.icodici.db;
 
+import net.sergeych.tools.Binder;
+
 import java.sql.SQLException;
+import java.time.Duration;
 import java.util.Properties;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Pool of {@link PooledDb} connections.
+ * <p>
+ * One thread - one connection: {@link #db()} called again by the thread that holds a connection returns the same
+ * one, so transactions and all the calls made inside them use the same connection. The connection is bound to the
+ * thread only while it is held, and returns to the pool when the outermost holder closes it.
+ * <p>
+ * Connections are created on demand up to the max number. When all are in use, {@link #db()} waits for a free one
+ * up to the acquire timeout. Idle connections are closed after the max idle time, all connections after the max
+ * lifetime, and connections that were idle for a while are validated before they are handed out.
+ */
 public class DbPool implements AutoCloseable {
 
     private final String connectionString;
     private final Properties properties;
     private final int maximumConnections;
-    private volatile int total = 0;
+    private volatile int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    private final StatementCache.Stats statementCacheStats = new StatementCache.Stats();
+
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+    public static final Duration DEFAULT_ACQUIRE_TIMEOUT = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_MAX_IDLE_TIME = Duration.ofMinutes(10);
+    public static final Duration DEFAULT_MAX_LIFETIME = Duration.ofMinutes(30);
+    public static final Duration DEFAULT_VALIDATION_INTERVAL = Duration.ofSeconds(1);
+
+    private volatile long acquireTimeoutNanos = DEFAULT_ACQUIRE_TIMEOUT.toNanos();
+    private volatile long maxIdleNanos = DEFAULT_MAX_IDLE_TIME.toNanos();
+    private volatile long maxLifetimeNanos = DEFAULT_MAX_LIFETIME.toNanos();
+    private volatile long validationIntervalNanos = DEFAULT_VALIDATION_INTERVAL.toNanos();
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    // waiting threads check for the room to create a connection that often, as destroyed ones do not wake them up
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // bounds of the acquire time histogram
+    private static final long[] ACQUIRE_BUCKETS_MICROS = {100, 1000, 10_000, 100_000, 1_000_000};
+    private static final String[] ACQUIRE_BUCKETS_NAMES = {"100us", "1ms", "10ms", "100ms", "1s", "more"};
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evictedIdle = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final LongAccumulator maxAcquireNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder[] acquireHistogram = new LongAdder[ACQUIRE_BUCKETS_NAMES.length];
 
     /**
-     * This the per-thread cache of the DB connection.
-     * TODO: should the connection be blindly taken from this cache?
-     * Or only if it is not used already in some other transaction?
+     * This the per-thread binding of the held DB connection.
      */
     private ThreadLocal<PooledDb> threadDb = new ThreadLocal<>();
 
+    // most recently used first
+    private LinkedBlockingDeque<PooledDb> pool = new LinkedBlockingDeque<>();
+
     @Override
     public void close() throws Exception {
-        threadDb.set(null);
-        while( !pool.isEmpty())
-            pool.take().destroy();
+        closed = true;
+        threadDb.remove();
+        PooledDb db;
+        while ((db = pool.pollFirst()) != null)
+            destroy(db);
     }
 
     public interface DbConsumer<R> {
@@ -37,44 +92,251 @@ public class DbPool implements AutoCloseable {
         this.connectionString = connectionString;
         this.properties = properties;
         this.maximumConnections = maxConnections;
+        for (int i = 0; i < acquireHistogram.length; i++)
+            acquireHistogram[i] = new LongAdder();
     }
 
-    private LinkedBlockingQueue<PooledDb> pool = new LinkedBlockingQueue<>();
-
+    /**
+     * Get the connection of the calling thread, taking it from the pool if the thread holds none. Each call should be
+     * paired with {@link PooledDb#close()}.
+     *
+     * @return connection
+     *
+     * @throws SQLException if no connection became free during the acquire timeout, or it could not be created
+     */
     public PooledDb db() throws SQLException {
-        try {
-            PooledDb db = threadDb.get();
-            // One thread - one connection, e.g. transactions work with the same db and
-            // all other calls in the same thread use same pooled instance
-            if( db != null ) {
-                // TODO: uncomment the next assert line to spot every transaction-inside-transaction.
-                // This will definitely break some unit tests until the code is change to never cause
-                // transaction-inside-transaction DB access!
-                // assert !db.isInTransaction;
-                return db;
-            }
+        PooledDb db = threadDb.get();
+        // One thread - one connection, e.g. transactions work with the same db and
+        // all other calls in the same thread use same pooled instance
+        if (db != null) {
+            db.holds++;
+            return db;
+        }
+        db = acquire();
+        db.holds = 1;
+        threadDb.set(db);
+        return db;
+    }
 
-            PooledDb pdb = total >= maximumConnections ? pool.take() : pool.poll();
-            if( pdb != null ) {
-//                System.out.println("take left " + pool.size() + " total " + total + " cached " + cached);
-            } else {
-                pdb = new PooledDb(this, connectionString, properties);
-                total++;
-//                System.out.println("new  left " + pool.size() + " total " + total + " cached " + cached);
+    private PooledDb acquire() throws SQLException {
+        long started = System.nanoTime();
+        long deadline = started + acquireTimeoutNanos;
+        boolean isWaiting = false;
+        try {
+            while (true) {
+                if (closed)
+                    throw new SQLException("pool is closed");
+                PooledDb db = pool.pollFirst();
+                if (db == null && total.get() < maximumConnections) {
+                    db = create();
+                    if (db != null) {
+                        registerAcquire(System.nanoTime() - started);
+                        return db;
+                    }
+                }
+                if (db == null) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        timeouts.increment();
+                        throw new SQLException("no free connection in " +
+                                TimeUnit.NANOSECONDS.toMillis(acquireTimeoutNanos) + " ms: " + total.get() +
+                                " connections in use, " + waiting.get() + " threads waiting");
+                    }
+                    if (!isWaiting) {
+                        isWaiting = true;
+                        waiting.incrementAndGet();
+                    }
+                    db = pool.pollFirst(Math.min(left, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+                }
+                if (db != null && usable(db)) {
+                    registerAcquire(System.nanoTime() - started);
+                    return db;
+                }
             }
-            threadDb.set(pdb);
-            return pdb;
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new SQLException("Pooled operation interrupted");
+        } finally {
+            if (isWaiting)
+                waiting.decrementAndGet();
+        }
+    }
+
+    private PooledDb create() throws SQLException {
+        int n;
+        do {
+            n = total.get();
+            if (n >= maximumConnections)
+                return null;
+        } while (!total.compareAndSet(n, n + 1));
+        try {
+            PooledDb pdb = new PooledDb(this, connectionString, properties);
+            if (statementCacheSize > 0)
+                pdb.enableStatementCache(statementCacheSize, statementCacheStats);
+            created.increment();
+            return pdb;
         } catch (Exception e) {
-            throw new SQLException("Pooled operation interrupted: " + e.getMessage());
+            total.decrementAndGet();
+            throw new SQLException("Pooled operation interrupted: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Check the connection taken from the pool, destroying it if it can't be used anymore. New connections are not
+     * checked.
+     */
+    private boolean usable(PooledDb db) {
+        long now = System.nanoTime();
+        if (db.isClosed()) {
+            invalid.increment();
+        } else if (now - db.createdAt > maxLifetimeNanos) {
+            expired.increment();
+        } else if (now - db.releasedAt > maxIdleNanos) {
+            evictedIdle.increment();
+        } else if (now - db.releasedAt > validationIntervalNanos && !db.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+            invalid.increment();
+        } else {
+            return true;
+        }
+        destroy(db);
+        return false;
+    }
+
+    private void registerAcquire(long nanos) {
+        acquired.increment();
+        acquireNanos.add(nanos);
+        maxAcquireNanos.accumulate(nanos);
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int i = 0;
+        while (i < ACQUIRE_BUCKETS_MICROS.length && micros >= ACQUIRE_BUCKETS_MICROS[i])
+            i++;
+        acquireHistogram[i].increment();
+    }
+
+    private void destroy(PooledDb db) {
+        total.decrementAndGet();
+        db.destroy();
+    }
+
+    /**
+     * Check if the calling thread runs a transaction, so its updates should be done with {@link #db()} to be part of
+     * it. Does not take a connection from the pool.
+     *
+     * @return true if the calling thread has a connection in transaction
+     */
+    public boolean isInTransaction() {
+        PooledDb db = threadDb.get();
+        return db != null && db.isInTransaction();
+    }
+
+    /**
+     * Set max number of prepared statements cached by each connection created after the call. Zero disables the cache.
+     *
+     * @param statementCacheSize is max number of statements per connection
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * @return {@link Binder} with hits, misses, evictions and hit rate of prepared statement caches of all connections
+     */
+    public Binder getStatementCacheStats() {
+        return statementCacheStats.toBinder().putAll("size", statementCacheSize);
+    }
+
+    /**
+     * Set max time {@link #db()} waits for a free connection when all are in use.
+     *
+     * @param timeout is max time to wait
+     */
+    public void setAcquireTimeout(Duration timeout) {
+        acquireTimeoutNanos = timeout.toNanos();
+    }
+
+    /**
+     * Set max time an unused connection stays in the pool before it is closed.
+     *
+     * @param maxIdleTime is max time a connection stays idle
+     */
+    public void setMaxIdleTime(Duration maxIdleTime) {
+        maxIdleNanos = maxIdleTime.toNanos();
+    }
+
+    /**
+     * Set max time a connection is used, after which it is closed once returned to the pool, and a new one is created
+     * if needed.
+     *
+     * @param maxLifetime is max age of a connection
+     */
+    public void setMaxLifetime(Duration maxLifetime) {
+        maxLifetimeNanos = maxLifetime.toNanos();
+    }
+
+    /**
+     * Set how long a connection should be idle to be validated before it is handed out.
+     *
+     * @param validationInterval is idle time after which connection is validated
+     */
+    public void setValidationInterval(Duration validationInterval) {
+        validationIntervalNanos = validationInterval.toNanos();
+    }
+
+    /**
+     * @return {@link Binder} with numbers of active and idle connections and of waiting threads, counts of created,
+     * closed and timed out connections, and the histogram of times {@link #db()} waited for a connection
+     */
+    public Binder getStats() {
+        int idle = pool.size();
+        long count = acquired.sum();
+        Binder histogram = new Binder();
+        for (int i = 0; i < acquireHistogram.length; i++)
+            histogram.put(ACQUIRE_BUCKETS_NAMES[i], acquireHistogram[i].sum());
+        return Binder.of(
+                "max", maximumConnections,
+                "active", Math.max(0, total.get() - idle),
+                "idle", idle,
+                "waiting", waiting.get(),
+                "created", created.sum(),
+                "expired", expired.sum(),
+                "evictedIdle", evictedIdle.sum(),
+                "invalid", invalid.sum(),
+                "timeouts", timeouts.sum(),
+                "acquired", count,
+                "averageAcquireMicros", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(acquireNanos.sum() / count),
+                "maxAcquireMicros", TimeUnit.NANOSECONDS.toMicros(maxAcquireNanos.get()),
+                "acquireMicros", histogram
+        );
+    }
+
     void returnToPool(PooledDb db) {
-        if(db.equals(threadDb.get())) {
-            threadDb.set(null);
-            pool.add(db);
+        // closing the connection the thread does not hold anymore does nothing
+        if (db != threadDb.get())
+            return;
+        if (--db.holds > 0)
+            return;
+        threadDb.remove();
+        db.releasedAt = System.nanoTime();
+        if (closed || db.isClosed() || db.releasedAt - db.createdAt > maxLifetimeNanos) {
+            if (!closed && !db.isClosed())
+                expired.increment();
+            destroy(db);
+            return;
+        }
+        pool.addFirst(db);
+        evictIdle();
+    }
+
+    /**
+     * Close connections that were not used for the max idle time. They are at the end of the pool.
+     */
+    private void evictIdle() {
+        PooledDb last;
+        while ((last = pool.peekLast()) != null && System.nanoTime() - last.releasedAt > maxIdleNanos) {
+            if (!pool.removeLastOccurrence(last))
+                break;
+            evictedIdle.increment();
+            destroy(last);
         }
     }
 
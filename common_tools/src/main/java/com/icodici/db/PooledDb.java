@@ -8,6 +8,11 @@ public class PooledDb extends Db implements AutoCloseable {
     private final DbPool dbPool;
     volatile boolean isInTransaction = false;
 
+    // number of not closed db() calls of the thread that holds the connection
+    int holds = 0;
+    final long createdAt = System.nanoTime();
+    volatile long releasedAt = createdAt;
+
     private static final boolean assertionsEnabled;
     static {
         boolean assertionsEnabledTmp = false;
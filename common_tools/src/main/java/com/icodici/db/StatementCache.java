@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.db;
+
+import net.sergeych.tools.Binder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of prepared statements of one connection. Statement is given out to one user at a time, wrapped so
+ * that its {@link PreparedStatement#close()} (or close of its result set, after
+ * {@link PreparedStatement#closeOnCompletion()}) returns it to the cache with parameters, batch and result set
+ * cleared, instead of closing it. If the statement of the same SQL is already in use, a new one is prepared. Statements
+ * evicted or dropped from the cache while in use are closed when their user is done with them.
+ */
+class StatementCache {
+
+    /**
+     * Counters shared by caches of all the connections of the pool.
+     */
+    static final class Stats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        Binder toBinder() {
+            long h = hits.sum();
+            long m = misses.sum();
+            return Binder.of(
+                    "hits", h,
+                    "misses", m,
+                    "evictions", evictions.sum(),
+                    "hitRate", h + m == 0 ? 0.0 : (double) h / (h + m)
+            );
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final Connection connection;
+        private final PreparedStatement statement;
+        private boolean inUse = true;
+        private boolean cached = false;
+
+        private Entry(String key, Connection connection, PreparedStatement statement) {
+            this.key = key;
+            this.connection = connection;
+            this.statement = statement;
+        }
+    }
+
+    private final int capacity;
+    private final Stats stats;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    StatementCache(int capacity, Stats stats) {
+        this.capacity = capacity;
+        this.stats = stats;
+    }
+
+    /**
+     * Get cached statement or prepare new one.
+     *
+     * @param connection is connection to prepare statement with
+     * @param sqlText is SQL of the statement
+     * @param returningKeys is true to prepare statement returning generated keys
+     *
+     * @return statement to use and close
+     *
+     * @throws SQLException if statement could not be prepared
+     */
+    PreparedStatement statement(Connection connection, String sqlText, boolean returningKeys) throws SQLException {
+        String key = returningKeys ? "K:" + sqlText : "S:" + sqlText;
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null && !e.inUse && e.connection == connection) {
+                e.inUse = true;
+                stats.hits.increment();
+                return wrap(e);
+            }
+            stats.misses.increment();
+        }
+        PreparedStatement statement;
+        synchronized (connection) {
+            statement = returningKeys ?
+                    connection.prepareStatement(sqlText, Statement.RETURN_GENERATED_KEYS) :
+                    connection.prepareStatement(sqlText);
+        }
+        Entry e = new Entry(key, connection, statement);
+        synchronized (this) {
+            Entry old = entries.get(key);
+            if (old == null || !old.inUse) {
+                if (old != null)
+                    drop(old);
+                e.cached = true;
+                entries.put(key, e);
+                evictOverCapacity();
+            }
+        }
+        return wrap(e);
+    }
+
+    /**
+     * Drop all the statements, e.g. when the connection is reset or closed.
+     */
+    synchronized void clear() {
+        for (Entry e : entries.values())
+            drop(e);
+        entries.clear();
+    }
+
+    /**
+     * @return number of cached statements
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void evictOverCapacity() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > capacity && it.hasNext()) {
+            Entry e = it.next();
+            it.remove();
+            drop(e);
+            stats.evictions.increment();
+        }
+    }
+
+    private void drop(Entry e) {
+        e.cached = false;
+        if (!e.inUse)
+            closeQuietly(e.statement);
+    }
+
+    private synchronized void release(Entry e) {
+        e.inUse = false;
+        if (!e.cached) {
+            closeQuietly(e.statement);
+            return;
+        }
+        try {
+            ResultSet rs = e.statement.getResultSet();
+            if (rs != null)
+                rs.close();
+            e.statement.clearParameters();
+            e.statement.clearBatch();
+        } catch (SQLException x) {
+            entries.remove(e.key);
+            drop(e);
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+            // connection could be already closed
+        }
+    }
+
+    private PreparedStatement wrap(Entry e) {
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new StatementHandler(e));
+    }
+
+    /**
+     * Passes calls to the cached statement, except these that would close it.
+     */
+    private final class StatementHandler implements InvocationHandler {
+        private final Entry entry;
+        private boolean closed = false;
+        private boolean closeOnCompletion = false;
+        private PreparedStatement proxy;
+
+        private StatementHandler(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            this.proxy = (PreparedStatement) proxy;
+            switch (method.getName()) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "closeOnCompletion":
+                    closeOnCompletion = true;
+                    return null;
+                case "isCloseOnCompletion":
+                    return closeOnCompletion;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+            }
+            if (closed)
+                throw new SQLException("statement is closed");
+            Object result = invokeOn(entry.statement, method, args);
+            if (result instanceof ResultSet && method.getName().equals("executeQuery"))
+                return wrapResultSet((ResultSet) result);
+            return result;
+        }
+
+        private synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(entry);
+            }
+        }
+
+        private ResultSet wrapResultSet(ResultSet rs) {
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                    new Class<?>[]{ResultSet.class}, (p, method, args) -> {
+                        switch (method.getName()) {
+                            case "getStatement":
+                                return proxy;
+                            case "hashCode":
+                                return System.identityHashCode(p);
+                            case "equals":
+                                return p == args[0];
+                            case "close":
+                                rs.close();
+                                if (closeOnCompletion)
+                                    close();
+                                return null;
+                        }
+                        return invokeOn(rs, method, args);
+                    });
+        }
+    }
+
+    private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2018, All Rights Reserved
+ *
+ */
+
+package net.sergeych.tools;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks once after a delay. {@link RunnableWithDynamicPeriod} uses it, so the same periodic logic could be
+ * driven either by a {@link ScheduledExecutorService} or by a timing wheel, which schedules and cancels in constant
+ * time.
+ */
+public interface DelayedScheduler {
+
+    /**
+     * Scheduled task that could be cancelled until it is started.
+     */
+    interface Cancellable {
+        void cancel();
+    }
+
+    /**
+     * Schedule the task.
+     *
+     * @param task is task to run
+     * @param delayMillis is delay before the task runs, in milliseconds
+     *
+     * @return {@link Cancellable} to cancel the task with
+     */
+    Cancellable schedule(Runnable task, long delayMillis);
+
+    /**
+     * @param es is executor to schedule tasks with
+     *
+     * @return {@link DelayedScheduler} that schedules tasks with the executor
+     */
+    static DelayedScheduler of(ScheduledExecutorService es) {
+        return new ExecutorScheduler(es);
+    }
+
+    /**
+     * Adapter of {@link ScheduledExecutorService}.
+     */
+    final class ExecutorScheduler implements DelayedScheduler {
+        private final ScheduledExecutorService es;
+
+        private ExecutorScheduler(ScheduledExecutorService es) {
+            this.es = es;
+        }
+
+        @Override
+        public Cancellable schedule(Runnable task, long delayMillis) {
+            ScheduledFuture<?> future = es.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            return new Cancellable() {
+                @Override
+                public void cancel() {
+                    future.cancel(true);
+                }
+            };
+        }
+    }
+}
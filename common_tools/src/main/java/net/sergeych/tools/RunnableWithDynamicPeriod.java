@@ -8,8 +8,6 @@ package net.sergeych.tools;
 
 import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RunnableWithDynamicPeriod implements Runnable {
@@ -17,14 +15,18 @@ public class RunnableWithDynamicPeriod implements Runnable {
     private Runnable lambda;
     private List<Integer> periods;
     private int waitsCount = 0;
-    private ScheduledFuture<?> future;
-    private ScheduledExecutorService es;
+    private DelayedScheduler.Cancellable future;
+    private DelayedScheduler scheduler;
     private AtomicBoolean cancelled = new AtomicBoolean(false);
 
     public RunnableWithDynamicPeriod(Runnable lambda, List<Integer> periods, ScheduledExecutorService es) {
+        this(lambda, periods, DelayedScheduler.of(es));
+    }
+
+    public RunnableWithDynamicPeriod(Runnable lambda, List<Integer> periods, DelayedScheduler scheduler) {
         this.lambda = lambda;
         this.periods = periods;
-        this.es = es;
+        this.scheduler = scheduler;
     }
 
     @Override
@@ -37,7 +39,7 @@ public class RunnableWithDynamicPeriod implements Runnable {
                     l = periods.get(waitsCount);
                 waitsCount += 1;
                 try {
-                    future = es.schedule(this, l, TimeUnit.MILLISECONDS);
+                    future = scheduler.schedule(this, l);
                 } catch (Exception e) {
                     //unable to schedule task, e.g. node is shutting down
                     //do nothing
@@ -59,7 +61,7 @@ public class RunnableWithDynamicPeriod implements Runnable {
     public void restart() {
         waitsCount = 0;
         if (future != null)
-            future.cancel(true);
+            future.cancel();
         run();
     }
 
@@ -0,0 +1,175 @@
+package com.icodici.db;
+
+import net.sergeych.tools.Binder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class DbPoolTest {
+
+    private static final String URL = "jdbc:dbpooltest:";
+    private static final AtomicBoolean valid = new AtomicBoolean(true);
+    private static final AtomicInteger closed = new AtomicInteger();
+
+    @BeforeClass
+    public static void registerDriver() throws Exception {
+        DriverManager.registerDriver(new Driver() {
+            @Override
+            public Connection connect(String url, Properties info) {
+                if (!acceptsURL(url))
+                    return null;
+                return (Connection) Proxy.newProxyInstance(DbPoolTest.class.getClassLoader(),
+                        new Class<?>[]{Connection.class}, (p, m, args) -> {
+                            switch (m.getName()) {
+                                case "isValid":
+                                    return valid.get();
+                                case "isClosed":
+                                    return false;
+                                case "close":
+                                    closed.incrementAndGet();
+                                    return null;
+                            }
+                            return null;
+                        });
+            }
+
+            @Override
+            public boolean acceptsURL(String url) {
+                return url.startsWith(URL);
+            }
+
+            @Override
+            public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+                return new DriverPropertyInfo[0];
+            }
+
+            @Override
+            public int getMajorVersion() {
+                return 1;
+            }
+
+            @Override
+            public int getMinorVersion() {
+                return 0;
+            }
+
+            @Override
+            public boolean jdbcCompliant() {
+                return false;
+            }
+
+            @Override
+            public Logger getParentLogger() {
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void nestedCallsShareConnection() throws Exception {
+        DbPool pool = new DbPool(URL, new Properties(), 2);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        PooledDb outer = pool.db();
+        try {
+            try (PooledDb inner = pool.db()) {
+                assertSame(outer, inner);
+            }
+            // still held by the outer call
+            assertSame(outer, pool.db());
+            outer.close();
+            assertEquals(0, pool.getStats().getIntOrThrow("idle"));
+            Future<PooledDb> other = es.submit(() -> {
+                try (PooledDb db = pool.db()) {
+                    return db;
+                }
+            });
+            assertNotSame(outer, other.get());
+        } finally {
+            outer.close();
+        }
+        // returned one is reused
+        assertEquals(2, pool.getStats().getIntOrThrow("idle"));
+        PooledDb db = pool.db();
+        db.close();
+        assertEquals(2L, pool.getStats().getLongOrThrow("created"));
+        es.shutdown();
+        pool.close();
+    }
+
+    @Test
+    public void acquireTimeout() throws Exception {
+        DbPool pool = new DbPool(URL, new Properties(), 1);
+        pool.setAcquireTimeout(Duration.ofMillis(200));
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        PooledDb held = pool.db();
+        try {
+            Future<?> other = es.submit(() -> pool.db());
+            try {
+                other.get();
+                fail("should time out");
+            } catch (java.util.concurrent.ExecutionException e) {
+                assertTrue(e.getCause() instanceof SQLException);
+            }
+            Binder stats = pool.getStats();
+            assertEquals(1, stats.getIntOrThrow("active"));
+            assertEquals(1L, stats.getLongOrThrow("timeouts"));
+        } finally {
+            held.close();
+        }
+        // freed connection is handed out to the waiting thread
+        PooledDb db = pool.db();
+        try {
+            Future<PooledDb> other = es.submit(() -> {
+                try (PooledDb x = pool.db()) {
+                    return x;
+                }
+            });
+            Thread.sleep(50);
+            assertEquals(1, pool.getStats().getIntOrThrow("waiting"));
+            db.close();
+            assertSame(db, other.get());
+        } finally {
+            db.close();
+        }
+        es.shutdown();
+        pool.close();
+    }
+
+    @Test
+    public void eviction() throws Exception {
+        DbPool pool = new DbPool(URL, new Properties(), 4);
+        pool.setValidationInterval(Duration.ZERO);
+        PooledDb first = pool.db();
+        first.close();
+        valid.set(false);
+        try {
+            PooledDb second = pool.db();
+            assertNotSame(first, second);
+            second.close();
+        } finally {
+            valid.set(true);
+        }
+        assertEquals(1L, pool.getStats().getLongOrThrow("invalid"));
+
+        // both the pooled connection and the new one are too old
+        pool.setMaxLifetime(Duration.ZERO);
+        int closedBefore = closed.get();
+        pool.db().close();
+        assertEquals(closedBefore + 2, closed.get());
+        assertEquals(0, pool.getStats().getIntOrThrow("idle"));
+        assertEquals(2L, pool.getStats().getLongOrThrow("expired"));
+        pool.close();
+    }
+}
@@ -0,0 +1,90 @@
+package com.icodici.db;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StatementCacheTest {
+
+    private final AtomicInteger prepared = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    private final AtomicInteger cleared = new AtomicInteger();
+
+    private final Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{Connection.class}, (p, m, args) -> {
+                if (m.getName().equals("prepareStatement")) {
+                    prepared.incrementAndGet();
+                    return fakeStatement();
+                }
+                throw new UnsupportedOperationException(m.getName());
+            });
+
+    private PreparedStatement fakeStatement() {
+        ResultSet rs = (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ResultSet.class}, (p, m, args) -> null);
+        return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (p, m, args) -> {
+                    switch (m.getName()) {
+                        case "close":
+                            closed.incrementAndGet();
+                            return null;
+                        case "clearParameters":
+                            cleared.incrementAndGet();
+                            return null;
+                        case "executeQuery":
+                            return rs;
+                    }
+                    return null;
+                });
+    }
+
+    @Test
+    public void reuseAndEvict() throws Exception {
+        StatementCache.Stats stats = new StatementCache.Stats();
+        StatementCache cache = new StatementCache(2, stats);
+
+        PreparedStatement s1 = cache.statement(connection, "select 1", false);
+        // in use, so the second one is prepared
+        PreparedStatement s2 = cache.statement(connection, "select 1", false);
+        assertEquals(2, prepared.get());
+        s1.close();
+        s2.close();
+        assertTrue(s1.isClosed());
+        // the one not cached is really closed
+        assertEquals(1, closed.get());
+
+        PreparedStatement s3 = cache.statement(connection, "select 1", false);
+        assertEquals(2, prepared.get());
+        assertEquals(1L, stats.toBinder().getLongOrThrow("hits"));
+        s3.close();
+        assertTrue(cleared.get() >= 1);
+
+        // result set closes the statement on completion
+        PreparedStatement s4 = cache.statement(connection, "select 1", false);
+        s4.closeOnCompletion();
+        ResultSet rs = s4.executeQuery();
+        assertSame(s4, rs.getStatement());
+        assertFalse(s4.isClosed());
+        rs.close();
+        assertTrue(s4.isClosed());
+        cache.statement(connection, "select 1", false).close();
+        assertEquals(2, prepared.get());
+
+        // least recently used is evicted and closed
+        cache.statement(connection, "select 2", false).close();
+        cache.statement(connection, "select 3", true).close();
+        assertEquals(2, cache.size());
+        assertEquals(1L, stats.toBinder().getLongOrThrow("evictions"));
+        assertEquals(2, closed.get());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(4, closed.get());
+    }
+}
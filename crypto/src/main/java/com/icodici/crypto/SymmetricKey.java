@@ -385,8 +385,29 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
      *         if the authentication record does not match the data.
      */
     public byte[] etaDecrypt(byte[] data) throws EncryptionError, AuthenticationFailed {
+        return etaDecrypt(data, 0, data.length);
+    }
+
+    /**
+     * Decrypt part of the array using AE (EtA) with SHA256-based HMAC, see {@link #etaDecrypt(byte[])}. The encrypted
+     * part is not copied.
+     *
+     * @param data
+     *         array with data to decrypt
+     * @param offset
+     *         start of encrypted data in the array
+     * @param length
+     *         length of encrypted data
+     *
+     * @return decrypted data
+     *
+     * @throws EncryptionError
+     * @throws AuthenticationFailed
+     *         if the authentication record does not match the data.
+     */
+    public byte[] etaDecrypt(byte[] data, int offset, int length) throws EncryptionError, AuthenticationFailed {
         try {
-            return Do.read(etaDecryptStream(new ByteArrayInputStream(data)));
+            return Do.read(etaDecryptStream(new ByteArrayInputStream(data, offset, length)));
         } catch (AuthenticationFailed e) {
             throw e;
         } catch (IOException e) {
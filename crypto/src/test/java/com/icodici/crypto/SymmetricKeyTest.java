@@ -43,6 +43,19 @@ public class SymmetricKeyTest {
         k.etaDecrypt(cipherText);
     }
 
+    @Test
+    public void etaDecryptPartOfArray() throws Exception {
+        SymmetricKey k = new SymmetricKey();
+        byte[] plainText = "Hello, world!".getBytes();
+        byte[] cipherText = k.etaEncrypt(plainText);
+        byte[] data = new byte[cipherText.length + 7];
+        System.arraycopy(cipherText, 0, data, 3, cipherText.length);
+        assertArrayEquals(plainText, k.etaDecrypt(data, 3, cipherText.length));
+
+        exception.expect(SymmetricKey.AuthenticationFailed.class);
+        k.etaDecrypt(data, 3, cipherText.length + 1);
+    }
+
     @Test
     public void testHashes() throws Exception {
         byte[] valid = Hex.decode("ba7816bf 8f01cfea 414140de 5dae2223 b00361a3 96177a9c b410ff61" +
@@ -50,5 +50,9 @@ public enum Errors {
     NOT_READY,
     NOT_FOUND,
     COMMAND_FAILED,
-    COMMAND_PENDING
+    COMMAND_PENDING,
+    /**
+     * Node is overloaded and refused the request; it could be repeated later
+     */
+    OVERLOADED
 }
@@ -7,6 +7,7 @@
 
 package com.icodici.universa.node2;
 
+import com.icodici.crypto.AbstractKey;
 import com.icodici.crypto.EncryptionError;
 import com.icodici.crypto.KeyAddress;
 import com.icodici.crypto.PublicKey;
@@ -71,8 +72,10 @@ public class Config {
         config.maxDownloadOnApproveTime = maxDownloadOnApproveTime;
         config.declinedItemExpiration = declinedItemExpiration;
         config.maxCacheAge = maxCacheAge;
+        config.maxCacheSize = maxCacheSize;
         config.maxNameCacheAge = maxNameCacheAge;
         config.maxGetItemTime = maxGetItemTime;
+        config.maxInlineItemSize = maxInlineItemSize;
         config.statsIntervalSmall = statsIntervalSmall;
         config.statsIntervalBig = statsIntervalBig;
         synchronized (this) {
@@ -85,12 +88,17 @@ public class Config {
         config.consensusReceivedCheckTime = new ArrayList<>(consensusReceivedCheckTime);
         config.maxConsensusReceivedCheckTime = maxConsensusReceivedCheckTime;
         config.resyncTime = new ArrayList<>(resyncTime);
+        config.adaptivePolling = adaptivePolling;
+        config.checkQueueCapacity = checkQueueCapacity;
+        config.ioQueueCapacity = ioQueueCapacity;
+        config.maxItemsInFlight = maxItemsInFlight;
+        config.maxLedgerLatency = maxLedgerLatency;
         config.checkItemTime = checkItemTime;
         config.maxResyncTime = maxResyncTime;
         config.uIssuerKeys = new HashSet<>(uIssuerKeys);
         config.holdDuration = holdDuration;
         config.keysWhiteList = new ArrayList<>(keysWhiteList);
-        config.addressesWhiteList = new ArrayList<>(addressesWhiteList);
+        config.addressesWhiteList = new AddressesList(addressesWhiteList);
         config.isFreeRegistrationsLimited = isFreeRegistrationsLimited;
         config.isFreeRegistrationsAllowedFromYaml = isFreeRegistrationsAllowedFromYaml;
         config.permanetMode = permanetMode;
@@ -195,12 +203,14 @@ public class Config {
 
     private Duration declinedItemExpiration = Duration.ofDays(10);
     private Duration maxCacheAge = Duration.ofMinutes(20);
+    private long maxCacheSize = 128L * 1024 * 1024;
     private Duration maxDiskCacheAge = Duration.ofMinutes(40);
     private Duration maxNameCacheAge = Duration.ofMinutes(5);
     private Duration statsIntervalSmall = Duration.ofSeconds(30);
     private Duration statsIntervalBig = Duration.ofSeconds(3600);
     private Duration maxGetItemTime = Duration.ofSeconds(30);
     private int getItemRetryCount = 10;
+    private int maxInlineItemSize = 4096;
     private int negativeConsensus;
     private int positiveConsensus;
     private int resyncBreakConsensus;
@@ -214,6 +224,11 @@ public class Config {
     private List<Integer> consensusReceivedCheckTime = Arrays.asList(0,1000,1000,1000,2000,4000,8000,16000,32000,60000);
     private Duration maxConsensusReceivedCheckTime = Duration.ofMinutes(15);
     private List<Integer> resyncTime = Arrays.asList(0,1000,1000,1000,2000,4000,8000,16000,32000,60000);
+    private boolean adaptivePolling = false;
+    private int checkQueueCapacity = 1024;
+    private int ioQueueCapacity = 4096;
+    private int maxItemsInFlight = 10000;
+    private Duration maxLedgerLatency = Duration.ofMillis(500);
     private Duration checkItemTime = Duration.ofMillis(200);
     private Duration maxResyncTime = Duration.ofMinutes(5);
     private Duration expriedStorageCleanupInterval = Duration.ofMinutes(5);
@@ -250,7 +265,71 @@ public class Config {
         return addressesWhiteList;
     }
 
-    private List<KeyAddress> addressesWhiteList = new ArrayList<>();
+    private AddressesList addressesWhiteList = new AddressesList();
+
+    private volatile Set<Bytes> whiteListedAddresses = new HashSet<>();
+    private volatile int whiteListedAddressesVersion = -1;
+
+    /**
+     * Check that one of {@link #getAddressesWhiteList()} matches the key. Addresses of the list are kept in a hash set
+     * which is rebuilt only when the list is modified, so the check neither scans the list nor calculates addresses of
+     * the key (they are cached by the key).
+     *
+     * @param key to check
+     *
+     * @return true if the key matches any of whitelisted addresses
+     */
+    public boolean isAddressWhiteListed(AbstractKey key) {
+        if (whiteListedAddressesVersion != addressesWhiteList.getVersion()) {
+            synchronized (addressesWhiteList) {
+                int version = addressesWhiteList.getVersion();
+                Set<Bytes> rebuilt = new HashSet<>();
+                for (KeyAddress address : addressesWhiteList)
+                    rebuilt.add(matchingPart(address));
+                whiteListedAddresses = rebuilt;
+                whiteListedAddressesVersion = version;
+            }
+        }
+        Set<Bytes> addresses = whiteListedAddresses;
+        return addresses.contains(matchingPart(key.getShortAddress())) ||
+                addresses.contains(matchingPart(key.getLongAddress()));
+    }
+
+    /**
+     * Part of the packed address that {@link KeyAddress#isMatchingKey(AbstractKey)} compares: key mask and digest,
+     * without type mark and control code.
+     */
+    private static Bytes matchingPart(KeyAddress address) {
+        byte[] packed = address.getPacked();
+        byte[] part = Arrays.copyOf(packed, packed.length - 4);
+        part[0] &= 0xF0;
+        return new Bytes(part);
+    }
+
+    /**
+     * List of whitelisted addresses that counts its modifications.
+     */
+    private static class AddressesList extends ArrayList<KeyAddress> {
+
+        private static final long serialVersionUID = 1L;
+
+        AddressesList() {
+        }
+
+        AddressesList(Collection<KeyAddress> addresses) {
+            super(addresses);
+        }
+
+        int getVersion() {
+            return modCount;
+        }
+
+        @Override
+        public KeyAddress set(int index, KeyAddress element) {
+            modCount++;
+            return super.set(index, element);
+        }
+    }
 
 
     public static String uTemplatePath = "./src/test_contracts/UTemplate.yml";
@@ -345,6 +424,19 @@ public class Config {
         this.maxCacheAge = maxCacheAge;
     }
 
+    /**
+     * Items cache evicts least recently used items when estimated size of cached items exceeds this limit.
+     *
+     * @return limit of the items cache size, in bytes
+     */
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    public void setMaxCacheSize(long maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+    }
+
     public Duration getMaxGetItemTime() {
         return maxGetItemTime;
     }
@@ -353,6 +445,20 @@ public class Config {
         return getItemRetryCount;
     }
 
+    /**
+     * Items which packed transaction is not bigger than this size are sent to other nodes right with the first
+     * notification about them, so other nodes need not to download them. Zero disables it.
+     *
+     * @return max size of the packed transaction, in bytes
+     */
+    public int getMaxInlineItemSize() {
+        return maxInlineItemSize;
+    }
+
+    public void setMaxInlineItemSize(int maxInlineItemSize) {
+        this.maxInlineItemSize = maxInlineItemSize;
+    }
+
     public void setMaxGetItemTime(Duration maxGetItemTime) {
         this.maxGetItemTime = maxGetItemTime;
     }
@@ -400,6 +506,65 @@ public class Config {
         this.resyncTime = new ArrayList<>(resyncTime);
     }
 
+    /**
+     * In adaptive mode delays of polling, consensus received checks and resync are derived from observed latency of
+     * other nodes answers, and {@link #getPollTime()}, {@link #getConsensusReceivedCheckTime()} and
+     * {@link #getResyncTime()} only cap them.
+     *
+     * @return true if adaptive polling is on
+     */
+    public boolean isAdaptivePolling() {
+        return adaptivePolling;
+    }
+
+    public void setAdaptivePolling(boolean adaptivePolling) {
+        this.adaptivePolling = adaptivePolling;
+    }
+
+    /**
+     * @return maximum number of items waiting for the check in the node CPU pool
+     */
+    public int getCheckQueueCapacity() {
+        return checkQueueCapacity;
+    }
+
+    public void setCheckQueueCapacity(int checkQueueCapacity) {
+        this.checkQueueCapacity = checkQueueCapacity;
+    }
+
+    /**
+     * @return maximum number of tasks waiting in the node pool of ledger and network work
+     */
+    public int getIoQueueCapacity() {
+        return ioQueueCapacity;
+    }
+
+    public void setIoQueueCapacity(int ioQueueCapacity) {
+        this.ioQueueCapacity = ioQueueCapacity;
+    }
+
+    /**
+     * @return number of items being processed at which the node stops accepting new registrations
+     */
+    public int getMaxItemsInFlight() {
+        return maxItemsInFlight;
+    }
+
+    public void setMaxItemsInFlight(int maxItemsInFlight) {
+        this.maxItemsInFlight = maxItemsInFlight;
+    }
+
+    /**
+     * @return average time of ledger operations at which the node stops accepting new registrations
+     */
+    public Duration getMaxLedgerLatency() {
+        return maxLedgerLatency;
+    }
+
+    public void setMaxLedgerLatency(Duration maxLedgerLatency) {
+        this.maxLedgerLatency = maxLedgerLatency;
+    }
+
     public TemporalAmount getMaxDownloadOnApproveTime() {
         return maxDownloadOnApproveTime;
     }
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.db.DbPool;
+import com.icodici.db.PooledDb;
+import net.sergeych.tools.Binder;
+import net.sergeych.utils.Ut;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes {@link StateRecord}s saved by concurrent threads to the ledger in groups: a single thread takes all waiting
+ * writes, up to the max batch size, and executes them as one JDBC batch in one transaction. While it is committing,
+ * new writes gather for the next batch, so under load many records share a commit, and a lone write is not delayed,
+ * unless the max delay is set to wait for more writes. Each saving thread waits until its record is committed, or
+ * gets the error. If a batch fails, its records are written one by one, so that only the bad record fails.
+ */
+class GroupCommitter {
+
+    static final String INSERT = "insert into ledger(hash,state,created_at, expires_at, locked_by_id) values(?,?,?,?,?);";
+    static final String UPDATE = "update ledger set state=?, created_at=?, expires_at=?, locked_by_id=? where id=?";
+
+    /**
+     * Values of the record to write, taken when the record is saved.
+     */
+    static final class Write {
+        private final byte[] hash;
+        private final long recordId;
+        private final int state;
+        private final long createdAt;
+        private final long expiresAt;
+        private final long lockedById;
+        private final CompletableFuture<Long> done = new CompletableFuture<>();
+
+        Write(StateRecord record) {
+            hash = record.getId().getDigest();
+            recordId = record.getRecordId();
+            state = record.getState().ordinal();
+            createdAt = Ut.unixTime(record.getCreatedAt());
+            expiresAt = Ut.unixTime(record.getExpiresAt());
+            lockedById = record.getLockedByRecordId();
+        }
+
+        boolean isInsert() {
+            return recordId == 0;
+        }
+
+        private void setInsertValues(PreparedStatement statement) throws SQLException {
+            statement.setBytes(1, hash);
+            statement.setInt(2, state);
+            statement.setLong(3, createdAt);
+            statement.setLong(4, expiresAt);
+            statement.setLong(5, lockedById);
+        }
+
+        private void setUpdateValues(PreparedStatement statement) throws SQLException {
+            statement.setInt(1, state);
+            statement.setLong(2, createdAt);
+            statement.setLong(3, expiresAt);
+            statement.setLong(4, lockedById);
+            statement.setLong(5, recordId);
+        }
+
+        /**
+         * Write the record with its own statement.
+         *
+         * @param db is db to use
+         *
+         * @return id of the record, generated for the new one
+         *
+         * @throws SQLException if the write failed
+         */
+        long writeWith(PooledDb db) throws SQLException {
+            if (!isInsert()) {
+                try (PreparedStatement statement = db.statement(UPDATE)) {
+                    setUpdateValues(statement);
+                    db.updateWithStatement(statement);
+                }
+                return recordId;
+            }
+            try (PreparedStatement statement = db.statementReturningKeys(INSERT)) {
+                setInsertValues(statement);
+                db.updateWithStatement(statement);
+                try (ResultSet keys = statement.getGeneratedKeys()) {
+                    if (!keys.next())
+                        throw new RuntimeException("generated keys are not supported");
+                    return keys.getLong(1);
+                }
+            }
+        }
+    }
+
+    private final DbPool dbPool;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAccumulator maxBatch = new LongAccumulator(Math::max, 0);
+    private final LongAdder commitNanos = new LongAdder();
+    private final LongAccumulator maxCommitNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Create the committer and start its thread.
+     *
+     * @param name is name of the thread
+     * @param dbPool is pool to take connection from
+     * @param maxBatchSize is max number of records in one commit
+     * @param maxDelay is how long to wait for more records before the commit; zero to commit what is waiting at once
+     */
+    GroupCommitter(String name, DbPool dbPool, int maxBatchSize, Duration maxDelay) {
+        this.dbPool = dbPool;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        writer = new Thread(this::writeBatches, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Write the record with the next batch and wait for the commit.
+     *
+     * @param write is the record values
+     *
+     * @return id of the record, generated for the new one
+     *
+     * @throws SQLException if the record could not be written
+     */
+    long write(Write write) throws SQLException {
+        if (closed)
+            throw new SQLException("ledger is closed");
+        queue.add(write);
+        try {
+            return write.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for the commit");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw new SQLException("StateRecord group commit failed", e.getCause());
+        }
+    }
+
+    /**
+     * Stop the committer. Records that are not written yet fail.
+     */
+    void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Write w;
+        while ((w = queue.poll()) != null)
+            w.done.completeExceptionally(new SQLException("ledger is closed"));
+    }
+
+    /**
+     * @return {@link Binder} with counts of batches, records and failed batches, average and max batch size, and
+     * average and max commit time
+     */
+    Binder getStats() {
+        long batchesCount = batches.sum();
+        long recordsCount = records.sum();
+        return Binder.of(
+                "maxBatchSize", maxBatchSize,
+                "maxDelayMicros", TimeUnit.NANOSECONDS.toMicros(maxDelayNanos),
+                "queued", queue.size(),
+                "batches", batchesCount,
+                "records", recordsCount,
+                "failedBatches", failedBatches.sum(),
+                "averageBatch", batchesCount == 0 ? 0.0 : (double) recordsCount / batchesCount,
+                "largestBatch", maxBatch.get(),
+                "averageCommitMicros", batchesCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(commitNanos.sum() / batchesCount),
+                "maxCommitMicros", TimeUnit.NANOSECONDS.toMicros(maxCommitNanos.get())
+        );
+    }
+
+    private void writeBatches() {
+        List<Write> batch = new ArrayList<>(maxBatchSize);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+                if (maxDelayNanos > 0) {
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    while (batch.size() < maxBatchSize) {
+                        Write w = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (w == null)
+                            break;
+                        batch.add(w);
+                    }
+                }
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                commit(batch);
+            } catch (InterruptedException e) {
+                for (Write w : batch)
+                    w.done.completeExceptionally(new SQLException("ledger is closed"));
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Write> batch) {
+        long started = System.nanoTime();
+        try (PooledDb db = dbPool.db()) {
+            try {
+                long[] ids = db.transaction(() -> writeBatch(db, batch));
+                long nanos = System.nanoTime() - started;
+                batches.increment();
+                records.add(batch.size());
+                maxBatch.accumulate(batch.size());
+                commitNanos.add(nanos);
+                maxCommitNanos.accumulate(nanos);
+                for (int i = 0; i < batch.size(); i++)
+                    batch.get(i).done.complete(ids[i]);
+                return;
+            } catch (Exception e) {
+                failedBatches.increment();
+            }
+            // find the bad record
+            for (Write w : batch) {
+                try {
+                    w.done.complete(w.writeWith(db));
+                } catch (Exception e) {
+                    w.done.completeExceptionally(e);
+                }
+            }
+        } catch (Exception e) {
+            for (Write w : batch)
+                w.done.completeExceptionally(e);
+        }
+    }
+
+    static long[] writeBatch(PooledDb db, List<Write> batch) throws SQLException {
+        long[] ids = new long[batch.size()];
+        List<Integer> inserts = new ArrayList<>();
+        try (
+                PreparedStatement insert = db.statementReturningKeys(INSERT);
+                PreparedStatement update = db.statement(UPDATE)
+        ) {
+            boolean hasUpdates = false;
+            for (int i = 0; i < batch.size(); i++) {
+                Write w = batch.get(i);
+                if (w.isInsert()) {
+                    w.setInsertValues(insert);
+                    insert.addBatch();
+                    inserts.add(i);
+                } else {
+                    w.setUpdateValues(update);
+                    update.addBatch();
+                    ids[i] = w.recordId;
+                    hasUpdates = true;
+                }
+            }
+            if (!inserts.isEmpty()) {
+                insert.executeBatch();
+                try (ResultSet keys = insert.getGeneratedKeys()) {
+                    for (int i : inserts) {
+                        if (!keys.next())
+                            throw new SQLException("generated keys are not supported");
+                        ids[i] = keys.getLong(1);
+                    }
+                }
+            }
+            if (hasUpdates)
+                update.executeBatch();
+        }
+        return ids;
+    }
+}
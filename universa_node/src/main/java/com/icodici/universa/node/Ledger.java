@@ -22,6 +22,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -55,6 +56,41 @@ public interface Ledger {
      */
     StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId);
 
+    /**
+     * Get records of many items at once. Implementations should do it with a constant number of queries, so checking
+     * of an item does not depend on how many items it references.
+     *
+     * @param ids of the items
+     * @return found records by the items ids; items that are not in the ledger are missing
+     */
+    default Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        for (HashId id : ids) {
+            StateRecord r = getRecord(id);
+            if (r != null)
+                result.put(id, r);
+        }
+        return result;
+    }
+
+    /**
+     * Create records in {@link ItemState#LOCKED_FOR_CREATION} state locked by creatorRecordId for many items at once,
+     * like {@link #createOutputLockRecord(long, HashId)} does for one item.
+     *
+     * @param creatorRecordId record that want to create new items
+     * @param newItemHashIds new items hashes
+     * @return created records by the items ids; items that are already in the ledger are missing
+     */
+    default Map<HashId, StateRecord> createOutputLockRecords(long creatorRecordId, Collection<HashId> newItemHashIds) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        for (HashId id : newItemHashIds) {
+            StateRecord r = createOutputLockRecord(creatorRecordId, id);
+            if (r != null)
+                result.put(id, r);
+        }
+        return result;
+    }
+
     /**
      * Get the record that owns the lock. This method should only return the record, not analyze it or somehow process. Still
      * it never returns expired records. Note that <b>caller must clear the lock</b> if this method returns null.
@@ -125,6 +161,15 @@ public interface Ledger {
      */
     void save(StateRecord stateRecord);
 
+    /**
+     * Save many records at once, in one transaction if possible.
+     *
+     * @param records to save
+     */
+    default void saveAll(Collection<StateRecord> records) {
+        records.forEach(this::save);
+    }
+
     /**
      * Refresh record.
      *
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.db.DbPool;
+import com.icodici.db.PooledDb;
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter of all hashes of the ledger, to tell that the item is definitely not in the ledger without a query.
+ * <p>
+ * The filter is loaded from the ledger in the background, and until it is loaded every item may be in the ledger.
+ * Hashes of inserted records are added to the filter, and it grows with the ledger. Removed records can't be removed
+ * from a Bloom filter, so they are counted instead, and once they make a half of the filter it is rebuilt from the
+ * ledger. The filter that is in use keeps answering while the new one is loaded.
+ * <p>
+ * Records should be added both before the insert, so that nobody misses the record that is being inserted, and after
+ * it, so that the filter that is being loaded gets all records its scan of the ledger could have missed.
+ */
+class LedgerHashFilter {
+
+    /**
+     * Scalable Bloom filter: when a stage is full, next one twice as large and with twice smaller false positive
+     * rate is added, so the total false positive rate stays under the target one.
+     */
+    static final class BloomFilter {
+
+        private static final class Stage {
+            private final AtomicLongArray bits;
+            private final long size;
+            private final int hashes;
+            private final long capacity;
+            private final AtomicLong count = new AtomicLong();
+
+            private Stage(long capacity, double falsePositiveRate) {
+                this.capacity = capacity;
+                long m = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+                int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (m + 63) / 64));
+                bits = new AtomicLongArray(words);
+                size = words * 64L;
+                hashes = Math.max(1, (int) Math.ceil(-Math.log(falsePositiveRate) / Math.log(2)));
+            }
+
+            private boolean mightContain(long h1, long h2) {
+                for (int i = 0; i < hashes; i++) {
+                    long bit = Math.floorMod(h1 + i * h2, size);
+                    if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                        return false;
+                }
+                return true;
+            }
+
+            private void add(long h1, long h2) {
+                boolean changed = false;
+                for (int i = 0; i < hashes; i++) {
+                    long bit = Math.floorMod(h1 + i * h2, size);
+                    int word = (int) (bit >>> 6);
+                    long mask = 1L << bit;
+                    long value;
+                    while (((value = bits.get(word)) & mask) == 0) {
+                        if (bits.compareAndSet(word, value, value | mask)) {
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+                if (changed)
+                    count.incrementAndGet();
+            }
+
+            private double falsePositiveRate() {
+                return Math.pow(1 - Math.exp(-(double) hashes * count.get() / size), hashes);
+            }
+        }
+
+        private final double falsePositiveRate;
+        private volatile Stage[] stages;
+
+        /**
+         * @param capacity is number of hashes the first stage holds with the given false positive rate
+         * @param falsePositiveRate is target rate of false positives of the whole filter
+         */
+        BloomFilter(long capacity, double falsePositiveRate) {
+            this.falsePositiveRate = falsePositiveRate;
+            // stage false positive rates make geometric series: p/2 + p/4 + ...
+            stages = new Stage[]{new Stage(Math.max(1024, capacity), falsePositiveRate / 2)};
+        }
+
+        boolean mightContain(HashId id) {
+            byte[] digest = id.getDigest();
+            long h1 = hash(digest, 0x9E3779B97F4A7C15L);
+            long h2 = hash(digest, 0xC2B2AE3D27D4EB4FL) | 1;
+            for (Stage s : stages)
+                if (s.mightContain(h1, h2))
+                    return true;
+            return false;
+        }
+
+        void add(HashId id) {
+            byte[] digest = id.getDigest();
+            long h1 = hash(digest, 0x9E3779B97F4A7C15L);
+            long h2 = hash(digest, 0xC2B2AE3D27D4EB4FL) | 1;
+            Stage[] ss = stages;
+            for (Stage s : ss)
+                if (s.mightContain(h1, h2))
+                    return;
+            Stage last = ss[ss.length - 1];
+            if (last.count.get() >= last.capacity)
+                last = grow(last);
+            last.add(h1, h2);
+        }
+
+        private synchronized Stage grow(Stage full) {
+            Stage[] ss = stages;
+            Stage last = ss[ss.length - 1];
+            if (last != full)
+                return last;
+            Stage[] grown = new Stage[ss.length + 1];
+            System.arraycopy(ss, 0, grown, 0, ss.length);
+            grown[ss.length] = new Stage(full.capacity * 2, falsePositiveRate / (2L << ss.length));
+            stages = grown;
+            return grown[ss.length];
+        }
+
+        /**
+         * @return approximate number of added hashes
+         */
+        long getCount() {
+            long count = 0;
+            for (Stage s : stages)
+                count += s.count.get();
+            return count;
+        }
+
+        int getStagesCount() {
+            return stages.length;
+        }
+
+        long getMemoryBytes() {
+            long bytes = 0;
+            for (Stage s : stages)
+                bytes += s.size / 8;
+            return bytes;
+        }
+
+        /**
+         * @return false positive rate expected with the current number of hashes
+         */
+        double getExpectedFalsePositiveRate() {
+            double negative = 1;
+            for (Stage s : stages)
+                negative *= 1 - s.falsePositiveRate();
+            return 1 - negative;
+        }
+
+        private static long hash(byte[] data, long seed) {
+            long h = seed ^ data.length;
+            for (byte b : data) {
+                h ^= b & 0xFF;
+                h *= 0x100000001B3L;
+            }
+            // murmur3 finalizer
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    private static final int FETCH_SIZE = 10000;
+    // rebuilding briefly stops ledger writes, so small numbers of removed records are not worth it
+    private static final long MIN_REMOVED_TO_RELOAD = 100000;
+
+    private final String name;
+    private final DbPool dbPool;
+    private final long capacity;
+    private final double falsePositiveRate;
+
+    // filter to answer with, null until loaded
+    private volatile BloomFilter current;
+    // filter that is being loaded
+    private volatile BloomFilter building;
+    private final AtomicBoolean loading = new AtomicBoolean();
+    private volatile Thread loader;
+    private volatile boolean closed = false;
+
+    private final AtomicLong removed = new AtomicLong();
+    private final LongAdder absent = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private volatile long lastLoadMillis = 0;
+
+    /**
+     * Create the filter, that is loaded by {@link #start()}.
+     *
+     * @param name is name of the loading thread
+     * @param dbPool is pool of the ledger connections
+     * @param capacity is expected number of records in the ledger
+     * @param falsePositiveRate is target rate of false positives
+     */
+    LedgerHashFilter(String name, DbPool dbPool, long capacity, double falsePositiveRate) {
+        this.name = name;
+        this.dbPool = dbPool;
+        this.capacity = capacity;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Start loading the filter. Writers should already add records to it, so that the load misses none.
+     */
+    void start() {
+        load();
+    }
+
+    /**
+     * @param id is hash of the item
+     *
+     * @return true if the item is definitely not in the ledger, false if it may be there or the filter is not loaded
+     * yet
+     */
+    boolean isAbsent(HashId id) {
+        BloomFilter f = current;
+        if (f == null || f.mightContain(id))
+            return false;
+        absent.increment();
+        return true;
+    }
+
+    /**
+     * Register the item that the filter has let to the ledger, but it was not found there.
+     *
+     * @param id is hash of the item
+     */
+    void notFound(HashId id) {
+        BloomFilter f = current;
+        if (f != null && f.mightContain(id))
+            falsePositives.increment();
+    }
+
+    void add(HashId id) {
+        // new filter first, so that if it replaces the current one meanwhile, the record is still added to it
+        BloomFilter b = building;
+        if (b != null)
+            b.add(id);
+        BloomFilter f = current;
+        if (f != null && f != b)
+            f.add(id);
+    }
+
+    /**
+     * Register records removed from the ledger. Their hashes stay in the filter, so it is rebuilt when there are too
+     * many of them.
+     *
+     * @param count is number of removed records
+     */
+    void removed(long count) {
+        long total = removed.addAndGet(count);
+        BloomFilter f = current;
+        if (f != null && total >= MIN_REMOVED_TO_RELOAD && total * 2 > f.getCount())
+            load();
+    }
+
+    void close() {
+        closed = true;
+        Thread t = loader;
+        if (t != null) {
+            try {
+                t.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return {@link Binder} with number of hashes, memory used, expected and observed false positive rates
+     */
+    Binder getStats() {
+        BloomFilter f = current;
+        BloomFilter b = building;
+        long a = absent.sum();
+        long fp = falsePositives.sum();
+        return Binder.of(
+                "ready", f != null,
+                "loading", b != null,
+                "hashes", f == null ? 0 : f.getCount(),
+                "stages", f == null ? 0 : f.getStagesCount(),
+                "removed", removed.get(),
+                "memoryBytes", (f == null ? 0 : f.getMemoryBytes()) + (b == null || b == f ? 0 : b.getMemoryBytes()),
+                "targetFalsePositiveRate", falsePositiveRate,
+                "expectedFalsePositiveRate", f == null ? 0.0 : f.getExpectedFalsePositiveRate(),
+                "absent", a,
+                "falsePositives", fp,
+                "falsePositiveRate", a + fp == 0 ? 0.0 : (double) fp / (a + fp),
+                "loads", loads.sum(),
+                "lastLoadMillis", lastLoadMillis
+        );
+    }
+
+    private void load() {
+        if (closed || !loading.compareAndSet(false, true))
+            return;
+        Thread t = new Thread(this::loadFilter, name);
+        t.setDaemon(true);
+        loader = t;
+        t.start();
+    }
+
+    private void loadFilter() {
+        long started = System.currentTimeMillis();
+        try (PooledDb db = dbPool.db()) {
+            BloomFilter f = current;
+            long expected = Math.max(capacity, f == null ? estimateRecords(db) : f.getCount() - removed.get());
+            BloomFilter b = new BloomFilter(expected + expected / 4, falsePositiveRate);
+            building = b;
+            // records that were added before the new filter was set are visible to the scan once their writers
+            // commit, so wait for them
+            db.transaction(() -> {
+                db.update("LOCK TABLE ledger IN SHARE MODE");
+                return null;
+            });
+            removed.set(0);
+            // cursor is used only inside transaction
+            db.transaction(() -> {
+                try (PreparedStatement statement = db.statement("SELECT hash FROM ledger")) {
+                    statement.setFetchSize(FETCH_SIZE);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            if (closed)
+                                throw new InterruptedException("ledger is closed");
+                            b.add(HashId.withDigest(rs.getBytes(1)));
+                        }
+                    }
+                }
+                return null;
+            });
+            current = b;
+            loads.increment();
+            lastLoadMillis = System.currentTimeMillis() - started;
+        } catch (Exception e) {
+            if (!closed)
+                e.printStackTrace();
+        } finally {
+            building = null;
+            loader = null;
+            loading.set(false);
+        }
+    }
+
+    private static long estimateRecords(PooledDb db) {
+        try {
+            Object n = db.queryOne("SELECT reltuples::bigint FROM pg_class WHERE relname = 'ledger'");
+            return n instanceof Number ? ((Number) n).longValue() : 0;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
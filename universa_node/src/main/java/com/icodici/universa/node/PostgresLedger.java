@@ -22,7 +22,6 @@ import net.sergeych.tools.Binder;
 import net.sergeych.tools.JsonTool;
 import net.sergeych.utils.Ut;
 
-import java.lang.ref.WeakReference;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -52,19 +51,33 @@ public class PostgresLedger implements Ledger {
 
     private boolean sqlite = false;
 
-    private Map<HashId, WeakReference<StateRecord>> cachedRecords = new WeakHashMap<>();
-    private Map<Long, WeakReference<StateRecord>> cachedRecordsById = new WeakHashMap<>();
-    private boolean useCache = true;
+    private final static int RECORDS_CACHE_SIZE = 100000;
+
+    private final StateRecordCache cachedRecords = new StateRecordCache(RECORDS_CACHE_SIZE);
+    private volatile boolean useCache = true;
+    // records saved in the current transaction of the thread, to drop from the cache if it is rolled back
+    private final ThreadLocal<List<StateRecord>> savedInTransaction = new ThreadLocal<>();
+
+    private volatile GroupCommitter groupCommitter;
+
+    private volatile LedgerHashFilter hashFilter;
 
     public PostgresLedger(String connectionString, Properties properties) throws SQLException {
-        dbPool = new DbPool(connectionString, properties, MAX_CONNECTIONS);
+        dbPool = new DbPool(connectionString, serverPrepared(properties), MAX_CONNECTIONS);
         init(dbPool);
     }
 
     public PostgresLedger(String connectionString) throws SQLException {
-        Properties properties = new Properties();
-        dbPool = new DbPool(connectionString, properties, MAX_CONNECTIONS);
-        init(dbPool);
+        this(connectionString, new Properties());
+    }
+
+    /**
+     * Ledger statements are cached by connections and executed many times, so let the driver prepare them on the
+     * server from the first execution, instead of the default fifth.
+     */
+    private static Properties serverPrepared(Properties properties) {
+        properties.putIfAbsent("prepareThreshold", "1");
+        return properties;
     }
 
     private void init(DbPool dbPool) throws SQLException {
@@ -97,6 +110,8 @@ public class PostgresLedger implements Ledger {
             StateRecord cached = getFromCache(itemId);
             if (cached != null)
                 return cached;
+            if (isAbsent(itemId))
+                return null;
             try (ResultSet rs = inPool(db -> db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1", itemId.getDigest()))) {
                 if (rs != null) {
                     StateRecord record = new StateRecord(this, rs);
@@ -107,6 +122,7 @@ public class PostgresLedger implements Ledger {
                 e.printStackTrace();
                 throw e;
             }
+            notFound(itemId);
             return null;
         });
         if (sr != null && sr.isExpired()) {
@@ -117,48 +133,43 @@ public class PostgresLedger implements Ledger {
     }
 
     private StateRecord getFromCache(HashId itemId) {
-        if (useCache) {
-            synchronized (cachedRecords) {
-                WeakReference<StateRecord> ref = cachedRecords.get(itemId);
-                if (ref == null)
-                    return null;
-                StateRecord r = ref.get();
-                if (r == null) {
-                    cachedRecords.remove(itemId);
-                    return null;
-                }
-                return r;
-            }
-        } else
-            return null;
+        return useCache ? cachedRecords.get(itemId) : null;
     }
 
     private StateRecord getFromCacheById(long recordId) {
-        if (useCache) {
-            synchronized (cachedRecordsById) {
-                WeakReference<StateRecord> ref = cachedRecordsById.get(recordId);
-                if (ref == null)
-                    return null;
-                StateRecord r = ref.get();
-                if (r == null) {
-                    cachedRecordsById.remove(recordId);
-                    return null;
-                }
-                return r;
-            }
-        } else
-            return null;
+        return useCache ? cachedRecords.getById(recordId) : null;
     }
 
     private void putToCache(StateRecord r) {
-        if (useCache) {
-            synchronized (cachedRecords) {
-                cachedRecords.put(r.getId(), new WeakReference<StateRecord>(r));
-            }
-            synchronized (cachedRecordsById) {
-                cachedRecordsById.put(r.getRecordId(), new WeakReference<StateRecord>(r));
-            }
-        }
+        if (useCache)
+            cachedRecords.put(r);
+    }
+
+    private boolean isAbsent(HashId itemId) {
+        LedgerHashFilter hf = hashFilter;
+        return hf != null && hf.isAbsent(itemId);
+    }
+
+    private void notFound(HashId itemId) {
+        LedgerHashFilter hf = hashFilter;
+        if (hf != null)
+            hf.notFound(itemId);
+    }
+
+    /**
+     * Add hash of the record that is being inserted to the hash filter. Should be called both before the insert and
+     * after it, see {@link LedgerHashFilter}.
+     */
+    private void addToHashFilter(HashId itemId) {
+        LedgerHashFilter hf = hashFilter;
+        if (hf != null)
+            hf.add(itemId);
+    }
+
+    private void removedFromLedger(long count) {
+        LedgerHashFilter hf = hashFilter;
+        if (hf != null && count > 0)
+            hf.removed(count);
     }
 
 
@@ -180,6 +191,195 @@ public class PostgresLedger implements Ledger {
         }
     }
 
+    /**
+     * Max number of items in one query of bulk operations.
+     */
+    private final static int BULK_CHUNK_SIZE = 500;
+
+    /**
+     * Sizes chunks of bulk operations are padded to. Statement text depends on the number of items, so unpadded
+     * chunks make a statement per size and thrash the statement cache; padded ones make only a few.
+     */
+    private final static int[] BULK_PADDED_SIZES = {1, 8, 32, 128, BULK_CHUNK_SIZE};
+
+    /**
+     * Pad the chunk to the nearest of {@link #BULK_PADDED_SIZES} repeating its last item. Queries take repeated items
+     * as one.
+     */
+    private static <T> List<T> padded(List<T> chunk) {
+        int size = BULK_CHUNK_SIZE;
+        for (int s : BULK_PADDED_SIZES) {
+            if (s >= chunk.size()) {
+                size = s;
+                break;
+            }
+        }
+        List<T> result = new ArrayList<>(size);
+        result.addAll(chunk);
+        T last = chunk.get(chunk.size() - 1);
+        while (result.size() < size)
+            result.add(last);
+        return result;
+    }
+
+    private static String placeholders(int count, String one) {
+        StringJoiner sj = new StringJoiner(",");
+        for (int i = 0; i < count; i++)
+            sj.add(one);
+        return sj.toString();
+    }
+
+    private static <T> List<List<T>> chunks(Collection<T> all) {
+        List<List<T>> result = new ArrayList<>();
+        List<T> chunk = null;
+        for (T x : all) {
+            if (chunk == null || chunk.size() == BULK_CHUNK_SIZE) {
+                chunk = new ArrayList<>(Math.min(BULK_CHUNK_SIZE, all.size()));
+                result.add(chunk);
+            }
+            chunk.add(x);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        Set<HashId> missing = new LinkedHashSet<>();
+        for (HashId id : ids) {
+            StateRecord cached = getFromCache(id);
+            if (cached != null)
+                result.put(id, cached);
+            else if (!isAbsent(id))
+                missing.add(id);
+        }
+        for (List<HashId> unpadded : chunks(missing)) {
+            List<HashId> chunk = padded(unpadded);
+            protect(() -> {
+                try (
+                        PooledDb db = dbPool.db();
+                        PreparedStatement statement = db.statement(
+                                "SELECT * FROM ledger WHERE hash IN (" + placeholders(chunk.size(), "?") + ")")
+                ) {
+                    for (int i = 0; i < chunk.size(); i++)
+                        statement.setBytes(i + 1, chunk.get(i).getDigest());
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            StateRecord record = new StateRecord(this, rs);
+                            putToCache(record);
+                            result.put(record.getId(), record);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    throw e;
+                }
+                return null;
+            });
+        }
+        for (HashId id : missing)
+            if (!result.containsKey(id))
+                notFound(id);
+        result.values().removeIf(r -> {
+            if (!r.isExpired())
+                return false;
+            r.destroy();
+            return true;
+        });
+        return result;
+    }
+
+    @Override
+    public Map<HashId, StateRecord> createOutputLockRecords(long creatorRecordId, Collection<HashId> newItemHashIds) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        // like createOutputLockRecord, items that are in the ledger are skipped, and expired records are destroyed
+        Set<HashId> absent = new LinkedHashSet<>(newItemHashIds);
+        absent.removeAll(getRecords(absent).keySet());
+        for (List<HashId> chunk : chunks(absent)) {
+            Map<HashId, StateRecord> records = new HashMap<>();
+            for (HashId id : chunk) {
+                StateRecord r = new StateRecord(this);
+                r.setState(ItemState.LOCKED_FOR_CREATION);
+                r.setLockedByRecordId(creatorRecordId);
+                r.setId(id);
+                records.put(id, r);
+            }
+            // repeated rows of the padded chunk are skipped by "on conflict do nothing"
+            List<HashId> paddedChunk = padded(chunk);
+            try (
+                    PooledDb db = dbPool.db();
+                    PreparedStatement statement = db.statement(
+                            "insert into ledger(hash,state,created_at, expires_at, locked_by_id) values " +
+                                    placeholders(paddedChunk.size(), "(?,?,?,?,?)") +
+                                    " on conflict do nothing returning id, hash")
+            ) {
+                chunk.forEach(this::addToHashFilter);
+                int n = 1;
+                for (HashId id : paddedChunk) {
+                    StateRecord r = records.get(id);
+                    statement.setBytes(n++, id.getDigest());
+                    statement.setInt(n++, r.getState().ordinal());
+                    statement.setLong(n++, Ut.unixTime(r.getCreatedAt()));
+                    statement.setLong(n++, Ut.unixTime(r.getExpiresAt()));
+                    statement.setLong(n++, creatorRecordId);
+                }
+                // items that are created concurrently are not returned
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        StateRecord r = records.get(HashId.withDigest(rs.getBytes(2)));
+                        r.setRecordId(rs.getLong(1));
+                        putToCache(r);
+                        result.put(r.getId(), r);
+                    }
+                }
+                chunk.forEach(this::addToHashFilter);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void saveAll(Collection<StateRecord> records) {
+        if (records.isEmpty())
+            return;
+        List<StateRecord> list = new ArrayList<>(records);
+        List<GroupCommitter.Write> writes = new ArrayList<>(list.size());
+        for (StateRecord r : list) {
+            if (r.getLedger() == null)
+                r.setLedger(this);
+            else if (r.getLedger() != this)
+                throw new IllegalStateException("can't save with a different ledger (make a copy!)");
+            GroupCommitter.Write write = new GroupCommitter.Write(r);
+            if (write.isInsert())
+                addToHashFilter(r.getId());
+            writes.add(write);
+        }
+        try (PooledDb db = dbPool.db()) {
+            long[] ids = db.isInTransaction() ?
+                    GroupCommitter.writeBatch(db, writes) :
+                    db.transaction(() -> GroupCommitter.writeBatch(db, writes));
+            List<StateRecord> saved = savedInTransaction.get();
+            for (int i = 0; i < list.size(); i++) {
+                StateRecord r = list.get(i);
+                if (writes.get(i).isInsert()) {
+                    r.setRecordId(ids[i]);
+                    addToHashFilter(r.getId());
+                }
+                putToCache(r);
+                if (saved != null)
+                    saved.add(r);
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            throw new Failure("StateRecords save failed:" + se);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new Failure("StateRecords save failed:" + e);
+        }
+    }
+
     @Override
     public StateRecord getLockOwnerOf(StateRecord rc) {
         StateRecord cached = getFromCacheById(rc.getLockedByRecordId());
@@ -214,8 +414,10 @@ public class PostgresLedger implements Ledger {
         return protect(() -> {
             StateRecord record = getFromCache(itemId);
             if (record == null) {
+                addToHashFilter(itemId);
                 try (ResultSet rs = inPool(db -> db.queryRow("select * from sr_find_or_create(?)", itemId.getDigest()))) {
                     record = new StateRecord(this, rs);
+                    addToHashFilter(itemId);
                     putToCache(record);
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -575,6 +777,8 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public void close() {
+        disableGroupCommit();
+        disableHashFilter();
         try {
             dbPool.close();
         } catch (Exception e) {
@@ -635,11 +839,26 @@ public class PostgresLedger implements Ledger {
         return protect(() -> {
             // as Rollback exception is instanceof Db.Rollback, it will work as supposed by default:
             // rethrow unchecked exceotions and return null on rollback.
+            boolean outermost = savedInTransaction.get() == null;
+            if (outermost)
+                savedInTransaction.set(new ArrayList<>());
+            boolean[] done = new boolean[1];
             try (Db db = dbPool.db()) {
-                return db.transaction(() -> callable.call());
+                return db.transaction(() -> {
+                    T result = callable.call();
+                    done[0] = true;
+                    return result;
+                });
             } catch (Exception e) {
                 e.printStackTrace();
                 throw e;
+            } finally {
+                if (outermost) {
+                    // cached instances keep state that is not in the ledger anymore
+                    if (!done[0])
+                        savedInTransaction.get().forEach(cachedRecords::remove);
+                    savedInTransaction.remove();
+                }
             }
         });
     }
@@ -666,12 +885,8 @@ public class PostgresLedger implements Ledger {
                 d.update("DELETE FROM ledger WHERE id = ?", recordId);
                 return null;
             });
-            synchronized (cachedRecords) {
-                cachedRecords.remove(record.getId());
-            }
-            synchronized (cachedRecordsById) {
-                cachedRecordsById.remove(record.getRecordId());
-            }
+            cachedRecords.remove(record);
+            removedFromLedger(1);
             return null;
         });
     }
@@ -717,41 +932,29 @@ public class PostgresLedger implements Ledger {
         } else if (stateRecord.getLedger() != this)
             throw new IllegalStateException("can't save with a different ledger (make a copy!)");
 
-        // TODO: probably, it should take a PooledDb as an argument and reuse it
-        try (PooledDb db = dbPool.db()) {
-            if (stateRecord.getRecordId() == 0) {
-                try (
-                        PreparedStatement statement =
-                                db.statementReturningKeys(
-                                        "insert into ledger(hash,state,created_at, expires_at, locked_by_id) values(?,?,?,?,?);"
-                                )
-                ) {
-                    statement.setBytes(1, stateRecord.getId().getDigest());
-                    statement.setInt(2, stateRecord.getState().ordinal());
-                    statement.setLong(3, Ut.unixTime(stateRecord.getCreatedAt()));
-                    statement.setLong(4, Ut.unixTime(stateRecord.getExpiresAt()));
-                    statement.setLong(5, stateRecord.getLockedByRecordId());
-                    db.updateWithStatement(statement);
-                    try (ResultSet keys = statement.getGeneratedKeys()) {
-                        if (!keys.next())
-                            throw new RuntimeException("generated keys are not supported");
-                        long id = keys.getLong(1);
-                        stateRecord.setRecordId(id);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw e;
-                }
-                putToCache(stateRecord);
+        GroupCommitter.Write write = new GroupCommitter.Write(stateRecord);
+        GroupCommitter gc = groupCommitter;
+        try {
+            if (write.isInsert())
+                addToHashFilter(stateRecord.getId());
+            long id;
+            // inside transaction record should be written with it, as a part of it
+            if (gc != null && !dbPool.isInTransaction()) {
+                id = gc.write(write);
             } else {
-                db.update("update ledger set state=?, created_at=?, expires_at=?, locked_by_id=? where id=?",
-                        stateRecord.getState().ordinal(),
-                        Ut.unixTime(stateRecord.getCreatedAt()),
-                        Ut.unixTime(stateRecord.getExpiresAt()),
-                        stateRecord.getLockedByRecordId(),
-                        stateRecord.getRecordId()
-                );
+                try (PooledDb db = dbPool.db()) {
+                    id = write.writeWith(db);
+                }
+            }
+            if (write.isInsert()) {
+                stateRecord.setRecordId(id);
+                addToHashFilter(stateRecord.getId());
             }
+            // saved instance replaces any other one in the cache
+            putToCache(stateRecord);
+            List<StateRecord> saved = savedInTransaction.get();
+            if (saved != null)
+                saved.add(stateRecord);
         } catch (SQLException se) {
             se.printStackTrace();
             throw new Failure("StateRecord save failed:" + se);
@@ -760,6 +963,86 @@ public class PostgresLedger implements Ledger {
         }
     }
 
+    /**
+     * Enable group commit of {@link StateRecord}s: records saved by concurrent threads outside of transactions are
+     * written in one batch and transaction. Saving thread still waits until its record is committed.
+     *
+     * @param maxBatchSize is max number of records in one commit
+     * @param maxDelay is how long to wait for more records before the commit; zero to commit what is waiting at once
+     */
+    public synchronized void enableGroupCommit(int maxBatchSize, Duration maxDelay) {
+        disableGroupCommit();
+        groupCommitter = new GroupCommitter("ledger-group-commit", dbPool, maxBatchSize, maxDelay);
+    }
+
+    /**
+     * Disable group commit, so every {@link StateRecord} is written with its own statement.
+     */
+    public synchronized void disableGroupCommit() {
+        if (groupCommitter != null) {
+            groupCommitter.close();
+            groupCommitter = null;
+        }
+    }
+
+    /**
+     * Enable the Bloom filter of the ledger hashes, that lets to find out that the item is not in the ledger without
+     * a query. The filter is loaded in the background, and is used once loaded.
+     *
+     * @param expectedRecords is expected number of records in the ledger, the filter grows if there are more
+     * @param falsePositiveRate is target rate of items that are not in the ledger, but are not filtered out
+     */
+    public synchronized void enableHashFilter(long expectedRecords, double falsePositiveRate) {
+        disableHashFilter();
+        hashFilter = new LedgerHashFilter("ledger-hash-filter", dbPool, expectedRecords, falsePositiveRate);
+        hashFilter.start();
+    }
+
+    public synchronized void disableHashFilter() {
+        if (hashFilter != null) {
+            hashFilter.close();
+            hashFilter = null;
+        }
+    }
+
+    /**
+     * @return {@link Binder} with size, memory use and false positive rate of the hash filter, or null if it is
+     * disabled
+     */
+    public Binder getHashFilterStats() {
+        LedgerHashFilter hf = hashFilter;
+        return hf == null ? null : hf.getStats();
+    }
+
+    /**
+     * @return {@link Binder} with size, hits and misses of the {@link StateRecord}s cache
+     */
+    public Binder getRecordsCacheStats() {
+        return cachedRecords.getStats();
+    }
+
+    /**
+     * @return {@link Binder} with active, idle and waiting connections of the ledger pool, and its acquire times
+     */
+    public Binder getDbPoolStats() {
+        return dbPool.getStats();
+    }
+
+    /**
+     * @return {@link Binder} with hits, misses and evictions of prepared statement caches of the ledger connections
+     */
+    public Binder getStatementCacheStats() {
+        return dbPool.getStatementCacheStats();
+    }
+
+    /**
+     * @return {@link Binder} with group commit stats, or null if group commit is disabled
+     */
+    public Binder getGroupCommitStats() {
+        GroupCommitter gc = groupCommitter;
+        return gc == null ? null : gc.getStats();
+    }
+
 
     @Override
     public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
@@ -794,7 +1077,6 @@ public class PostgresLedger implements Ledger {
         } else {
             this.useCache = false;
             cachedRecords.clear();
-            cachedRecordsById.clear();
         }
     }
 
@@ -965,7 +1247,9 @@ public class PostgresLedger implements Ledger {
 
             if (!isPermanetMode) {
                 sqlText = "delete from ledger where expires_at < ?;";
-                db.update(sqlText, now);
+                try (PreparedStatement statement = db.statement(sqlText, now)) {
+                    removedFromLedger(statement.executeUpdate());
+                }
             }
 
             sqlText = "delete from items where keepTill < ?;";
@@ -12,6 +12,8 @@ import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * The state of some {@link HashId} - identifiable item (e.g. {@link Approvable} to be sotred in the {@link Ledger}
@@ -210,11 +212,23 @@ public class StateRecord implements HashIdentifiable, IStateRecord {
      * @return locked record id null if it could not be node
      */
     public StateRecord lockToRevoke(HashId idToRevoke) {
+        checkLedgerExists();
+        return lockToRevoke(ledger.getRecord(idToRevoke), true);
+    }
+
+    /**
+     * Lock the already found record as being revoked by this one, like {@link #lockToRevoke(HashId)} does.
+     *
+     * @param lockedRecord is record of the item should be revoked, null if it is not in the ledger
+     * @param save is false to not save locked record, so many of them could be saved at once with
+     * {@link Ledger#saveAll(Collection)}
+     * @return locked record id null if it could not be node
+     */
+    public StateRecord lockToRevoke(StateRecord lockedRecord, boolean save) {
         checkLedgerExists();
         if (state != ItemState.PENDING)
             throw new IllegalStateException("only pending records are allowed to lock others. found:  " + state);
 
-        StateRecord lockedRecord = ledger.getRecord(idToRevoke);
         if (lockedRecord == null)
             return null;
         ItemState targetState = ItemState.LOCKED;
@@ -238,7 +252,8 @@ public class StateRecord implements HashIdentifiable, IStateRecord {
 
         lockedRecord.setLockedByRecordId(recordId);
         lockedRecord.setState(targetState);
-        lockedRecord.save();
+        if (save)
+            lockedRecord.save();
 
         return lockedRecord;
     }
@@ -318,6 +333,21 @@ public class StateRecord implements HashIdentifiable, IStateRecord {
         return newRecord;
     }
 
+    /**
+     * Create records, locked for approval, for many new items at once, like {@link #createOutputLockRecord(HashId)}
+     * does for one.
+     *
+     * @param ids ids of the new items to be locked for approval
+     * @return created records by the items ids; items that already exist are missing
+     */
+    public Map<HashId, StateRecord> createOutputLockRecords(Collection<HashId> ids) {
+        checkLedgerExists();
+        checkHaveRecordId();
+        if (state != ItemState.PENDING)
+            throw new IllegalStateException("wrong state to createOutputLockRecords: " + state);
+        return ledger.createOutputLockRecords(recordId, ids);
+    }
+
     private void checkHaveRecordId() {
         if (recordId == 0)
             throw new IllegalStateException("the record must be created");
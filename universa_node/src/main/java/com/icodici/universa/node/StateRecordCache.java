@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of {@link StateRecord}s of the ledger, found both by hash and by record id with the same single map lookup.
+ * Last {@code capacity} loaded or found records are held strongly in a ring, so the hit rate does not depend on GC,
+ * and older ones stay in the cache while anybody else holds them, so all the users of the record that is being
+ * processed share the same instance.
+ */
+class StateRecordCache {
+
+    /**
+     * Reference to the cached record that knows its keys, to remove them once the record is collected.
+     */
+    private static final class Ref extends WeakReference<StateRecord> {
+        private final HashId hash;
+        private final long recordId;
+
+        private Ref(StateRecord record, ReferenceQueue<StateRecord> queue) {
+            super(record, queue);
+            hash = record.getId();
+            recordId = record.getRecordId();
+        }
+    }
+
+    // both HashId and Long record id keys
+    private final ConcurrentHashMap<Object, Ref> refs = new ConcurrentHashMap<>();
+    private final ReferenceQueue<StateRecord> collected = new ReferenceQueue<>();
+    private final AtomicReferenceArray<StateRecord> recent;
+    private final AtomicLong nextRecent = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    StateRecordCache(int capacity) {
+        recent = new AtomicReferenceArray<>(capacity);
+    }
+
+    StateRecord get(HashId hash) {
+        return get((Object) hash);
+    }
+
+    StateRecord getById(long recordId) {
+        return get((Object) recordId);
+    }
+
+    private StateRecord get(Object key) {
+        Ref ref = refs.get(key);
+        StateRecord r = ref == null ? null : ref.get();
+        if (r == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        hold(r);
+        return r;
+    }
+
+    /**
+     * Put the record to the cache, replacing any other instance of it.
+     *
+     * @param record is record loaded from or saved to the ledger
+     */
+    void put(StateRecord record) {
+        removeCollected();
+        Ref ref = new Ref(record, collected);
+        refs.put(ref.hash, ref);
+        if (ref.recordId != 0)
+            refs.put(ref.recordId, ref);
+        hold(record);
+    }
+
+    /**
+     * Remove the record from the cache, e.g. when it is destroyed.
+     *
+     * @param record is record to remove
+     */
+    void remove(StateRecord record) {
+        refs.remove(record.getId());
+        refs.remove(record.getRecordId());
+    }
+
+    void clear() {
+        refs.clear();
+        for (int i = 0; i < recent.length(); i++)
+            recent.set(i, null);
+    }
+
+    /**
+     * @return {@link Binder} with number of cached records, count of records held strongly, hits and misses
+     */
+    Binder getStats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        return Binder.of(
+                // every record is cached by hash and by id
+                "records", refs.size() / 2,
+                "capacity", recent.length(),
+                "hits", h,
+                "misses", m,
+                "hitRate", h + m == 0 ? 0.0 : (double) h / (h + m)
+        );
+    }
+
+    private void hold(StateRecord record) {
+        int n = (int) (nextRecent.getAndIncrement() % recent.length());
+        recent.set(n, record);
+    }
+
+    private void removeCollected() {
+        Ref ref;
+        while ((ref = (Ref) collected.poll()) != null) {
+            refs.remove(ref.hash, ref);
+            refs.remove(ref.recordId, ref);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Derives delays of {@link net.sergeych.tools.RunnableWithDynamicPeriod} schedules from observed latency of other
+ * nodes answers. Last {@link #SAMPLES_PER_PEER} answer times of each peer are kept; the {@link #PERCENTILE} of all of
+ * them is recalculated not more often than {@link #RECALCULATE_MILLIS}. Then n-th delay of a schedule is that latency
+ * times 2<sup>n-1</sup>, not less than {@link #MIN_DELAY_MILLIS} and not more than n-th delay of the configured
+ * schedule, and the first delay is taken from the configured schedule as is. Until there are
+ * {@link #MIN_SAMPLES} answers, configured schedules are used.
+ */
+public class AdaptiveSchedule {
+
+    static public final int SAMPLES_PER_PEER = 32;
+    static public final int MIN_SAMPLES = 16;
+    static public final double PERCENTILE = 0.9;
+    static public final int MIN_DELAY_MILLIS = 20;
+    static public final long RECALCULATE_MILLIS = 1000;
+
+    private final ConcurrentHashMap<Integer, Samples> peers = new ConcurrentHashMap<>();
+    private volatile int latencyMillis = -1;
+    private volatile int samplesCount = 0;
+    private volatile long recalculatedAt = 0;
+
+    /**
+     * Ring of last answer times of one peer.
+     */
+    private static final class Samples {
+        private final int[] millis = new int[SAMPLES_PER_PEER];
+        private int count = 0;
+        private int next = 0;
+
+        private synchronized void add(int value) {
+            millis[next] = value;
+            next = (next + 1) % SAMPLES_PER_PEER;
+            if (count < SAMPLES_PER_PEER)
+                count++;
+        }
+
+        private synchronized int copyTo(int[] target, int offset) {
+            System.arraycopy(millis, 0, target, offset, count);
+            return count;
+        }
+    }
+
+    /**
+     * Register time the node took to answer.
+     *
+     * @param node is node that answered
+     * @param nanos is time from the request to the answer
+     */
+    public void registerAnswer(NodeInfo node, long nanos) {
+        int millis = (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(nanos));
+        peers.computeIfAbsent(node.getNumber(), n -> new Samples()).add(millis);
+    }
+
+    /**
+     * @return {@link #PERCENTILE} of answer latency in milliseconds, or -1 if there are not enough answers yet
+     */
+    public int getLatencyMillis() {
+        long now = System.currentTimeMillis();
+        if (now - recalculatedAt >= RECALCULATE_MILLIS) {
+            recalculatedAt = now;
+            recalculate();
+        }
+        return latencyMillis;
+    }
+
+    /**
+     * Adapt configured schedule to observed latency.
+     *
+     * @param configured is schedule from the {@link Config}, in milliseconds
+     *
+     * @return schedule to use, in milliseconds; the configured one if there are not enough answers yet
+     */
+    public List<Integer> adapt(List<Integer> configured) {
+        int latency = getLatencyMillis();
+        if (latency < 0 || configured.isEmpty())
+            return configured;
+        List<Integer> result = new ArrayList<>(configured.size());
+        result.add(configured.get(0));
+        long delay = Math.max(MIN_DELAY_MILLIS, latency);
+        for (int i = 1; i < configured.size(); i++) {
+            result.add((int) Math.min(configured.get(i), delay));
+            delay *= 2;
+        }
+        return result;
+    }
+
+    /**
+     * @return {@link Binder} with observed answer latency, count of its samples and count of peers they came from
+     */
+    public Binder getStats() {
+        return Binder.of(
+                "latencyMillis", getLatencyMillis(),
+                "samples", samplesCount,
+                "peers", peers.size()
+        );
+    }
+
+    private void recalculate() {
+        int[] all = new int[peers.size() * SAMPLES_PER_PEER];
+        int count = 0;
+        for (Samples s : peers.values()) {
+            // peers could be added since the array is allocated
+            if (count + SAMPLES_PER_PEER > all.length)
+                all = Arrays.copyOf(all, all.length + SAMPLES_PER_PEER);
+            count += s.copyTo(all, count);
+        }
+        samplesCount = count;
+        if (count < MIN_SAMPLES) {
+            latencyMillis = -1;
+            return;
+        }
+        Arrays.sort(all, 0, count);
+        latencyMillis = all[Math.min(count - 1, (int) (count * PERCENTILE))];
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides if the node accepts new registrations. Load of the node is the largest of three ratios: items in flight to
+ * the configured maximum, filling of executor queues to {@link BoundedExecutor#HIGH_WATERMARK}, and average ledger
+ * latency to the configured maximum. Latency average is taken from ledger operations and halves each
+ * {@link #LATENCY_HALF_LIFE_MILLIS} without them, so the node that stopped admitting because of a slow ledger starts
+ * again when it is quiet. Paid registrations are accepted until the load reaches 1, free ones only until
+ * {@link #FREE_SHARE}, so under overload free registrations are refused first. Refused client gets a hint how long to
+ * wait before the retry, which grows with the load.
+ */
+public class AdmissionController {
+
+    static public final double FREE_SHARE = 0.75;
+    static public final long MIN_RETRY_AFTER_MILLIS = 1000;
+    static public final long MAX_RETRY_AFTER_MILLIS = 30000;
+    // weight of a new sample in the ledger latency average
+    static public final double LATENCY_WEIGHT = 0.1;
+    // time the ledger latency average takes to halve when there are no samples
+    static public final long LATENCY_HALF_LIFE_MILLIS = 5000;
+
+    private final IntSupplier inFlight;
+    private final DoubleSupplier queueFill;
+    private final Config config;
+    private final LongSupplier nanoClock;
+
+    private volatile Latency ledgerLatency;
+
+    private final LongAdder admittedPaid = new LongAdder();
+    private final LongAdder admittedFree = new LongAdder();
+    private final LongAdder rejectedPaid = new LongAdder();
+    private final LongAdder rejectedFree = new LongAdder();
+
+    /**
+     * Create the controller.
+     *
+     * @param config is node config with limits of items in flight and of ledger latency
+     * @param inFlight gives count of items being processed
+     * @param queueFill gives filling of the most filled executor queue, from 0 to 1
+     */
+    public AdmissionController(Config config, IntSupplier inFlight, DoubleSupplier queueFill) {
+        this(config, inFlight, queueFill, System::nanoTime);
+    }
+
+    /**
+     * Create the controller with the given clock, for tests.
+     *
+     * @param nanoClock is monotonic time in nanoseconds, as {@link System#nanoTime()}
+     */
+    AdmissionController(Config config, IntSupplier inFlight, DoubleSupplier queueFill, LongSupplier nanoClock) {
+        this.config = config;
+        this.inFlight = inFlight;
+        this.queueFill = queueFill;
+        this.nanoClock = nanoClock;
+        ledgerLatency = new Latency(0, nanoClock.getAsLong());
+    }
+
+    /**
+     * Register time some ledger operation took.
+     *
+     * @param nanos is the operation time
+     */
+    public void registerLedgerLatency(long nanos) {
+        // races could lose some samples, it is ok for the average
+        long now = nanoClock.getAsLong();
+        double current = ledgerLatency.at(now);
+        ledgerLatency = new Latency(current + (nanos - current) * LATENCY_WEIGHT, now);
+    }
+
+    /**
+     * @return ledger latency average, decayed for the time since the last sample
+     */
+    private double getLedgerLatencyNanos() {
+        return ledgerLatency.at(nanoClock.getAsLong());
+    }
+
+    /**
+     * @return current load of the node, where 1 means no more paid registrations could be accepted
+     */
+    public double getLoad() {
+        double load = (double) inFlight.getAsInt() / config.getMaxItemsInFlight();
+        load = Math.max(load, queueFill.getAsDouble() / BoundedExecutor.HIGH_WATERMARK);
+        load = Math.max(load, getLedgerLatencyNanos() / config.getMaxLedgerLatency().toNanos());
+        return load;
+    }
+
+    /**
+     * Decide if the new registration is accepted.
+     *
+     * @param paid is true for registrations with payment
+     *
+     * @return 0 if the registration is accepted, otherwise milliseconds to wait before the retry
+     */
+    public long admit(boolean paid) {
+        double threshold = paid ? 1 : FREE_SHARE;
+        double load = getLoad();
+        if (load < threshold) {
+            (paid ? admittedPaid : admittedFree).increment();
+            return 0;
+        }
+        (paid ? rejectedPaid : rejectedFree).increment();
+        long retryAfter = (long) (MIN_RETRY_AFTER_MILLIS * (1 + (load - threshold) * 10));
+        return Math.min(MAX_RETRY_AFTER_MILLIS, retryAfter);
+    }
+
+    /**
+     * @return {@link Binder} with current load, its parts, and counts of accepted and refused registrations
+     */
+    public Binder getStats() {
+        return Binder.of(
+                "load", getLoad(),
+                "inFlight", inFlight.getAsInt(),
+                "queueFill", queueFill.getAsDouble(),
+                "ledgerLatencyMicros", TimeUnit.NANOSECONDS.toMicros((long) getLedgerLatencyNanos()),
+                "admittedPaid", admittedPaid.sum(),
+                "admittedFree", admittedFree.sum(),
+                "rejectedPaid", rejectedPaid.sum(),
+                "rejectedFree", rejectedFree.sum()
+        );
+    }
+
+    /**
+     * Latency average with the time of its last sample, replaced as a whole so the two always match.
+     */
+    private static final class Latency {
+        private final double nanos;
+        private final long sampledAt;
+
+        private Latency(double nanos, long sampledAt) {
+            this.nanos = nanos;
+            this.sampledAt = sampledAt;
+        }
+
+        private double at(long now) {
+            long elapsed = Math.max(0, now - sampledAt);
+            return nanos * Math.pow(0.5, (double) elapsed / TimeUnit.MILLISECONDS.toNanos(LATENCY_HALF_LIFE_MILLIS));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size thread pool with a bounded queue of tasks. Tasks submitted to the full queue never run in the submitting
+ * thread, which could hold locks: they are counted as rejected and wait in the deferred queue of the same capacity,
+ * which is moved to the pool in submission order through the scheduler each {@link #RETRY_DELAY_MILLIS} while there is
+ * room. While some tasks are deferred, new ones are deferred after them, so the order is kept. When the deferred queue
+ * is full too, the task is dropped, counted, and cancelled if it is a {@link Future}. Tasks that are not worth waiting
+ * for, such as network notifications, are given with {@link #executeOrDrop(Runnable)} and are dropped at once when
+ * the pool queue is full.
+ * <p>
+ * The pool is {@link #isSaturated() saturated} when its queue is filled above {@link #HIGH_WATERMARK}, so new work
+ * could be refused before it comes to the pool at all.
+ */
+public class BoundedExecutor extends ThreadPoolExecutor {
+
+    static public final double HIGH_WATERMARK = 0.75;
+
+    /**
+     * Delay between attempts to move deferred tasks to the pool.
+     */
+    static public final long RETRY_DELAY_MILLIS = 50;
+
+    private final String name;
+    private final int queueCapacity;
+    private final ScheduledExecutorService retryScheduler;
+    private final ArrayBlockingQueue<Runnable> deferred;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Create the pool.
+     *
+     * @param name is name of the pool and its threads
+     * @param threads is number of threads
+     * @param queueCapacity is maximum number of tasks waiting for a thread, and also of deferred tasks
+     * @param priority is priority of the threads
+     * @param retryScheduler is scheduler to move deferred tasks to the pool with
+     */
+    public BoundedExecutor(String name, int threads, int queueCapacity, int priority,
+                           ScheduledExecutorService retryScheduler) {
+        super(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                namedThreads(name, priority));
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        this.retryScheduler = retryScheduler;
+        deferred = new ArrayBlockingQueue<>(queueCapacity);
+        setRejectedExecutionHandler((r, executor) -> rejected(r));
+    }
+
+    /**
+     * Task of {@link #executeOrDrop(Runnable)}.
+     */
+    private static final class DroppableTask implements Runnable {
+        private final Runnable task;
+
+        private DroppableTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        // deferred tasks go first
+        if (!deferred.isEmpty() && !(command instanceof DroppableTask) && !isShutdown()) {
+            rejected.increment();
+            defer(command);
+        } else {
+            super.execute(command);
+        }
+    }
+
+    /**
+     * Run the task if there is room in the queue, otherwise drop it and count as dropped.
+     *
+     * @param task is task to run
+     */
+    public void executeOrDrop(Runnable task) {
+        super.execute(new DroppableTask(task));
+    }
+
+    private void rejected(Runnable task) {
+        // tasks left on shutdown are dropped, as with the default policy
+        if (isShutdown())
+            return;
+        rejected.increment();
+        if (task instanceof DroppableTask)
+            drop(task);
+        else
+            defer(task);
+    }
+
+    private void defer(Runnable task) {
+        if (!deferred.offer(task)) {
+            drop(task);
+            return;
+        }
+        scheduleDrain();
+    }
+
+    private void drop(Runnable task) {
+        dropped.increment();
+        // whoever waits for the task is not left hanging
+        if (task instanceof Future)
+            ((Future<?>) task).cancel(false);
+    }
+
+    private void scheduleDrain() {
+        if (!drainScheduled.compareAndSet(false, true))
+            return;
+        try {
+            retryScheduler.schedule(this::drain, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the scheduler is shut down with the node, deferred tasks are dropped with it
+            drainScheduled.set(false);
+        }
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        if (isShutdown()) {
+            deferred.clear();
+            return;
+        }
+        Runnable task;
+        while (getQueue().remainingCapacity() > 0 && (task = deferred.poll()) != null)
+            super.execute(task);
+        if (!deferred.isEmpty())
+            scheduleDrain();
+    }
+
+    private static ThreadFactory namedThreads(String name, int priority) {
+        return new ThreadFactory() {
+
+            private final ThreadGroup threadGroup = new ThreadGroup(name);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(threadGroup, r);
+                thread.setName(name);
+                thread.setPriority(priority);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @return true if the queue is filled above {@link #HIGH_WATERMARK} or some tasks are deferred, and no more work
+     * should be accepted
+     */
+    public boolean isSaturated() {
+        return getQueue().size() >= queueCapacity * HIGH_WATERMARK || !deferred.isEmpty();
+    }
+
+    /**
+     * @return part of the queue capacity that is used, from 0 to 1
+     */
+    public double getQueueFill() {
+        return (double) getQueue().size() / queueCapacity;
+    }
+
+    /**
+     * @return number of tasks that found the queue full (or other tasks deferred) and were deferred or dropped
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of tasks that wait in the deferred queue
+     */
+    public long getDeferredCount() {
+        return deferred.size();
+    }
+
+    /**
+     * @return number of tasks that were dropped because both queues were full, or given to
+     * {@link #executeOrDrop(Runnable)} when the pool queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return {@link Binder} with threads, active threads, queued tasks, queue capacity, completed, rejected, deferred
+     * and dropped tasks counts, and saturation flag
+     */
+    public Binder getStats() {
+        return Binder.of(
+                "name", name,
+                "threads", getPoolSize(),
+                "active", getActiveCount(),
+                "queued", getQueue().size(),
+                "queueCapacity", queueCapacity,
+                "completed", getCompletedTaskCount(),
+                "rejected", getRejectedCount(),
+                "deferred", getDeferredCount(),
+                "dropped", getDroppedCount(),
+                "saturated", isSaturated()
+        );
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.DelayedScheduler;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Hierarchical timing wheel that expires records of node caches and counts delays of {@link TimingWheelScheduler}.
+ * Single wheel thread serves all caches, so caches (including short-living per-session ones) do not start threads of
+ * their own, and neither scheduling, cancelling nor expiring a record depends on how many records are there.
+ * <p>
+ * Time is counted in ticks of {@link #getTickMillis()}. Deadline tick is split into {@link #LEVELS} digits of
+ * {@link #WHEEL_BITS} bits; timeout is kept at the level of the highest digit where it differs from the current tick
+ * and moves down when the current tick reaches that digit. Timeouts that are too far for the top level wait in the
+ * overflow list and are re-placed each time the top level turns around.
+ * <p>
+ * Actions are run in the wheel thread, so they should be short: typically removing a record from a map.
+ */
+public class ExpirationWheel {
+
+    static private final int WHEEL_BITS = 6;
+    static private final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    static private final int WHEEL_MASK = WHEEL_SIZE - 1;
+    static private final int LEVELS = 4;
+
+    /**
+     * Default tick of the wheel. Cache records live minutes, so expiring them up to a second late does not matter.
+     */
+    static public final Duration DEFAULT_TICK = Duration.ofSeconds(1);
+
+    private static ExpirationWheel defaultWheel;
+
+    /**
+     * Wheel shared by caches that are created without an explicit one. Its thread is started on the first call.
+     *
+     * @return process-wide {@link ExpirationWheel}
+     */
+    public static synchronized ExpirationWheel getDefault() {
+        if (defaultWheel == null)
+            defaultWheel = new ExpirationWheel("default-expiration-wheel", DEFAULT_TICK);
+        return defaultWheel;
+    }
+
+    /**
+     * Scheduled action. Could be cancelled until it is run.
+     */
+    public static class Timeout implements DelayedScheduler.Cancellable {
+        private final long deadlineTick;
+        private final Runnable action;
+        private volatile boolean cancelled = false;
+
+        private Timeout(long deadlineTick, Runnable action) {
+            this.deadlineTick = deadlineTick;
+            this.action = action;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos;
+    private final LongSupplier nanoClock;
+    private final long startNanos;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // touched only by the wheel thread:
+    private final ArrayDeque<Timeout>[][] slots;
+    private final ArrayDeque<Timeout> overflow = new ArrayDeque<>();
+    private long currentTick = 0;
+
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger timeoutsCount = new AtomicInteger();
+
+    public ExpirationWheel(String name, Duration tick) {
+        this(name, tick, System::nanoTime);
+        thread.start();
+    }
+
+    /**
+     * Create wheel that starts no thread: time is taken from the clock and due ticks are run by {@link #runDueTicks()}
+     * in the calling thread. Lets tests drive the wheel without depending on timing of the wheel thread.
+     *
+     * @param tick is tick of the wheel
+     * @param nanoClock is monotonic time in nanoseconds, as {@link System#nanoTime()}
+     */
+    ExpirationWheel(Duration tick, LongSupplier nanoClock) {
+        this(null, tick, nanoClock);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ExpirationWheel(String name, Duration tick, LongSupplier nanoClock) {
+        tickNanos = tick.toNanos();
+        this.nanoClock = nanoClock;
+        startNanos = nanoClock.getAsLong();
+        slots = (ArrayDeque<Timeout>[][]) new ArrayDeque<?>[LEVELS][WHEEL_SIZE];
+        for (int level = 0; level < LEVELS; level++)
+            for (int i = 0; i < WHEEL_SIZE; i++)
+                slots[level][i] = new ArrayDeque<>();
+
+        if (name != null) {
+            thread = new Thread(this::run);
+            thread.setName(name);
+            thread.setDaemon(true);
+        } else {
+            thread = null;
+        }
+    }
+
+    /**
+     * Schedule the action to be run after the delay, rounded up to the wheel tick.
+     *
+     * @param delay is time to wait
+     * @param action is action to run in the wheel thread
+     * @return {@link Timeout} that could be cancelled
+     */
+    public Timeout schedule(Duration delay, Runnable action) {
+        long deadlineNanos = nanoClock.getAsLong() - startNanos + delay.toNanos();
+        long deadlineTick = (deadlineNanos + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(deadlineTick, action);
+        timeoutsCount.incrementAndGet();
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return count of scheduled timeouts, including cancelled ones that are not dropped from the wheel yet
+     */
+    public int getTimeoutsCount() {
+        return timeoutsCount.get();
+    }
+
+    public long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    public void shutdown() {
+        running = false;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Run all ticks that are due by the clock in the calling thread. Only for wheels created without a thread.
+     */
+    void runDueTicks() {
+        while (nanosToNextTick() <= 0)
+            nextTick();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                long sleepNanos = nanosToNextTick();
+                if (sleepNanos > 0)
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                if (!running)
+                    return;
+            }
+            nextTick();
+        }
+    }
+
+    private long nanosToNextTick() {
+        return startNanos + (currentTick + 1) * tickNanos - nanoClock.getAsLong();
+    }
+
+    private void nextTick() {
+        currentTick++;
+        Timeout t;
+        while ((t = incoming.poll()) != null)
+            place(t);
+        advance();
+    }
+
+    private void advance() {
+        // cascade higher levels whose digit has just changed, top to bottom
+        if ((currentTick & ((1L << (WHEEL_BITS * LEVELS)) - 1)) == 0)
+            replaceAll(overflow);
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0)
+                replaceAll(slots[level][digit(currentTick, level)]);
+        }
+        ArrayDeque<Timeout> due = slots[0][digit(currentTick, 0)];
+        Timeout t;
+        while ((t = due.poll()) != null)
+            expire(t);
+    }
+
+    private void replaceAll(ArrayDeque<Timeout> slot) {
+        if (slot.isEmpty())
+            return;
+        List<Timeout> timeouts = new ArrayList<>(slot);
+        slot.clear();
+        timeouts.forEach(this::place);
+    }
+
+    private void place(Timeout t) {
+        if (t.cancelled) {
+            timeoutsCount.decrementAndGet();
+            return;
+        }
+        if (t.deadlineTick <= currentTick) {
+            expire(t);
+            return;
+        }
+        // the highest digit where deadline differs from the current tick
+        int level = (63 - Long.numberOfLeadingZeros(t.deadlineTick ^ currentTick)) / WHEEL_BITS;
+        if (level >= LEVELS)
+            overflow.add(t);
+        else
+            slots[level][digit(t.deadlineTick, level)].add(t);
+    }
+
+    private void expire(Timeout t) {
+        timeoutsCount.decrementAndGet();
+        if (t.cancelled)
+            return;
+        try {
+            t.action.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int digit(long tick, int level) {
+        return (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Concurrent map which entries expire in maxAge since they were put. Expiration is driven by {@link ExpirationWheel},
+ * so the map starts no threads and expiring one entry does not scan the others.
+ *
+ * @param <K> is type of keys
+ * @param <V> is type of values
+ */
+public class ExpiringMap<K, V> {
+
+    private final ExpirationWheel wheel;
+    private final Duration maxAge;
+    private final BiConsumer<K, V> expirationListener;
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    private static class Entry<V> {
+        private final V value;
+        private final Instant expiresAt;
+        private ExpirationWheel.Timeout timeout;
+
+        private Entry(V value, Instant expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public ExpiringMap(ExpirationWheel wheel, Duration maxAge) {
+        this(wheel, maxAge, null);
+    }
+
+    /**
+     * Create map.
+     *
+     * @param wheel is {@link ExpirationWheel} to expire entries with
+     * @param maxAge is time an entry lives in the map
+     * @param expirationListener if not null, is called with key and value of each expired entry (not with removed
+     *                           or replaced ones)
+     */
+    public ExpiringMap(ExpirationWheel wheel, Duration maxAge, BiConsumer<K, V> expirationListener) {
+        this.wheel = wheel;
+        this.maxAge = maxAge;
+        this.expirationListener = expirationListener;
+    }
+
+    public V get(K key) {
+        Entry<V> e = entries.get(key);
+        return e != null ? e.value : null;
+    }
+
+    /**
+     * @param key is key of the entry
+     * @return time when the entry expires or null if there is no such entry
+     */
+    public Instant getExpiresAt(K key) {
+        Entry<V> e = entries.get(key);
+        return e != null ? e.expiresAt : null;
+    }
+
+    /**
+     * Put the value, replacing existing one if any. Expiration time of the entry starts from now.
+     *
+     * @param key is key of the entry
+     * @param value is value of the entry
+     */
+    public void put(K key, V value) {
+        Entry<V> e = newEntry(value);
+        Entry<V> old = entries.put(key, e);
+        if (old != null)
+            cancel(old);
+        scheduleExpiration(key, e);
+    }
+
+    /**
+     * Put the value if there is no entry with the key.
+     *
+     * @param key is key of the entry
+     * @param value is value of the entry
+     * @return existing value or null if the value is put
+     */
+    public V putIfAbsent(K key, V value) {
+        Entry<V> e = newEntry(value);
+        Entry<V> existing = entries.putIfAbsent(key, e);
+        if (existing != null)
+            return existing.value;
+        scheduleExpiration(key, e);
+        return null;
+    }
+
+    /**
+     * Apply the action to the value, putting the initial one first if there is no entry with the key. The entry can
+     * not expire or be replaced while the action runs, so the returned expiration time is that of the entry the
+     * action is applied to.
+     *
+     * @param key is key of the entry
+     * @param initial supplies value to put if there is no entry
+     * @param action is applied to the value; should be short as it blocks other updates of the entry
+     * @return time when the entry expires
+     */
+    public Instant compute(K key, Supplier<V> initial, Consumer<V> action) {
+        List<Entry<V>> created = new ArrayList<>(1);
+        Entry<V> e = entries.compute(key, (k, current) -> {
+            if (current == null) {
+                current = newEntry(initial.get());
+                created.add(current);
+            }
+            action.accept(current.value);
+            return current;
+        });
+        if (!created.isEmpty())
+            scheduleExpiration(key, e);
+        return e.expiresAt;
+    }
+
+    public V remove(K key) {
+        Entry<V> e = entries.remove(key);
+        if (e == null)
+            return null;
+        cancel(e);
+        return e.value;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return snapshot of current values
+     */
+    public List<V> values() {
+        List<V> result = new ArrayList<>(entries.size());
+        entries.values().forEach(e -> result.add(e.value));
+        return result;
+    }
+
+    public void forEach(BiConsumer<K, V> consumer) {
+        entries.forEach((k, e) -> consumer.accept(k, e.value));
+    }
+
+    /**
+     * Expire entries that are due right now without waiting for the wheel. It scans the whole map, so it is meant
+     * for tests and maintenance only.
+     */
+    public void cleanUp() {
+        Instant now = Instant.now();
+        entries.forEach((k, e) -> {
+            if (e.expiresAt.isBefore(now))
+                expire(k, e);
+        });
+    }
+
+    /**
+     * Remove all entries and cancel their expiration.
+     */
+    public void clear() {
+        entries.keySet().forEach(this::remove);
+    }
+
+    private Entry<V> newEntry(V value) {
+        return new Entry<>(value, Instant.now().plus(maxAge));
+    }
+
+    private void scheduleExpiration(K key, Entry<V> e) {
+        ExpirationWheel.Timeout timeout = wheel.schedule(maxAge, () -> expire(key, e));
+        synchronized (e) {
+            e.timeout = timeout;
+        }
+    }
+
+    private void cancel(Entry<V> e) {
+        synchronized (e) {
+            if (e.timeout != null)
+                e.timeout.cancel();
+        }
+    }
+
+    private void expire(K key, Entry<V> e) {
+        // the entry could be already replaced with the new one under the same key
+        if (entries.remove(key, e)) {
+            cancel(e);
+            if (expirationListener != null)
+                expirationListener.accept(key, e.value);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+import net.sergeych.boss.Boss;
+
+import java.io.IOException;
+
+/**
+ * The {@link ParcelNotification} that carries packed transaction of the item together with the vote. Node sends it
+ * with its first state broadcast when the item is small enough, so the receiving nodes could start checking the item
+ * immediately instead of downloading it via HTTP. Network sends it only to the nodes that can read it, others get
+ * {@link #withoutBody()}.
+ */
+public class ItemBodyNotification extends ParcelNotification {
+
+    private static final int CODE_ITEM_BODY_NOTIFICATION = 9;
+
+    private byte[] packedItem;
+
+    /**
+     * @return packed transaction of the item, see {@link com.icodici.universa.contract.Contract#getPackedTransaction()}
+     */
+    public byte[] getPackedItem() {
+        return packedItem;
+    }
+
+    public ItemBodyNotification(NodeInfo from, HashId itemId, ItemResult itemResult, boolean requestResult,
+                                ParcelNotificationType type, byte[] packedItem) {
+        super(from, itemId, null, itemResult, requestResult, type, ParcelNotificationClass.PARCEL);
+        this.packedItem = packedItem;
+    }
+
+    protected ItemBodyNotification() {
+    }
+
+    /**
+     * @return plain {@link ParcelNotification} with the same vote, for nodes that can't read this one
+     */
+    public ParcelNotification withoutBody() {
+        return new ParcelNotification(getFrom(), getItemId(), null, getItemResult(), answerIsRequested(), getType(),
+                getNotificationClass());
+    }
+
+    @Override
+    protected void writeTo(Boss.Writer bw) throws IOException {
+        super.writeTo(bw);
+        bw.writeObject(packedItem);
+    }
+
+    @Override
+    protected void readFrom(Boss.Reader br) throws IOException {
+        super.readFrom(br);
+        packedItem = br.readBinary();
+    }
+
+    @Override
+    protected int getTypeCode() {
+        return CODE_ITEM_BODY_NOTIFICATION;
+    }
+
+    @Override
+    public String toString() {
+        return "[ItemBodyNotification from: " + getFrom()
+                + " for item: " + getItemId()
+                + ", body size: " + (packedItem != null ? packedItem.length : 0)
+                + ", type is: " + getType()
+                + ", is answer requested: " + answerIsRequested()
+                + "]";
+    }
+
+    public static void init() {
+        registerClass(CODE_ITEM_BODY_NOTIFICATION, ItemBodyNotification.class);
+    }
+}
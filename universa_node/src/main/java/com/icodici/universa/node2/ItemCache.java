@@ -9,79 +9,203 @@ package com.icodici.universa.node2;
 
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
+import com.icodici.universa.contract.Contract;
 import com.icodici.universa.node.ItemResult;
+import net.sergeych.tools.Binder;
 import net.sergeych.utils.Base64;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
 
+/**
+ * Cache of recently processed items with their results.
+ * <p>
+ * The cache is bounded by the estimated size of items it holds (see {@link #estimateSize(Approvable)}): when it is
+ * exceeded, approximately least recently used items are evicted. Each read stamps the record with its access time, and
+ * eviction takes the least recently used of {@link #EVICTION_SAMPLE_SIZE} records picked by a hand running round the
+ * cache, so reads never lock. Items also expire after maxAge since they were put. As all items live the same time,
+ * expiration order is the order of puts, so expired items are taken from the head of the queue without scanning the
+ * whole cache. The queue is checked periodically by {@link ExpirationWheel}.
+ * <p>
+ * All operations are atomic, so callers need no external synchronization; use {@link #putOrUpdate(Approvable,
+ * ItemResult)} and {@link #compute(HashId, UnaryOperator)} for read-modify-write sequences.
+ */
 public class ItemCache {
 
-    private final Timer cleanerTimer = new Timer();
+    /**
+     * Default limit of estimated size of cached items, in bytes.
+     */
+    static public final long DEFAULT_MAX_SIZE = 128L * 1024 * 1024;
+
+    /**
+     * Number of records compared to pick one to evict. Eviction is exact LRU for caches of no more items.
+     */
+    static public final int EVICTION_SAMPLE_SIZE = 16;
+
+    /**
+     * Parsed contract takes several times more heap than its sealed binary.
+     */
+    static private final int PARSED_SIZE_FACTOR = 4;
+
+    /**
+     * Estimated size of items that are not contracts and of the record itself, in bytes.
+     */
+    static private final int DEFAULT_ITEM_SIZE = 1024;
+
+    static private final Duration CLEANUP_PERIOD = Duration.ofSeconds(5);
+
+    private final ExpirationWheel expirationWheel;
+    private volatile ExpirationWheel.Timeout cleanUpTimeout;
+    private volatile boolean active = true;
     private final Duration maxAge;
+    private final long maxSize;
+
+    private final ConcurrentHashMap<HashId, Record> records = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Record> expirationQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong size = new AtomicLong();
+
+    // only one writer evicts at a time, others go on as the cache is being shrunk anyway
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // guarded by evictionLock
+    private Iterator<Record> evictionHand;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
 
     public ItemCache(Duration maxAge) {
+        this(maxAge, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create cache.
+     *
+     * @param maxAge is time an item lives in the cache
+     * @param maxSize is limit of estimated size of cached items, in bytes
+     */
+    public ItemCache(Duration maxAge, long maxSize) {
+        this(maxAge, maxSize, ExpirationWheel.getDefault());
+    }
+
+    /**
+     * Create cache.
+     *
+     * @param maxAge is time an item lives in the cache
+     * @param maxSize is limit of estimated size of cached items, in bytes
+     * @param expirationWheel is {@link ExpirationWheel} to run periodic clean up with
+     */
+    public ItemCache(Duration maxAge, long maxSize, ExpirationWheel expirationWheel) {
         this.maxAge = maxAge;
-        cleanerTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                cleanUp();
-            }
-        }, 5000, 5000);
+        this.maxSize = maxSize;
+        this.expirationWheel = expirationWheel;
+        scheduleCleanUp();
+    }
+
+    private void scheduleCleanUp() {
+        cleanUpTimeout = expirationWheel.schedule(CLEANUP_PERIOD, () -> {
+            cleanUp();
+            if (active)
+                scheduleCleanUp();
+        });
     }
 
     final void cleanUp() {
         // we should avoid creating an object for each check:
         Instant now = Instant.now();
-        records.values().forEach(r->r.checkExpiration(now));
+        synchronized (expirationQueue) {
+            Record r;
+            while ((r = expirationQueue.peek()) != null && r.expiresAt.isBefore(now)) {
+                expirationQueue.poll();
+                if (remove(r)) {
+//                    System.out.println("cache expired "+r.itemId);
+                    expirations.incrementAndGet();
+                }
+            }
+        }
     }
 
     public void shutdown() {
-        cleanerTimer.cancel();
-        cleanerTimer.purge();
+        active = false;
+        cleanUpTimeout.cancel();
     }
 
     public @Nullable Approvable get(HashId itemId) {
-        Record i = records.get(itemId);
-        if( i != null && i.item == null )
-            throw new RuntimeException("cache: record with empty item");
-        return i != null ? i.item : null;
+        Record r = getRecord(itemId);
+        return r != null ? r.item : null;
     }
 
     public @Nullable ItemResult getResult(HashId itemId) {
-        Record r = records.get(itemId);
-        if( r != null && r.item == null )
-            throw new RuntimeException("cache: record with empty item");
+        Record r = getRecord(itemId);
         return r != null ? r.result : null;
     }
 
     public void put(Approvable item, ItemResult result) {
         // this will plainly override current if any
-        Record r = new Record(item, result);
+        Record r = new Record(item, result, Instant.now().plus(maxAge), estimateSize(item));
+        Record old = records.put(r.itemId, r);
+        if (old != null) {
+            size.addAndGet(-old.size);
+            release(old);
+        }
+        added(r);
     }
 
     public void update(HashId itemId, ItemResult result) {
-        Record r = records.get(itemId);
-        if( r != null && r.item == null )
-            throw new RuntimeException("cache: record with empty item");
-
-        if( r != null ) {
+        records.computeIfPresent(itemId, (k, r) -> {
             r.result = result;
-        }
+            return r;
+        });
+    }
+
+    /**
+     * Atomically update result of the cached item or put the item with the result if it is not cached.
+     *
+     * @param item is item to put if it is not cached
+     * @param result is new result of the item
+     */
+    public void putOrUpdate(Approvable item, ItemResult result) {
+        Record created = new Record(item, result, Instant.now().plus(maxAge), estimateSize(item));
+        Record r = records.compute(created.itemId, (k, current) -> {
+            if (current == null)
+                return created;
+            current.result = result;
+            return current;
+        });
+        if (r == created)
+            added(r);
     }
 
-    private ConcurrentHashMap<HashId,Record> records = new ConcurrentHashMap();
+    /**
+     * Atomically replace result of the cached item with the one computed from the current result, e.g. to carry
+     * {@link ItemResult#extraDataBinder} over to the new result. Does nothing if the item is not cached.
+     *
+     * @param itemId is id of the cached item
+     * @param remapping gets current result (could be null) and returns new one
+     * @return new result or null if the item is not cached
+     */
+    public @Nullable ItemResult compute(HashId itemId, UnaryOperator<ItemResult> remapping) {
+        Record r = records.computeIfPresent(itemId, (k, current) -> {
+            current.result = remapping.apply(current.result);
+            return current;
+        });
+        return r != null ? r.result : null;
+    }
 
     public void idsCheck(HashId itemId) {
-        for(HashId x: records.keySet()) {
-            System.out.println(" checking "+itemId+" eq "+x+ ": "+itemId.equals(x) + " / " + x.equals(itemId) );
-            System.out.println(" codes: "+itemId.hashCode() + " / "+ x.hashCode());
-            System.out.println(" digest check: "+ Base64.encodeString(itemId.getDigest()));
-            System.out.println(" digest data : "+ Base64.encodeString(x.getDigest()));
+        for (HashId x : records.keySet()) {
+            System.out.println(" checking " + itemId + " eq " + x + ": " + itemId.equals(x) + " / " + x.equals(itemId));
+            System.out.println(" codes: " + itemId.hashCode() + " / " + x.hashCode());
+            System.out.println(" digest check: " + Base64.encodeString(itemId.getDigest()));
+            System.out.println(" digest data : " + Base64.encodeString(x.getDigest()));
         }
     }
 
@@ -89,23 +213,142 @@ public class ItemCache {
         return records.size();
     }
 
-    private class Record {
-        private Instant expiresAt;
-        private Approvable item;
-        private ItemResult result;
+    /**
+     * @return estimated size of cached items, in bytes
+     */
+    public long getEstimatedSize() {
+        return size.get();
+    }
 
-        private Record(Approvable item, ItemResult result) {
-            expiresAt = Instant.now().plus(maxAge);
-            this.item = item;
-            this.result = result;
-            records.put(item.getId(), this);
+    /**
+     * Cache statistics: count of items and their estimated size, hits and misses of {@link #get(HashId)} and
+     * {@link #getResult(HashId)}, count of items evicted due to size limit and expired ones.
+     *
+     * @return {@link Binder} with cache stats
+     */
+    public Binder getStats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        return Binder.of(
+                "items", records.size(),
+                "estimatedSize", size.get(),
+                "maxSize", maxSize,
+                "hits", h,
+                "misses", m,
+                "hitRatio", h + m > 0 ? (double) h / (h + m) : 0.0,
+                "evictions", evictions.get(),
+                "expirations", expirations.get()
+        );
+    }
+
+    /**
+     * Estimate heap size taken by the item. For contracts it is based on the size of sealed binaries of the contract
+     * and of its new and revoking items, that are held with it.
+     *
+     * @param item is item to estimate
+     * @return estimated size, in bytes
+     */
+    static long estimateSize(Approvable item) {
+        if (!(item instanceof Contract))
+            return DEFAULT_ITEM_SIZE;
+
+        long binariesSize = sealedSize(item);
+        for (Approvable a : item.getNewItems())
+            binariesSize += sealedSize(a);
+        for (Approvable a : item.getRevokingItems())
+            binariesSize += sealedSize(a);
+        return DEFAULT_ITEM_SIZE + binariesSize * PARSED_SIZE_FACTOR;
+    }
+
+    private static long sealedSize(Approvable item) {
+        byte[] sealed = item instanceof Contract ? ((Contract) item).getLastSealedBinary() : null;
+        return sealed != null ? sealed.length : DEFAULT_ITEM_SIZE;
+    }
+
+    private Record getRecord(HashId itemId) {
+        Record r = records.get(itemId);
+        // record that is being removed concurrently is a miss
+        if (r != null && r.item != null) {
+            r.lastAccessNanos = System.nanoTime();
+            hits.increment();
+            return r;
         }
+        misses.increment();
+        return null;
+    }
+
+    private void added(Record r) {
+        size.addAndGet(r.size);
+        expirationQueue.add(r);
+        if (size.get() > maxSize)
+            evict();
+    }
 
-        private void checkExpiration(Instant now) {
-            if( expiresAt.isBefore(now) ) {
-//                System.out.println("cache expired "+item.getId());
-                records.remove(item.getId());
+    private void evict() {
+        boolean evicted;
+        do {
+            if (!evictionLock.tryLock())
+                return;
+            evicted = false;
+            try {
+                // the only (just put) item is kept even if it is bigger than the limit
+                int attempts = records.size() + EVICTION_SAMPLE_SIZE;
+                while (size.get() > maxSize && records.size() > 1 && attempts-- > 0) {
+                    Record victim = null;
+                    for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+                        if (evictionHand == null || !evictionHand.hasNext()) {
+                            evictionHand = records.values().iterator();
+                            if (!evictionHand.hasNext())
+                                break;
+                        }
+                        Record r = evictionHand.next();
+                        if (victim == null || r.lastAccessNanos - victim.lastAccessNanos < 0)
+                            victim = r;
+                    }
+                    if (victim != null && remove(victim)) {
+                        evictions.incrementAndGet();
+                        evicted = true;
+                    }
+                }
+            } finally {
+                evictionLock.unlock();
             }
+            // items put by writers that found the lock taken after our last check are evicted here
+        } while (evicted && size.get() > maxSize);
+    }
+
+    /**
+     * @return true if the record was in the cache and is removed by this call
+     */
+    private boolean remove(Record r) {
+        if (!records.remove(r.itemId, r))
+            return false;
+        size.addAndGet(-r.size);
+        release(r);
+        return true;
+    }
+
+    /**
+     * Record could stay in the expiration queue after it is evicted or replaced, so it should not hold the item.
+     */
+    private static void release(Record r) {
+        r.item = null;
+    }
+
+    private static class Record {
+        private final HashId itemId;
+        private final Instant expiresAt;
+        private final long size;
+        private volatile Approvable item;
+        private volatile ItemResult result;
+        private volatile long lastAccessNanos = System.nanoTime();
+
+        private Record(Approvable item, ItemResult result, Instant expiresAt, long size) {
+            this.itemId = item.getId();
+            this.item = item;
+            this.result = result;
+            this.expiresAt = expiresAt;
+            this.size = size;
         }
     }
 }
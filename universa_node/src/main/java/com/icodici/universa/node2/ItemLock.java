@@ -9,12 +9,24 @@ package com.icodici.universa.node2;
 
 import com.icodici.universa.HashId;
 
-import java.util.WeakHashMap;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 /**
  * The smart lock, allow global synchronize on per-hashId operation. Just call {@link #synchronize(HashId, Function)}
  * and execute your code in a callable argument.
+ * <p>
+ * Locks are kept in a concurrent table with weak keys, so obtaining a lock takes no global monitor. Each id has its
+ * own lock object (not a stripe shared with other ids): processors keep it as their mutex, and nested locking of
+ * different ids must not wait for each other.
  */
 public final class ItemLock {
 
@@ -34,23 +46,61 @@ public final class ItemLock {
      * @throws Exception whatever callable throws
      */
     public <T> T synchronize(HashId id, Function<Object, T> callable) throws Exception {
-        ItemLock lock = null;
-
-        // short exclusive mutex: obtaning a lock
-        synchronized (monitors) {
-            lock = monitors.get(id);
-            if (lock == null) {
-                lock = new ItemLock();
-                monitors.put(id, lock);
-            }
-        }
+        Object lock = obtainLock(id);
         // now we only lock the item:
         synchronized (lock) {
-            return (T) callable.apply(lock);
+            return callable.apply(lock);
         }
     }
 
-    private WeakHashMap<HashId, ItemLock> monitors = new WeakHashMap<>();
+    /**
+     * Execute a callable holding locks of all given ids at once. Locks are acquired in the natural order of ids (and
+     * each id once), so two calls with overlapping sets of ids can not deadlock each other, while calls with disjoint
+     * sets run in parallel. Locks are released upon callable return.
+     *
+     * @param ids      to get locks to, could contain duplicates
+     * @param callable to execute exclusively for all the ids
+     * @param <T> is type
+     *
+     * @return whatever the callable returns
+     *
+     * @throws Exception whatever callable throws
+     */
+    public <T> T synchronizeAll(Collection<HashId> ids, Callable<T> callable) throws Exception {
+        List<Object> locks = new ArrayList<>();
+        for (HashId id : new TreeSet<>(ids))
+            locks.add(obtainLock(id));
+        return synchronizeFrom(locks, 0, callable);
+    }
+
+    private <T> T synchronizeFrom(List<Object> locks, int index, Callable<T> callable) throws Exception {
+        if (index == locks.size())
+            return callable.call();
+        synchronized (locks.get(index)) {
+            return synchronizeFrom(locks, index + 1, callable);
+        }
+    }
+
+    private Object obtainLock(HashId id) {
+        expungeStaleKeys();
+        Object lock = monitors.get(new LookupKey(id));
+        if (lock == null) {
+            Object created = new Object();
+            lock = monitors.putIfAbsent(new WeakKey(id, staleKeys), created);
+            if (lock == null)
+                lock = created;
+        }
+        return lock;
+    }
+
+    private void expungeStaleKeys() {
+        Reference<? extends HashId> ref;
+        while ((ref = staleKeys.poll()) != null)
+            monitors.remove(ref);
+    }
+
+    private final ConcurrentHashMap<Key, Object> monitors = new ConcurrentHashMap<>();
+    private final ReferenceQueue<HashId> staleKeys = new ReferenceQueue<>();
 
     /**
      * Niber of cached locks. Not all of them are acquired. Locks are cached as long as corresponding {@link HashId} is
@@ -60,6 +110,71 @@ public final class ItemLock {
      * @return number of cached locks
      */
     public int size() {
+        expungeStaleKeys();
         return monitors.size();
     }
+
+    /**
+     * Key of the table: {@link WeakKey} is stored, {@link LookupKey} is used to search without creating a weak
+     * reference. Keys are equal if they point to equal ids.
+     */
+    private interface Key {
+        HashId getId();
+    }
+
+    private static boolean keysEqual(Key key, Object other) {
+        if (key == other)
+            return true;
+        if (!(other instanceof Key))
+            return false;
+        HashId id = key.getId();
+        return id != null && id.equals(((Key) other).getId());
+    }
+
+    private static final class LookupKey implements Key {
+        private final HashId id;
+
+        private LookupKey(HashId id) {
+            this.id = id;
+        }
+
+        @Override
+        public HashId getId() {
+            return id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return keysEqual(this, obj);
+        }
+    }
+
+    private static final class WeakKey extends WeakReference<HashId> implements Key {
+        private final int hash;
+
+        private WeakKey(HashId id, ReferenceQueue<HashId> queue) {
+            super(id, queue);
+            hash = id.hashCode();
+        }
+
+        @Override
+        public HashId getId() {
+            return get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return keysEqual(this, obj);
+        }
+    }
 }
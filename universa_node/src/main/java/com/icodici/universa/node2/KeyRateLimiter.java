@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits count of requests per key in a sliding window. Window is split into {@link #BUCKETS} buckets; each key has
+ * its own ring of {@link LongAdder} counters, one per bucket, so counting requests of a key takes no locks, and
+ * requests of different keys do not touch shared state at all. A request is counted by the buckets of the last
+ * window, so the limit is not reset at once on some boundary as a fixed window does.
+ * <p>
+ * Counters of keys that made no requests for the whole window are dropped while serving requests, not more often
+ * than once per window, so the limiter starts no threads.
+ *
+ * @param <K> is type of keys
+ */
+public class KeyRateLimiter<K> {
+
+    static private final int BUCKETS = 12;
+
+    private final long bucketMillis;
+    private final LongSupplier millisClock;
+    private final ConcurrentHashMap<K, Window> windows = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweepBucket = new AtomicLong();
+    private final LongAdder allowedRequests = new LongAdder();
+    private final LongAdder throttledRequests = new LongAdder();
+
+    /**
+     * Counters of one key. Slot i of the ring holds count of requests made during bucket number bucketNumbers[i].
+     */
+    private static final class Window {
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final AtomicLongArray bucketNumbers = new AtomicLongArray(BUCKETS);
+        private volatile long lastBucket;
+        private volatile long throttledBucket = -1;
+
+        private Window(long bucket) {
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] = new LongAdder();
+            bucketNumbers.set((int) (bucket % BUCKETS), bucket);
+        }
+
+        /**
+         * @return counter of the bucket, which is reset first if it still holds one of the former buckets
+         */
+        private LongAdder counter(long bucket) {
+            int slot = (int) (bucket % BUCKETS);
+            long held = bucketNumbers.get(slot);
+            // the only thread that moves the slot to the new bucket resets it. Requests counted by the others between
+            // moving and resetting are lost, so on a bucket boundary the limit could be exceeded by a few requests
+            if (held < bucket && bucketNumbers.compareAndSet(slot, held, bucket))
+                counts[slot].reset();
+            return counts[slot];
+        }
+
+        private long sum(long bucket) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (bucketNumbers.get(i) > bucket - BUCKETS)
+                    total += counts[i].sum();
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Create limiter.
+     *
+     * @param window is length of the sliding window
+     */
+    public KeyRateLimiter(Duration window) {
+        this(window, System::currentTimeMillis);
+    }
+
+    /**
+     * Create limiter with the given clock, for tests.
+     *
+     * @param window is length of the sliding window
+     * @param millisClock is time in milliseconds, as {@link System#currentTimeMillis()}
+     */
+    KeyRateLimiter(Duration window, LongSupplier millisClock) {
+        bucketMillis = Math.max(1, window.toMillis() / BUCKETS);
+        this.millisClock = millisClock;
+    }
+
+    /**
+     * Count the request of the key if the key has made less than limit requests in the window.
+     *
+     * @param key is key that makes the request
+     * @param limit is max count of requests of a key in the window
+     *
+     * @return true if the request is allowed (and counted), false if the key has reached the limit
+     */
+    public boolean tryAcquire(K key, int limit) {
+        long bucket = currentBucket();
+        sweepIfNeeded(bucket);
+
+        Window w = windows.computeIfAbsent(key, k -> new Window(bucket));
+        w.lastBucket = bucket;
+        LongAdder counter = w.counter(bucket);
+        counter.increment();
+        if (w.sum(bucket) > limit) {
+            counter.decrement();
+            w.throttledBucket = bucket;
+            throttledRequests.increment();
+            return false;
+        }
+        allowedRequests.increment();
+        return true;
+    }
+
+    /**
+     * Forget requests of the key, so it starts from zero.
+     *
+     * @param key is key to reset
+     */
+    public void reset(K key) {
+        windows.remove(key);
+    }
+
+    /**
+     * @param key is key to check
+     *
+     * @return count of requests of the key in the current window
+     */
+    public long getRequestsCount(K key) {
+        Window w = windows.get(key);
+        return w != null ? w.sum(currentBucket()) : 0;
+    }
+
+    /**
+     * Limiter statistics: count of tracked keys, count of keys that were throttled in the current window, and total
+     * counts of allowed and throttled requests.
+     *
+     * @return {@link Binder} with limiter stats
+     */
+    public Binder getStats() {
+        long bucket = currentBucket();
+        int throttledKeys = 0;
+        for (Window w : windows.values()) {
+            if (w.throttledBucket > bucket - BUCKETS)
+                throttledKeys++;
+        }
+        return Binder.of(
+                "keys", windows.size(),
+                "throttledKeys", throttledKeys,
+                "allowedRequests", allowedRequests.sum(),
+                "throttledRequests", throttledRequests.sum()
+        );
+    }
+
+    private long currentBucket() {
+        return millisClock.getAsLong() / bucketMillis;
+    }
+
+    private void sweepIfNeeded(long bucket) {
+        long next = nextSweepBucket.get();
+        if (bucket < next || !nextSweepBucket.compareAndSet(next, bucket + BUCKETS))
+            return;
+        windows.forEach((k, w) -> {
+            if (w.lastBucket <= bucket - BUCKETS)
+                windows.remove(k, w);
+        });
+    }
+}
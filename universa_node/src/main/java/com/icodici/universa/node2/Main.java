@@ -219,7 +219,7 @@ public class Main {
             config.setResyncBreakConsensus(resyncBreak);
         });
 
-        network = new NetworkV2(netConfig, myInfo, nodeKey);
+        network = new NetworkV2(netConfig, myInfo, nodeKey, udpEngine);
         node = new Node(config, myInfo, ledger, network, nodeKey,new File(configRoot+"/config/contracts"));
         cache = node.getCache();
         parcelCache = node.getParcelCache();
@@ -319,6 +319,7 @@ public class Main {
     }
 
     private PrivateKey nodeKey;
+    private int udpEngine = UDPAdapter.Engines.SOCKET;
     //private Binder settings;
 
     public PublicKey getNodePublicKey() {
@@ -369,15 +370,76 @@ public class Main {
             }
         }
 
+        if(settings.containsKey("udp_engine")) {
+            udpEngine = UDPAdapter.Engines.stringToInt(settings.getStringOrThrow("udp_engine"));
+            log("using udp engine: " + settings.getStringOrThrow("udp_engine"));
+        }
+
         if(settings.containsKey("disk_cache_age")) {
             int days = settings.getIntOrThrow("disk_cache_age");
             log("using extended disk cache age: " + days + " days");
             config.setMaxDiskCacheAge(Duration.ofDays(days));
         }
 
+        if(settings.containsKey("cache_size_mb")) {
+            int mb = settings.getIntOrThrow("cache_size_mb");
+            log("using items cache size: " + mb + " MB");
+            config.setMaxCacheSize(mb * 1024L * 1024L);
+        }
+
+        if(settings.containsKey("max_inline_item_size")) {
+            int size = settings.getIntOrThrow("max_inline_item_size");
+            log("using max inline item size: " + size + " bytes");
+            config.setMaxInlineItemSize(size);
+        }
+
+        if(settings.getBoolean("adaptive_polling", false)) {
+            log("using adaptive polling");
+            config.setAdaptivePolling(true);
+        }
+
+        if(settings.containsKey("check_queue_capacity")) {
+            int capacity = settings.getIntOrThrow("check_queue_capacity");
+            log("using check queue capacity: " + capacity);
+            config.setCheckQueueCapacity(capacity);
+        }
+
+        if(settings.containsKey("io_queue_capacity")) {
+            int capacity = settings.getIntOrThrow("io_queue_capacity");
+            log("using io queue capacity: " + capacity);
+            config.setIoQueueCapacity(capacity);
+        }
+
+        if(settings.containsKey("max_items_in_flight")) {
+            int max = settings.getIntOrThrow("max_items_in_flight");
+            log("using max items in flight: " + max);
+            config.setMaxItemsInFlight(max);
+        }
+
+        if(settings.containsKey("max_ledger_latency_ms")) {
+            int ms = settings.getIntOrThrow("max_ledger_latency_ms");
+            log("using max ledger latency: " + ms + " ms");
+            config.setMaxLedgerLatency(Duration.ofMillis(ms));
+        }
+
         ledger = new PostgresLedger(settings.getStringOrThrow("database"));
         log("ledger constructed");
 
+        int groupCommitBatch = settings.getInt("group_commit_batch", 256);
+        if(groupCommitBatch > 0) {
+            int delay = settings.getInt("group_commit_delay_ms", 0);
+            log("using ledger group commit: up to " + groupCommitBatch + " records, delay " + delay + " ms");
+            ledger.enableGroupCommit(groupCommitBatch, Duration.ofMillis(delay));
+        }
+
+        if(settings.getBoolean("ledger_hash_filter", true)) {
+            long expected = settings.getLong("ledger_hash_filter_capacity", 1000000);
+            double rate = settings.containsKey("ledger_hash_filter_fp_rate") ?
+                    settings.getDouble("ledger_hash_filter_fp_rate") : 0.01;
+            log("using ledger hash filter: " + expected + " records, false positive rate " + rate);
+            ledger.enableHashFilter(expected, rate);
+        }
+
         log("key loaded: " + nodeKey.info());
         log("node local URL: " + myInfo.serverUrlString());
         log("node public URL: " + myInfo.publicUrlString());
@@ -3,9 +3,7 @@ package com.icodici.universa.node2;
 import com.icodici.universa.HashId;
 
 import java.time.Duration;
-import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -13,31 +11,24 @@ import java.util.stream.Collectors;
  */
 public class NameCache {
 
-    private final Timer cleanerTimer = new Timer();
-    private final Duration maxAge;
-
     final private static String NAME_PREFIX = "n_";
     final private static String ORIGIN_PREFIX = "o_";
     final private static String ADDRESS_PREFIX = "a_";
 
     public NameCache(Duration maxAge) {
-        this.maxAge = maxAge;
-        cleanerTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                cleanUp();
-            }
-        }, 5000, 5000);
+        this(maxAge, ExpirationWheel.getDefault());
+    }
+
+    public NameCache(Duration maxAge, ExpirationWheel expirationWheel) {
+        records = new ExpiringMap<>(expirationWheel, maxAge);
     }
 
     final void cleanUp() {
-        Instant now = Instant.now();
-        records.values().forEach(r->r.checkExpiration(now));
+        records.cleanUp();
     }
 
     public void shutdown() {
-        cleanerTimer.cancel();
-        cleanerTimer.purge();
+        records.clear();
     }
 
     private boolean lockStringValue(String value, HashId lockedBy) {
@@ -102,7 +93,7 @@ public class NameCache {
         unlockStringList(ADDRESS_PREFIX, addressList);
     }
 
-    private ConcurrentHashMap<String,Record> records = new ConcurrentHashMap();
+    private final ExpiringMap<String,Record> records;
 
     public int size() {
         return records.size();
@@ -116,22 +107,14 @@ public class NameCache {
     }
 
     private class Record {
-        private Instant expiresAt;
         private String value;
         private HashId lockedBy;
 
         private Record(String value, HashId lockedBy) {
-            expiresAt = Instant.now().plus(maxAge);
             this.value = value;
             this.lockedBy = lockedBy;
         }
 
-        private void checkExpiration(Instant now) {
-            if( expiresAt.isBefore(now) ) {
-                records.remove(value);
-            }
-        }
-
         public HashId getLockedBy() {
             return lockedBy;
         }
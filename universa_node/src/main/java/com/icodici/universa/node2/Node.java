@@ -93,8 +93,9 @@ public class Node {
     private final Config config;
     private final NodeInfo myInfo;
     private final Ledger ledger;
-    private final Object ledgerRollbackLock = new Object();
     private final Network network;
+    private final ExpirationWheel expirationWheel;
+    private final TimingWheelScheduler taskScheduler;
     private final ItemCache cache;
     private final VoteCache voteCache;
 
@@ -126,13 +127,12 @@ public class Node {
     private ConcurrentHashMap<HashId, ResyncProcessor> resyncProcessors = new ConcurrentHashMap<>();
     private ConcurrentHashMap<HashId, PaidOperationProcessor> paidOperationProcessors = new ConcurrentHashMap<>();
 
-    private ConcurrentHashMap<PublicKey, Integer> keyRequests = new ConcurrentHashMap();
+    private final KeyRateLimiter<PublicKey> keyRequests = new KeyRateLimiter<>(Duration.ofMinutes(1));
     private ConcurrentHashMap<PublicKey, ZonedDateTime> keysUnlimited = new ConcurrentHashMap();
-    private Long epochMinute = new Long(0);
-    private Long epochMinuteUbot = new Long(0);
 
+    private final KeyRateLimiter<PublicKey> keyRequestsUbot = new KeyRateLimiter<>(Duration.ofMinutes(1));
 
-    private ConcurrentHashMap<PublicKey, Integer> keyRequestsUbot = new ConcurrentHashMap();
+    private final AdaptiveSchedule pollingSchedule = new AdaptiveSchedule();
 
 
     Map<NodeInfo,ConnectivityInfo> connectivityMap = new ConcurrentHashMap();
@@ -149,6 +149,13 @@ public class Node {
         }
     });
 
+    // CPU bound checks of the items
+    private BoundedExecutor checkExecutorService;
+    // ledger and network work
+    private BoundedExecutor ioExecutorService;
+
+    private AdmissionController admission;
+
     private NodeConfigProvider nodeInfoProvider;
 
     private ScheduledExecutorService lowPrioExecutorService = new ScheduledThreadPoolExecutor(16, new ThreadFactory() {
@@ -214,17 +221,28 @@ public class Node {
         this.network = network;
         if(network instanceof  NetworkV2)
             ((NetworkV2)network).setConnectivityMap(connectivityMap);
-        cache = new ItemCache(config.getMaxCacheAge());
-        voteCache = new VoteCache(config.getMaxCacheAge());
-        parcelCache = new ParcelCache(config.getMaxCacheAge());
-        paidOperationCache = new PaidOperationCache(config.getMaxCacheAge());
-        envCache = new EnvCache(config.getMaxCacheAge());
-        nameCache = new NameCache(config.getMaxNameCacheAge());
+        expirationWheel = new ExpirationWheel("node-" + myInfo.getNumber() + "-expiration", ExpirationWheel.DEFAULT_TICK);
+        taskScheduler = new TimingWheelScheduler("node-" + myInfo.getNumber() + "-tasks",
+                TimingWheelScheduler.DEFAULT_TICK, executorService);
+        checkExecutorService = new BoundedExecutor("node-" + myInfo.getNumber() + "-checker",
+                Runtime.getRuntime().availableProcessors(), config.getCheckQueueCapacity(), Thread.NORM_PRIORITY,
+                executorService);
+        ioExecutorService = new BoundedExecutor("node-" + myInfo.getNumber() + "-io-worker",
+                128, config.getIoQueueCapacity(), Thread.NORM_PRIORITY, executorService);
+        admission = new AdmissionController(config, () -> processors.size(),
+                () -> Math.max(checkExecutorService.getQueueFill(), ioExecutorService.getQueueFill()));
+        cache = new ItemCache(config.getMaxCacheAge(), config.getMaxCacheSize(), expirationWheel);
+        voteCache = new VoteCache(config.getMaxCacheAge(), expirationWheel);
+        parcelCache = new ParcelCache(config.getMaxCacheAge(), expirationWheel);
+        paidOperationCache = new PaidOperationCache(config.getMaxCacheAge(), expirationWheel);
+        envCache = new EnvCache(config.getMaxCacheAge(), expirationWheel);
+        nameCache = new NameCache(config.getMaxNameCacheAge(), expirationWheel);
         config.updateConsensusConfig(network.getNodesCount());
 
         label = "Node(" + myInfo.getNumber() + ") ";
 
-        network.subscribe(myInfo, notification -> executorService.submit(()->onNotification(notification)));
+        // notifications are repeated by peers, so under overload they are dropped rather than queued
+        network.subscribe(myInfo, notification -> ioExecutorService.executeOrDrop(()->onNotification(notification)));
 
         recordsToSanitate = ledger.findUnfinished();
 
@@ -306,11 +324,8 @@ public class Node {
     private void pulseStartSelfDiagostics() {
         executorService.scheduleAtFixedRate(() -> {
 
-            connectivityMap.forEach((k,v)->{
-                if(v.isExpired()) {
-                    connectivityMap.remove(k);
-                }
-            });
+            if(connectivityMap.values().removeIf(ConnectivityInfo::isExpired))
+                onConnectivityMapChanged();
 
             List<NodeInfo> nodes = network.allNodes();
             AtomicInteger checked = new AtomicInteger(0);
@@ -410,9 +425,7 @@ public class Node {
                         try {
                             itemLock.synchronize(r.getId(), lock -> {
                                 r.save();
-                                synchronized (cache) {
-                                    cache.update(r.getId(), new ItemResult(r));
-                                }
+                                cache.update(r.getId(), new ItemResult(r));
                                 return null;
                             });
                         } catch (Exception e) {
@@ -939,6 +952,12 @@ public class Node {
     private void obtainConnectivityNotification(ConnectivityNotification notification) {
         ConnectivityInfo ci = new ConnectivityInfo(notification.getFrom(),config.getConnectivityInfoValidityPeriod(),notification.getUnreachableNodes().stream().map(ni->network.getInfo(ni)).collect(Collectors.toSet()));
         connectivityMap.put(notification.getFrom(),ci);
+        onConnectivityMapChanged();
+    }
+
+    private void onConnectivityMapChanged() {
+        if(network instanceof  NetworkV2)
+            ((NetworkV2)network).onConnectivityMapChanged();
     }
 
     private void obtainUBotTransactionNotification(UBotTransactionNotification notification) {
@@ -1069,6 +1088,38 @@ public class Node {
     }
 
 
+    /**
+     * Unpack item body came with the notification, if any. Item is used only if it is the one notification is about,
+     * otherwise it will be downloaded as usual.
+     *
+     * @param notification common item notification
+     *
+     * @return item from {@link ItemBodyNotification} or null
+     */
+    private Approvable getInlineItem(ItemNotification notification) {
+        if (!(notification instanceof ItemBodyNotification))
+            return null;
+
+        byte[] packedItem = ((ItemBodyNotification) notification).getPackedItem();
+        if (packedItem == null)
+            return null;
+
+        try {
+            Contract contract = TransactionPack.unpack(packedItem, true).getContract();
+            if (contract != null && contract.getId().equals(notification.getItemId()))
+                return contract;
+
+            report(getLabel(), () -> concatReportMessage("inline item mismatch for item: ", notification.getItemId(),
+                    " from ", notification.getFrom()),
+                    DatagramAdapter.VerboseLevel.BASE);
+        } catch (Exception e) {
+            report(getLabel(), () -> concatReportMessage("failed to unpack inline item: ", notification.getItemId(),
+                    " from ", notification.getFrom(), ": ", e.getMessage()),
+                    DatagramAdapter.VerboseLevel.BASE);
+        }
+        return null;
+    }
+
     /**
      * Obtain got common item notification: looking for result or item processor and register vote
      *
@@ -1094,7 +1145,8 @@ public class Node {
         if (notClass == ParcelNotification.ParcelNotificationClass.PAID_OPERATION)
             x = checkPaidItemInternal(notification.getItemId(), null, null, true, true);
         else
-            x = checkItemInternal(notification.getItemId(), null, null, true, true);
+            x = checkItemInternal(notification.getItemId(), null, () -> getInlineItem(notification), true, true,
+                    false, false, false);
         NodeInfo from = notification.getFrom();
 
         if (x instanceof ItemResult) {
@@ -1344,7 +1396,7 @@ public class Node {
     }
 
     private Object checkPaidItemInternal(@NonNull HashId itemId) {
-        return checkItemInternal(itemId, null, null,false, false, false, true, true);
+        return checkPaidItemInternal(itemId, null, null, false, false);
     }
 
     private Object checkPaidItemInternal(@NonNull HashId itemId, HashId parcelId, Approvable item, boolean autoStart, boolean forceChecking) {
@@ -1370,6 +1422,18 @@ public class Node {
     private Object checkItemInternal(@NonNull HashId itemId, HashId parcelId, Approvable item, boolean autoStart,
                                      boolean forceChecking, boolean ommitItemResult, boolean usedForPaidOperation,
                                      boolean enablePause) {
+        return checkItemInternal(itemId, parcelId, item != null ? () -> item : null, autoStart, forceChecking,
+                ommitItemResult, usedForPaidOperation, enablePause);
+    }
+
+    /**
+     * Same as {@link #checkItemInternal(HashId, HashId, Approvable, boolean, boolean, boolean, boolean, boolean)},
+     * but the item is obtained from itemSource only if the item is neither being processed nor already processed,
+     * so costly item sources (say, unpacking) are not called in vain.
+     */
+    private Object checkItemInternal(@NonNull HashId itemId, HashId parcelId, Supplier<Approvable> itemSource,
+                                     boolean autoStart, boolean forceChecking, boolean ommitItemResult,
+                                     boolean usedForPaidOperation, boolean enablePause) {
         try {
             // first, let's lock to the item id:
             report(getLabel(), () -> concatReportMessage("checkItemInternal: ", itemId),
@@ -1383,6 +1447,8 @@ public class Node {
                     return ip;
                 }
 
+                Approvable item = null;
+
                 // if we want to get already processed result for item
                 if(!ommitItemResult) {
                     StateRecord r = ledger.getRecord(itemId);
@@ -1393,10 +1459,10 @@ public class Node {
                                 "found item result, and state is: ", r.getState()),
                                 DatagramAdapter.VerboseLevel.BASE);
 
-                        Approvable cachedItem = cache.get(itemId);
+                        // single lookup in the common case: the cached item only matters when its result is gone
                         ItemResult result = cache.getResult(itemId);
                         if(result == null) {
-                            result = new ItemResult(r, cachedItem != null);
+                            result = new ItemResult(r, cache.get(itemId) != null);
                         }
 
                         return result;
@@ -1404,6 +1470,8 @@ public class Node {
 
                     // we have no consensus on it. We might need to find one, after some precheck.
                     // The contract should not be too old to process:
+                    if (itemSource != null)
+                        item = itemSource.get();
                     if (item != null &&
                             item.getCreatedAt().isBefore(ZonedDateTime.now().minus(config.getMaxItemCreationAge()))) {
                         // it is too old - client must manually check other nodes. For us it's unknown
@@ -1418,10 +1486,10 @@ public class Node {
 
                 // if we want to create new ItemProcessor
                 if (autoStart) {
+                    if (ommitItemResult && itemSource != null)
+                        item = itemSource.get();
                     if (item != null) {
-                        synchronized (cache) {
-                            cache.put(item, ItemResult.UNDEFINED);
-                        }
+                        cache.put(item, ItemResult.UNDEFINED);
                     }
                     report(getLabel(), () -> concatReportMessage("checkItemInternal: ", itemId,
                             "nothing found, will create item processor"),
@@ -1541,10 +1609,8 @@ public class Node {
      * @return cached item or null if it is missing
      */
     public Approvable getItem(HashId itemId) {
-        synchronized (cache) {
-            @Nullable Approvable i = cache.get(itemId);
-            return i;
-        }
+        @Nullable Approvable i = cache.get(itemId);
+        return i;
     }
 
     /**
@@ -1649,12 +1715,20 @@ public class Node {
 //        heartbeat = null;
         System.out.println(toString() + "please wait, executorService is shutting down");
         executorService.shutdown();
+        checkExecutorService.shutdown();
+        ioExecutorService.shutdown();
         lowPrioExecutorService.shutdown();
         try {
             executorService.awaitTermination(5, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             System.out.println("executorService.awaitTermination... timeout");
         }
+        try {
+            checkExecutorService.awaitTermination(5, TimeUnit.SECONDS);
+            ioExecutorService.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            System.out.println("checkExecutorService/ioExecutorService.awaitTermination... timeout");
+        }
         try {
             lowPrioExecutorService.awaitTermination(5, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
@@ -1664,6 +1738,8 @@ public class Node {
         parcelCache.shutdown();
         paidOperationCache.shutdown();
         nameCache.shutdown();
+        expirationWheel.shutdown();
+        taskScheduler.shutdown();
         System.out.println(toString() + "shutdown finished");
     }
 
@@ -1747,12 +1823,57 @@ public class Node {
                 "bigIntervalApproved", nodeStats.bigIntervalApproved,
                 "uptimeApproved", nodeStats.uptimeApproved,
                 "coreVersion", Core.VERSION,
-                "nodeNumber", myInfo.getNumber()
+                "nodeNumber", myInfo.getNumber(),
+                "itemCache", cache.getStats(),
+                "consensusCommits", nodeStats.getConsensusCommitStats(),
+                "pollingSchedule", pollingSchedule.getStats().putAll(
+                        "adaptive", config.isAdaptivePolling(),
+                        "pollTime", getPollTime(),
+                        "consensusReceivedCheckTime", getConsensusReceivedCheckTime(),
+                        "resyncTime", getResyncTime()),
+                "keyLimits", Binder.of(
+                        "requests", keyRequests.getStats(),
+                        "ubotRequests", keyRequestsUbot.getStats()
+                ),
+                "caches", Binder.of(
+                        "items", cache.size(),
+                        "votes", voteCache.size(),
+                        "parcels", parcelCache.size(),
+                        "paidOperations", paidOperationCache.size(),
+                        "environments", envCache.size(),
+                        "names", nameCache.size(),
+                        "expirationTimeouts", expirationWheel.getTimeoutsCount(),
+                        "scheduledTasks", taskScheduler.getQueueDepth()
+                ),
+                "executors", Binder.of(
+                        "check", checkExecutorService.getStats(),
+                        "io", ioExecutorService.getStats()
+                ),
+                "admission", admission.getStats()
                 );
         if(showDays != null) {
             result.put("payments",nodeStats.getPaymentStats(ledger,showDays));
         }
 
+        if(ledger instanceof PostgresLedger) {
+            Binder groupCommit = ((PostgresLedger) ledger).getGroupCommitStats();
+            if(groupCommit != null)
+                result.put("groupCommit", groupCommit);
+            result.put("dbPool", ((PostgresLedger) ledger).getDbPoolStats());
+            result.put("statementCache", ((PostgresLedger) ledger).getStatementCacheStats());
+            result.put("recordsCache", ((PostgresLedger) ledger).getRecordsCacheStats());
+            Binder hashFilter = ((PostgresLedger) ledger).getHashFilterStats();
+            if(hashFilter != null)
+                result.put("hashFilter", hashFilter);
+        }
+
+        if(network instanceof NetworkV2) {
+            result.put("notificationBatches",((NetworkV2) network).getBatchingStats());
+            result.put("udpSessions",((NetworkV2) network).getUdpSessionsStats());
+            result.put("udpReceive",((NetworkV2) network).getUdpReceiveStats());
+            result.put("httpFetches",((NetworkV2) network).getHttpFetchStats());
+        }
+
         return result;
     }
 
@@ -1780,6 +1901,23 @@ public class Node {
         return myInfo.getNumber();
     }
 
+    /**
+     * @return polling schedule: configured one, or adapted to latency of the network if {@link
+     * Config#isAdaptivePolling()}
+     */
+    private List<Integer> getPollTime() {
+        return config.isAdaptivePolling() ? pollingSchedule.adapt(config.getPollTime()) : config.getPollTime();
+    }
+
+    private List<Integer> getConsensusReceivedCheckTime() {
+        return config.isAdaptivePolling() ?
+                pollingSchedule.adapt(config.getConsensusReceivedCheckTime()) : config.getConsensusReceivedCheckTime();
+    }
+
+    private List<Integer> getResyncTime() {
+        return config.isAdaptivePolling() ? pollingSchedule.adapt(config.getResyncTime()) : config.getResyncTime();
+    }
+
     /**
      * Checks limit of requests for key.
      *
@@ -1789,63 +1927,38 @@ public class Node {
      */
     public boolean checkKeyLimit(PublicKey key) {
 
-        if ((config == null) ||
-             config.getNetworkAdminKeyAddress().isMatchingKey(key) ||
-             getNodeKey().equals(key) ||
-             config.getKeysWhiteList().contains(key) ||
-             config.getAddressesWhiteList().stream().anyMatch(addr -> addr.isMatchingKey(key)))
+        if (isKeyWhiteListed(key))
             return true;
 
-        synchronized (epochMinute) {
-            long currentEpochMinute = ZonedDateTime.now().toEpochSecond() / 60;
-            if (epochMinute != currentEpochMinute) {
-                keyRequests.clear();
-                epochMinute = currentEpochMinute;
-            }
-
-            ZonedDateTime expiredUnlimit = keysUnlimited.getOrDefault(key, null);
-            if (expiredUnlimit != null) {
-                if (expiredUnlimit.isBefore(ZonedDateTime.now()))
-                    keysUnlimited.remove(key);
-                else
-                    return true;
-            }
-
-            int requests = keyRequests.getOrDefault(key, 0);
-            if (requests >= config.getLimitRequestsForKeyPerMinute())
-                return false;
-
-            keyRequests.put(key, requests + 1);
+        ZonedDateTime expiredUnlimit = keysUnlimited.get(key);
+        if (expiredUnlimit != null) {
+            if (expiredUnlimit.isBefore(ZonedDateTime.now()))
+                keysUnlimited.remove(key);
+            else
+                return true;
         }
 
-        return true;
+        return keyRequests.tryAcquire(key, config.getLimitRequestsForKeyPerMinute());
     }
 
 
     public boolean checkKeyLimitUbot(PublicKey key) {
 
-        if ((config == null) ||
-                config.getNetworkAdminKeyAddress().isMatchingKey(key) ||
-                getNodeKey().equals(key) ||
-                config.getKeysWhiteList().contains(key) ||
-                config.getAddressesWhiteList().stream().anyMatch(addr -> addr.isMatchingKey(key)))
+        if (isKeyWhiteListed(key))
             return true;
 
-        synchronized (epochMinuteUbot) {
-            long currentEpochMinute = ZonedDateTime.now().toEpochSecond() / 60;
-            if (epochMinuteUbot != currentEpochMinute) {
-                keyRequestsUbot.clear();
-                epochMinuteUbot = currentEpochMinute;
-            }
-
-            int requests = keyRequestsUbot.getOrDefault(key, 0);
-            if (requests >= config.getLimitUbotRequestsForKeyPerMinute())
-                return false;
-
-            keyRequestsUbot.put(key, requests + 1);
-        }
+        return keyRequestsUbot.tryAcquire(key, config.getLimitUbotRequestsForKeyPerMinute());
+    }
 
-        return true;
+    private boolean isKeyWhiteListed(PublicKey key) {
+        if (config == null)
+            return true;
+        KeyAddress adminAddress = config.getNetworkAdminKeyAddress();
+        // addresses of the key are cached by the key, so matching them costs no hashing
+        return adminAddress.isMatchingKeyAddress(adminAddress.isLong() ? key.getLongAddress() : key.getShortAddress()) ||
+                getNodeKey().equals(key) ||
+                config.getKeysWhiteList().contains(key) ||
+                config.isAddressWhiteListed(key);
     }
 
     public long pingNodeUDP(int number, int timeoutMillis) {
@@ -1861,9 +1974,7 @@ public class Node {
     }
 
     public Binder createUBotSession(Contract requestContract) {
-        synchronized (cache) {
-            cache.put(requestContract, checkItem(requestContract.getId()));
-        }
+        cache.put(requestContract, checkItem(requestContract.getId()));
         HashId executableContractId = (HashId) requestContract.getStateData().get("executable_contract_id");
         HashId requestId = requestContract.getId();
 
@@ -2071,6 +2182,19 @@ public class Node {
         return executorService;
     }
 
+    /**
+     * Backpressure signal for clients: decide if new registration is accepted, considering items in flight, filling
+     * of the check and the ledger and network pools queues, and ledger latency. Paid registrations are refused later
+     * than free ones. See {@link AdmissionController}.
+     *
+     * @param paid is true for registrations with payment
+     *
+     * @return 0 if the registration could proceed, otherwise milliseconds the client should wait before the retry
+     */
+    public long admitRegistration(boolean paid) {
+        return admission.admit(paid);
+    }
+
 
     public ZonedDateTime voteForContract(HashId votingItem, HashId candidateId, byte[] signature, List<Bytes> referencedItems, int quantaLimit) throws Exception {
 
@@ -2415,7 +2539,7 @@ public class Node {
 
         private final Object mutex;
 
-        private ScheduledFuture<?> downloader;
+        private Future<?> downloader;
         private ScheduledFuture<?> processSchedule;
 
         AsyncEvent<Void> operationProcessor_completeEvent = new AsyncEvent<>();
@@ -2575,7 +2699,7 @@ public class Node {
 
                     synchronized (mutex) {
                         if (paidOperation == null && (downloader == null || downloader.isDone())) {
-                            downloader = (ScheduledFuture<?>) executorService.submit(() -> download(),
+                            downloader = ioExecutorService.submit(() -> download(),
                                     Node.this.toString() + " > PaidOperationProcessor " + operationId + " :: pulseDownload -> download");
                         }
                     }
@@ -2594,12 +2718,13 @@ public class Node {
                     } else {
                         try {
                             // first we have to wait for sources
-                            NodeInfo source;
+                            List<NodeInfo> currentSources;
                             // Important: it could be disturbed by notifications
                             synchronized (sources) {
-                                source = Do.sample(sources);
+                                currentSources = new ArrayList<>(sources);
                             }
-                            paidOperation = network.getPaidOperation(operationId, source, config.getMaxGetItemTime());
+                            // network could ask several sources at once and take the fastest answer
+                            paidOperation = network.getPaidOperation(operationId, currentSources, config.getMaxGetItemTime());
                             if (paidOperation != null) {
                                 paidOperationDownloaded();
                                 return;
@@ -2851,7 +2976,7 @@ public class Node {
 
         private final Object mutex;
 
-        private ScheduledFuture<?> downloader;
+        private Future<?> downloader;
         private ScheduledFuture<?> processSchedule;
 
         private final AsyncEvent<Void> downloadedEvent = new AsyncEvent<>();
@@ -3052,7 +3177,7 @@ public class Node {
 
                     synchronized (mutex) {
                         if (parcel == null && (downloader == null || downloader.isDone())) {
-                            downloader = (ScheduledFuture<?>) executorService.submit(() -> download(),
+                            downloader = ioExecutorService.submit(() -> download(),
                                     Node.this.toString() + " > parcel " + parcelId + " :: parcel pulseDownload -> download");
                         }
                     }
@@ -3071,12 +3196,13 @@ public class Node {
                     } else {
                         try {
                             // first we have to wait for sources
-                            NodeInfo source;
+                            List<NodeInfo> currentSources;
                             // Important: it could be disturbed by notifications
                             synchronized (sources) {
-                                source = Do.sample(sources);
+                                currentSources = new ArrayList<>(sources);
                             }
-                            parcel = network.getParcel(parcelId, source, config.getMaxGetItemTime());
+                            // network could ask several sources at once and take the fastest answer
+                            parcel = network.getParcel(parcelId, currentSources, config.getMaxGetItemTime());
                             if (parcel != null) {
                                 parcelDownloaded();
                                 return;
@@ -3327,9 +3453,14 @@ public class Node {
         private final ItemState stateWas;
         private ItemProcessingState processingState;
         private Set<NodeInfo> sources = new HashSet<>();
+        // nodes that have already got the item body inlined in our state, see broadcastMyState()
+        private final Set<NodeInfo> itemBodySentTo = ConcurrentHashMap.newKeySet();
 
-        private Set<NodeInfo> positiveNodes = new HashSet<>();
-        private Set<NodeInfo> negativeNodes = new HashSet<>();
+        private final VoteTally votes = new VoteTally();
+        // System.nanoTime() when votes have reached consensus, 0 before that
+        private long consensusReachedAt = 0;
+        // System.nanoTime() when polling of other nodes has started, 0 before that
+        private long pollingStartedAt = 0;
 
         private ConcurrentHashMap<HashId, ResyncingItem> resyncingItems = new ConcurrentHashMap<>();
         private ConcurrentHashMap<HashId, ItemState> resyncingItemsResults = new ConcurrentHashMap<>();
@@ -3337,6 +3468,12 @@ public class Node {
         private List<StateRecord> lockedToRevoke = new ArrayList<>();
         private List<StateRecord> lockedToCreate = new ArrayList<>();
 
+        // records of the whole tree of the checking item, got from the ledger at once:
+        // lock records created for new items and not yet taken to lockedToCreate
+        private Map<HashId, StateRecord> createdLockRecords = null;
+        // records of revoking items that are locked by the item, got from the ledger at once
+        private Map<HashId, StateRecord> revokingLocks = null;
+
         private Instant pollingExpiresAt;
         private Instant consensusReceivedExpiresAt;
 
@@ -3352,7 +3489,7 @@ public class Node {
 
         private final Object mutex;
 
-        private ScheduledFuture<?> downloader;
+        private Future<?> downloader;
         private RunnableWithDynamicPeriod poller;
         private RunnableWithDynamicPeriod consensusReceivedChecker;
 
@@ -3456,7 +3593,7 @@ public class Node {
                     DatagramAdapter.VerboseLevel.BASE);
 
             if (this.item != null) {
-                executorService.submit(() -> itemDownloaded(),
+                ioExecutorService.submit(() -> itemDownloaded(),
                         Node.this.toString() + toString() + " :: ItemProcessor -> itemDownloaded");
             }
         }
@@ -3478,7 +3615,7 @@ public class Node {
 
                     synchronized (mutex) {
                         if (item == null && (downloader == null || downloader.isDone())) {
-                            downloader = (ScheduledFuture<?>) executorService.submit(() -> download(),
+                            downloader = ioExecutorService.submit(() -> download(),
                                     Node.this.toString() + toString() + " :: item pulseDownload -> download");
                         }
                     }
@@ -3495,12 +3632,13 @@ public class Node {
                     } else {
                         try {
                             // first we have to wait for sources
-                            NodeInfo source;
+                            List<NodeInfo> currentSources;
                             // Important: it could be disturbed by notifications
                             synchronized (sources) {
-                                source = Do.sample(sources);
+                                currentSources = new ArrayList<>(sources);
                             }
-                            item = network.getItem(itemId, source, config.getMaxGetItemTime());
+                            // network could ask several sources at once and take the fastest answer
+                            item = network.getItem(itemId, currentSources, config.getMaxGetItemTime());
                             if (item != null) {
                                 itemDownloaded();
                                 return;
@@ -3521,14 +3659,14 @@ public class Node {
                     " :: itemDownloaded, state ", processingState, " itemState: ", getState()),
                     DatagramAdapter.VerboseLevel.BASE);
             if(processingState.canContinue()) {
-                synchronized (cache) {
+                synchronized (mutex) {
+                    // result changes under mutex, so it is read and cached atomically with regard to them
                     cache.put(item, getResult());
-                }
 
-
-                synchronized (mutex) {
                     //save item in disk cache
+                    long started = System.nanoTime();
                     ledger.putItem(record, item, Instant.now().plus(config.getMaxDiskCacheAge()));
+                    admission.registerLedgerLatency(System.nanoTime() - started);
                 }
 
                 if(item instanceof Contract) {
@@ -3554,7 +3692,9 @@ public class Node {
                     processingState = ItemProcessingState.DOWNLOADED;
                 }
                 if(isCheckingForce) {
-                    checkItem();
+                    // download runs on the I/O pool, checks go to their own one
+                    checkExecutorService.submit(() -> checkItem(),
+                            Node.this.toString() + toString() + " :: itemDownloaded -> checkItem");
                 }
                 downloadedEvent.fire();
             }
@@ -3746,12 +3886,101 @@ public class Node {
             if(processingState.canContinue()) {
                 if (!processingState.isProcessedToConsensus()) {
 
-                    // check all new new items in tree
-                    checkNewsOf(checkingItem);
+                    // ledger is queried for the whole tree at once, not for each its item
+                    Set<HashId> newIds = new LinkedHashSet<>();
+                    Set<HashId> revokingIds = new LinkedHashSet<>();
+                    collectSubItemIdsOf(checkingItem, newIds, revokingIds);
 
-                    // check revoking items in tree
-                    checkRevokesOf(checkingItem);
+                    try {
+                        createOutputLockRecords(newIds);
+
+                        // check all new new items in tree
+                        checkNewsOf(checkingItem);
 
+                        destroyUnusedOutputLockRecords();
+                        lockRevokingRecords(revokingIds);
+
+                        // check revoking items in tree
+                        checkRevokesOf(checkingItem);
+                    } finally {
+                        destroyUnusedOutputLockRecords();
+                        revokingLocks = null;
+                    }
+                }
+            }
+        }
+
+        private void collectSubItemIdsOf(Approvable checkingItem, Set<HashId> newIds, Set<HashId> revokingIds) {
+            for (Approvable newItem : checkingItem.getNewItems()) {
+                collectSubItemIdsOf(newItem, newIds, revokingIds);
+                newIds.add(newItem.getId());
+            }
+            for (Approvable revokingItem : checkingItem.getRevokingItems())
+                revokingIds.add(revokingItem.getId());
+        }
+
+        private void createOutputLockRecords(Set<HashId> newIds) {
+            synchronized (mutex) {
+                // otherwise checkNewsOf stops or fails as it did
+                if (newIds.isEmpty() || record.getState() != ItemState.PENDING)
+                    return;
+                try {
+                    createdLockRecords = itemLock.synchronizeAll(newIds, () -> record.createOutputLockRecords(newIds));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void destroyUnusedOutputLockRecords() {
+            synchronized (mutex) {
+                if (createdLockRecords == null)
+                    return;
+                try {
+                    // new items with errors, that got no lock
+                    if (!createdLockRecords.isEmpty()) {
+                        itemLock.synchronizeAll(createdLockRecords.keySet(), () -> {
+                            createdLockRecords.values().forEach(StateRecord::destroy);
+                            return null;
+                        });
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    createdLockRecords = null;
+                }
+            }
+        }
+
+        // records are read, locked and saved while their ids are locked, so no other item could lock them meanwhile
+        private void lockRevokingRecords(Set<HashId> revokingIds) {
+            synchronized (mutex) {
+                if (revokingIds.isEmpty() || record.getState() != ItemState.PENDING)
+                    return;
+                try {
+                    revokingLocks = itemLock.synchronizeAll(revokingIds, () -> {
+                        Map<HashId, StateRecord> revokingRecords = ledger.getRecords(revokingIds);
+                        Map<HashId, StateRecord> locked = new HashMap<>();
+                        for (HashId id : revokingIds) {
+                            StateRecord r = record.lockToRevoke(revokingRecords.get(id), false);
+                            if (r != null)
+                                locked.put(id, r);
+                        }
+                        ledger.saveAll(locked.values());
+
+                        // taken at once, so rollback unlocks them even if checking stops before checkRevokesOf
+                        for (StateRecord r : locked.values()) {
+                            if (!lockedToRevoke.contains(r))
+                                lockedToRevoke.add(r);
+
+                            if (r.getState() == ItemState.LOCKED_FOR_CREATION_REVOKED) {
+                                lockedToCreate.remove(r);
+                            }
+                        }
+                        return locked;
+                    });
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
             }
         }
@@ -3822,6 +4051,13 @@ public class Node {
                                     // stop checking in this case
                                     return;
                                 }
+                                if (revokingLocks != null) {
+                                    // already locked with lockRevokingRecords; each lock is taken once, so
+                                    // the item revoked twice in the tree can't be revoked the second time
+                                    if (revokingLocks.remove(revokingItem.getId()) == null)
+                                        checkingItem.addError(Errors.BAD_REVOKE, revokingItem.getId().toString(), "can't revoke");
+                                    continue;
+                                }
                                 itemLock.synchronize(revokingItem.getId(), lock -> {
                                     StateRecord r = record.lockToRevoke(revokingItem.getId());
                                     if (r == null) {
@@ -3885,7 +4121,9 @@ public class Node {
                                         return;
                                     }
                                     itemLock.synchronize(newItem.getId(), lock -> {
-                                        StateRecord r = record.createOutputLockRecord(newItem.getId());
+                                        StateRecord r = createdLockRecords != null ?
+                                                createdLockRecords.remove(newItem.getId()) :
+                                                record.createOutputLockRecord(newItem.getId());
                                         if (r == null) {
                                             checkingItem.addError(Errors.NEW_ITEM_EXISTS, newItem.getId().toString(), "new item exists in ledger");
                                         } else {
@@ -3933,9 +4171,7 @@ public class Node {
                                 record.save();
 
                                 if (item != null) {
-                                    synchronized (cache) {
-                                        cache.update(itemId, getResult());
-                                    }
+                                    cache.update(itemId, getResult());
                                 }
                             } else {
                                 log.e("Checked item with state ItemState.UNDEFINED (should be ItemState.PENDING)");
@@ -3964,29 +4200,22 @@ public class Node {
                 HashMap<HashId, StateRecord> unknownParts = new HashMap<>();
                 HashMap<HashId, StateRecord> knownParts = new HashMap<>();
                 if (baseCheckPassed) {
-                    // check the referenced items
-                    for (Approvable ref : item.getReferencedItems()) {
-                        HashId id = ref.getId();
-//                        if(refModel.type == Reference.TYPE_EXISTING && id != null) {
-                        StateRecord r = ledger.getRecord(id);
+                    // check the referenced and revoking items, getting them from the ledger at once
+                    Set<HashId> ids = new LinkedHashSet<>();
+                    for (Approvable ref : item.getReferencedItems())
+                        ids.add(ref.getId());
+                    for (Approvable a : item.getRevokingItems())
+                        ids.add(a.getId());
+
+                    Map<HashId, StateRecord> records = ids.isEmpty() ? Collections.emptyMap() : ledger.getRecords(ids);
+                    for (HashId id : ids) {
+                        StateRecord r = records.get(id);
 
                         if (r == null || !r.getState().isConsensusFound()) {
                             unknownParts.put(id, r);
                         } else {
                             knownParts.put(id, r);
                         }
-//                        }
-                    }
-
-                    // check revoking items
-                    for (Approvable a : item.getRevokingItems()) {
-                        StateRecord r = ledger.getRecord(a.getId());
-
-                        if (r == null || !r.getState().isConsensusFound()) {
-                            unknownParts.put(a.getId(), r);
-                        } else {
-                            knownParts.put(a.getId(), r);
-                        }
                     }
                 }
 
@@ -4031,10 +4260,63 @@ public class Node {
                     notClass = ParcelNotification.ParcelNotificationClass.PARCEL;
                 }
                 notification = new ParcelNotification(myInfo, itemId,  ubotSessionId != null ? ubotSessionId : parcelId, getResult(), true, notificationType, notClass);
+
+                // items of a parcel are not inlined: parcel processors download the whole parcel anyway
+                if (notClass == ParcelNotification.ParcelNotificationClass.PARCEL && parcelId == null) {
+                    broadcastWithItemBody(notification, notificationType);
+                } else {
+                    network.broadcast(myInfo, notification);
+                }
+            }
+        }
+
+        /**
+         * Broadcast the state, inlining the item body for each node only once: nodes that have got the body
+         * with one of the previous broadcasts get the plain state notification.
+         */
+        private void broadcastWithItemBody(Notification notification,
+                                           ParcelNotification.ParcelNotificationType notificationType) {
+            List<NodeInfo> nodes = network.allNodes();
+            nodes.remove(myInfo);
+            if (itemBodySentTo.containsAll(nodes)) {
                 network.broadcast(myInfo, notification);
+                return;
+            }
+
+            Notification itemBodyNotification = makeItemBodyNotification(notificationType);
+            if (itemBodyNotification == null)
+                itemBodyNotification = notification;
+            for (NodeInfo node : nodes) {
+                if (itemBodySentTo.add(node))
+                    network.deliver(node, itemBodyNotification);
+                else
+                    network.deliver(node, notification);
             }
         }
 
+        /**
+         * Other nodes have not the item yet, so if it is small enough, send it with the state to let them skip
+         * downloading it. Size is limited both with {@link Config#getMaxInlineItemSize()} and with size
+         * of the notification that network could deliver at once.
+         *
+         * @return {@link ItemBodyNotification} or null if item should be downloaded as usual
+         */
+        private ItemBodyNotification makeItemBodyNotification(ParcelNotification.ParcelNotificationType notificationType) {
+            if (!(item instanceof Contract) || config.getMaxInlineItemSize() <= 0)
+                return null;
+
+            byte[] packedItem = ((Contract) item).getPackedTransaction();
+            if (packedItem.length > config.getMaxInlineItemSize() || packedItem.length > network.getMaxNotificationSize())
+                return null;
+
+            ItemBodyNotification notification = new ItemBodyNotification(myInfo, itemId, getResult(), true,
+                    notificationType, packedItem);
+            if (Notification.pack(Collections.<Notification>singletonList(notification)).length > network.getMaxNotificationSize())
+                return null;
+
+            return notification;
+        }
+
         private final void pulseStartPolling() {
             report(getLabel(), () -> concatReportMessage("item processor for item: ",
                     itemId, " from parcel: ", parcelId,
@@ -4048,10 +4330,11 @@ public class Node {
                     synchronized (mutex) {
                         if (!processingState.isProcessedToConsensus()) {
                             if (poller == null) {
-                                List<Integer> pollTimes = config.getPollTime();
+                                List<Integer> pollTimes = getPollTime();
+                                pollingStartedAt = System.nanoTime();
                                 poller = new RunnableWithDynamicPeriod(() -> sendStartPollingNotification(),
                                         pollTimes,
-                                        executorService
+                                        taskScheduler
                                 );
                                 poller.run();
                             }
@@ -4091,7 +4374,7 @@ public class Node {
                     notification = new ParcelNotification(myInfo, itemId, parcelId, getResult(), true, notificationType, notClass);
                     List<NodeInfo> nodes = network.allNodes();
                     for(NodeInfo node : nodes) {
-                        if (!positiveNodes.contains(node) && !negativeNodes.contains(node))
+                        if (!votes.hasVoted(node))
                             network.deliver(node, notification);
                     }
                 }
@@ -4109,8 +4392,7 @@ public class Node {
                 boolean negativeConsensus = false;
 
                 // check if vote already count
-                if((state.isPositive() && positiveNodes.contains(node)) ||
-                        (!state.isPositive() && negativeNodes.contains(node))) {
+                if(state.isPositive() ? votes.isPositive(node) : votes.isNegative(node)) {
                     return;
                 }
                 synchronized (mutex) {
@@ -4119,16 +4401,9 @@ public class Node {
                         return;
                     }
 
-                    Set<NodeInfo> add, remove;
-                    if (state.isPositive()) {
-                        add = positiveNodes;
-                        remove = negativeNodes;
-                    } else {
-                        add = negativeNodes;
-                        remove = positiveNodes;
-                    }
-                    add.add(node);
-                    remove.remove(node);
+                    if (!votes.hasVoted(node) && pollingStartedAt != 0 && !myInfo.equals(node))
+                        pollingSchedule.registerAnswer(node, System.nanoTime() - pollingStartedAt);
+                    votes.vote(node, state.isPositive());
 
                     if (processingState.isProcessedToConsensus()) {
                         if(processingState.isDone()) {
@@ -4137,15 +4412,17 @@ public class Node {
                         return;
                     }
 
-                    if (negativeNodes.size() >= config.getNegativeConsensus()) {
+                    // consensus is checked on each vote, so it is committed right away, not on the next polling
+                    if (votes.getNegativeCount() >= config.getNegativeConsensus()) {
                         negativeConsensus = true;
                         processingState = ItemProcessingState.GOT_CONSENSUS;
-                    } else if (positiveNodes.size() >= config.getPositiveConsensus()) {
+                    } else if (votes.getPositiveCount() >= config.getPositiveConsensus()) {
                         positiveConsensus = true;
                         processingState = ItemProcessingState.GOT_CONSENSUS;
                     }
                     if (!processingState.isProcessedToConsensus())
                         return;
+                    consensusReachedAt = System.nanoTime();
                 }
 
 
@@ -4167,7 +4444,7 @@ public class Node {
                 // todo: fix logic to surely copy approving item dependency. e.g. download original or at least dependencies
                 // first we need to flag our state as approved
                 setState(ItemState.APPROVED);
-                executorService.submit(() -> downloadAndCommit(),
+                ioExecutorService.submit(() -> downloadAndCommit(),
                         Node.this.toString() + toString() + " :: approveAndCommit -> downloadAndCommit");
             }
         }
@@ -4196,7 +4473,7 @@ public class Node {
                                 // if new item is smart contract node calls method onCreated or onUpdated
                                 if(newItem instanceof NSmartContract) {
 
-                                    if(negativeNodes.contains(myInfo)) {
+                                    if(votes.isNegative(myInfo)) {
                                         addItemToResync(itemId,record);
                                     } else {
 
@@ -4223,15 +4500,9 @@ public class Node {
                                 // update new item's smart contracts link to
                                 notifyContractSubscribers(newItem, r.getState());
 
-                                synchronized (cache) {
-                                    ItemResult rr = new ItemResult(r);
-                                    rr.extraDataBinder = newExtraResult;
-                                    if(cache.get(r.getId()) == null) {
-                                        cache.put(newItem, rr);
-                                    } else {
-                                        cache.update(r.getId(), rr);
-                                    }
-                                }
+                                ItemResult rr = new ItemResult(r);
+                                rr.extraDataBinder = newExtraResult;
+                                cache.putOrUpdate(newItem, rr);
                             } catch (Ledger.Failure failure) {
                                 emergencyBreak();
                                 return null;
@@ -4281,15 +4552,9 @@ public class Node {
 
                                 notifyContractSubscribers(revokingItem, r.getState());
 
-                                synchronized (cache) {
-                                    ItemResult rr = new ItemResult(r);
-                                    rr.extraDataBinder = null;
-                                    if(cache.get(r.getId()) == null) {
-                                        cache.put(revokingItem, rr);
-                                    } else {
-                                        cache.update(r.getId(), rr);
-                                    }
-                                }
+                                ItemResult rr = new ItemResult(r);
+                                rr.extraDataBinder = null;
+                                cache.putOrUpdate(revokingItem, rr);
                             } catch (Ledger.Failure failure) {
                                 emergencyBreak();
                                 return null;
@@ -4363,12 +4628,13 @@ public class Node {
 
                         try {
                             record.setExpiresAt(item.getExpiresAt());
+                            long started = System.nanoTime();
                             record.save();
+                            admission.registerLedgerLatency(System.nanoTime() - started);
+                            reportConsensusCommitted();
 
                             if (item != null) {
-                                synchronized (cache) {
-                                    cache.update(itemId, getResult());
-                                }
+                                cache.update(itemId, getResult());
 
                                 //save item to DB in Permanet mode
                                 if (config.isPermanetMode())
@@ -4393,7 +4659,7 @@ public class Node {
                             ((NSmartContract) item).setNodeInfoProvider(nodeInfoProvider);
 
 
-                            if(negativeNodes.contains(myInfo)) {
+                            if(votes.isNegative(myInfo)) {
                                 addItemToResync(item.getId(),record);
                             } else {
 
@@ -4413,9 +4679,7 @@ public class Node {
                                 me.save();
 
                                 if (item != null) {
-                                    synchronized (cache) {
-                                        cache.update(itemId, getResult());
-                                    }
+                                    cache.update(itemId, getResult());
                                 }
                             }
 
@@ -4450,9 +4714,7 @@ public class Node {
                             record.destroy();
 
                             if (item != null) {
-                                synchronized (cache) {
-                                    cache.update(itemId, null);
-                                }
+                                cache.update(itemId, null);
                             }
                             return null;
                         });
@@ -4618,84 +4880,97 @@ public class Node {
                     " :: rollbackChanges, state ", processingState, " itemState: ", getState()),
                     DatagramAdapter.VerboseLevel.BASE);
 
-            synchronized (ledgerRollbackLock) {
-
-
-                ledger.transaction(() -> {
-                    for (StateRecord r : lockedToRevoke) {
-                        try {
-                            itemLock.synchronize(r.getId(), lock -> {
+            // records are locked all together and in order of ids, so rollbacks of items that touch different
+            // records go in parallel, and rollbacks of conflicting items could not lock each other. Own mutex is
+            // taken first, as checking the item does.
+            try {
+                synchronized (mutex) {
+                    List<HashId> lockedIds = new ArrayList<>();
+                    lockedToRevoke.forEach(r -> lockedIds.add(r.getId()));
+                    lockedToCreate.forEach(r -> lockedIds.add(r.getId()));
+                    itemLock.synchronizeAll(lockedIds, () -> ledger.transaction(() -> {
+                        for (StateRecord r : lockedToRevoke) {
+                            try {
                                 r.unlock().save();
-                                synchronized (cache) {
-                                    ItemResult cr = cache.getResult(r.getId());
+                                cache.compute(r.getId(), cr -> {
                                     ItemResult rr = new ItemResult(r);
                                     if(cr != null) {
                                         rr.extraDataBinder = cr.extraDataBinder;
                                     }
-                                    cache.update(r.getId(), rr);
-                                }
-                                return null;
-                            });
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                                    return rr;
+                                });
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            }
                         }
-                    }
-                    lockedToRevoke.clear();
+                        lockedToRevoke.clear();
 
-                    // form created records, we touch only these that we have actually created
-                    for (StateRecord r : lockedToCreate) {
-                        try {
-                            itemLock.synchronize(r.getId(), lock -> {
+                        // form created records, we touch only these that we have actually created
+                        for (StateRecord r : lockedToCreate) {
+                            try {
                                 nameCache.unlockByLockerId(r.getId());
                                 r.unlock().save();
-                                synchronized (cache) {
-                                    ItemResult cr = cache.getResult(r.getId());
+                                cache.compute(r.getId(), cr -> {
                                     ItemResult rr = new ItemResult(r);
                                     if(cr != null) {
                                         rr.extraDataBinder = cr.extraDataBinder;
                                     }
-                                    cache.update(r.getId(), rr);
-                                }
-                                return null;
-                            });
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                                    return rr;
+                                });
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            }
                         }
-                    }
 
-                    nameCache.unlockByLockerId(itemId);
+                        nameCache.unlockByLockerId(itemId);
 
-                    // todo: concurrent modification can happen here!
-                    lockedToCreate.clear();
+                        // todo: concurrent modification can happen here!
+                        lockedToCreate.clear();
 
-                    setState(newState);
-                    ZonedDateTime expiration = ZonedDateTime.now()
-                            .plus(newState == ItemState.REVOKED ?
-                                    config.getRevokedItemExpiration() : config.getDeclinedItemExpiration());
-                    record.setExpiresAt(expiration);
-                    try {
-                        synchronized (mutex) {
+                        setState(newState);
+                        ZonedDateTime expiration = ZonedDateTime.now()
+                                .plus(newState == ItemState.REVOKED ?
+                                        config.getRevokedItemExpiration() : config.getDeclinedItemExpiration());
+                        record.setExpiresAt(expiration);
+                        try {
                             if (newState != ItemState.UNDEFINED) {
                                 record.save(); // TODO: current implementation will cause an inner dbPool.db() invocation
+                                reportConsensusCommitted();
 
                                 if (item != null) {
-                                    synchronized (cache) {
-                                        cache.update(itemId, getResult());
-                                    }
+                                    cache.update(itemId, getResult());
                                 }
                             } else {
 //                                log.e("Can not rollback to ItemState.UNDEFINED, will destroy item");
                                 record.destroy();
                             }
+                        } catch (Ledger.Failure failure) {
+                            failure.printStackTrace();
+                            log.e(failure.getMessage());
                         }
-                    } catch (Ledger.Failure failure) {
-                        failure.printStackTrace();
-                        log.e(failure.getMessage());
-                    }
-                    return null;
-                });
-                close();
+                        return null;
+                    }));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
             }
+            close();
+        }
+
+        /**
+         * Report time between reaching consensus and committing it to the ledger. Does nothing if the item is committed
+         * without consensus, e.g. on timeout.
+         */
+        private void reportConsensusCommitted() {
+            if (consensusReachedAt == 0)
+                return;
+            long nanos = System.nanoTime() - consensusReachedAt;
+            consensusReachedAt = 0;
+            nodeStats.registerConsensusCommit(nanos);
+            report(getLabel(), () -> concatReportMessage("item processor for item: ",
+                    itemId, " from parcel: ", parcelId,
+                    " :: consensus committed in ", nanos / 1000, " us, itemState: ", getState()),
+                    DatagramAdapter.VerboseLevel.DETAILED);
         }
 
         private void stopPoller() {
@@ -4720,10 +4995,10 @@ public class Node {
 
                 synchronized (mutex) {
                     if(consensusReceivedChecker == null) {
-                        List<Integer> periodsMillis = config.getConsensusReceivedCheckTime();
+                        List<Integer> periodsMillis = getConsensusReceivedCheckTime();
                         consensusReceivedChecker = new RunnableWithDynamicPeriod(() -> sendNewConsensusNotification(),
                                 periodsMillis,
-                                executorService
+                                taskScheduler
                         );
                         consensusReceivedChecker.run();
                     }
@@ -4766,7 +5041,7 @@ public class Node {
                 notification = new ParcelNotification(myInfo, itemId, parcelId, getResult(), true, notificationType, notClass);
                 List<NodeInfo> nodes = network.allNodes();
                 for(NodeInfo node : nodes) {
-                    if (!positiveNodes.contains(node) && !negativeNodes.contains(node)) {
+                    if (!votes.hasVoted(node)) {
                         // if node do not know own vote we do not send notification, just looking for own state
                         if(!myInfo.equals(node)) {
                             network.deliver(node, notification);
@@ -4783,7 +5058,7 @@ public class Node {
         private final Boolean checkIfAllReceivedConsensus() {
             if(processingState.canContinue()) {
                 List<NodeInfo> nodes = network.allNodes();
-                Boolean allReceived = nodes.size() <= positiveNodes.size() + negativeNodes.size();
+                Boolean allReceived = nodes.size() <= votes.getVotesCount();
 
                 if (allReceived) {
                     processingState = ItemProcessingState.FINISHED;
@@ -4869,7 +5144,7 @@ public class Node {
             this.isCheckingForce = isCheckingForce;
             if(processingState.canContinue()) {
                 if (processingState == ItemProcessingState.DOWNLOADED) {
-                    executorService.submit(() -> {
+                    checkExecutorService.submit(() -> {
                         checkItem();
                     }, Node.this.toString() + toString() + " :: forceChecking -> checkItem");
                 }
@@ -4990,7 +5265,7 @@ public class Node {
          * @return
          */
         private final boolean needsVoteFrom(NodeInfo node) {
-            return record.getState().isPending() && !positiveNodes.contains(node) && !negativeNodes.contains(node);
+            return record.getState().isPending() && !votes.hasVoted(node);
         }
 
         private final void addToSources(NodeInfo node) {
@@ -5041,7 +5316,7 @@ public class Node {
         private ConcurrentHashMap<HashId, Integer> resyncingSubTreeItems = new ConcurrentHashMap<>(); //assume it is ConcurrentHashSet
         private ConcurrentHashMap<HashId, ItemState> resyncingSubTreeItemsResults = new ConcurrentHashMap<>();
         private ConcurrentHashMap<NodeInfo, Integer> obtainedAnswersFromNodes = new ConcurrentHashMap<>(); //assume it is ConcurrentHashSet
-        private ScheduledFuture<?> resyncExpirationCallback;
+        private DelayedScheduler.Cancellable resyncExpirationCallback;
 
         public ResyncProcessor(HashId itemId, Consumer<ResyncingItem> onComplete) {
             this.itemId = itemId;
@@ -5059,13 +5334,13 @@ public class Node {
         public void startResync() {
             report(getLabel(), ()->"ResyncProcessor.startResync(itemId="+itemId+")", DatagramAdapter.VerboseLevel.BASE);
             resyncExpiresAt = Instant.now().plus(config.getMaxResyncTime());
-            resyncExpirationCallback = executorService.schedule(()->resyncEnded(), config.getMaxResyncTime().getSeconds(), TimeUnit.SECONDS);
+            resyncExpirationCallback = taskScheduler.schedule(()->resyncEnded(), config.getMaxResyncTime());
             resyncingItem = new ResyncingItem(itemId, ledger.getRecord(itemId));
             resyncingItem.finishEvent.addConsumer((ri)->onFinishResync(ri));
-            List<Integer> periodsMillis = config.getResyncTime();
+            List<Integer> periodsMillis = getResyncTime();
             obtainedAnswersFromNodes.clear();
             voteItself();
-            resyncer = new RunnableWithDynamicPeriod(() -> pulseResync(), periodsMillis, executorService);
+            resyncer = new RunnableWithDynamicPeriod(() -> pulseResync(), periodsMillis, taskScheduler);
             resyncer.run();
         }
 
@@ -5162,7 +5437,7 @@ public class Node {
 
         private void stopResync() {
             resyncer.cancel(true);
-            resyncExpirationCallback.cancel(true);
+            resyncExpirationCallback.cancel();
             resyncProcessors.remove(itemId);
         }
 
@@ -5170,11 +5445,9 @@ public class Node {
             if(!envSources.isEmpty()) {
                 HashSet<HashId> itemsToReResync = new HashSet<>();
                 HashId id = itemId;
-                Random random = new Random(Instant.now().toEpochMilli() * myInfo.getNumber());
-                Object[] array = envSources.keySet().toArray();
-                NodeInfo from = (NodeInfo) array[(int) (array.length * random.nextFloat())];
                 try {
-                    NImmutableEnvironment environment = network.getEnvironment(id, from, config.getMaxGetItemTime());
+                    // network could ask several sources at once and take the fastest answer
+                    NImmutableEnvironment environment = network.getEnvironment(id, new ArrayList<>(envSources.keySet()), config.getMaxGetItemTime());
                     if (environment != null) {
                         Set<HashId> conflicts = ledger.saveEnvironment(environment);
                         if (conflicts.size() > 0) {
@@ -5232,16 +5505,12 @@ public class Node {
                             if (r.getState() == ItemState.LOCKED) {
                                 r.setState(ItemState.REVOKED);
                                 r.save();
-                                synchronized (cache) {
-                                    cache.update(r.getId(), new ItemResult(r));
-                                }
+                                cache.update(r.getId(), new ItemResult(r));
                                 idsToRemove.add(r.getId());
                             } else if (r.getState() == ItemState.LOCKED_FOR_CREATION) {
                                 r.setState(ItemState.APPROVED);
                                 r.save();
-                                synchronized (cache) {
-                                    cache.update(r.getId(), new ItemResult(r));
-                                }
+                                cache.update(r.getId(), new ItemResult(r));
                                 idsToRemove.add(r.getId());
                             }
                         } else if (record.getState() == ItemState.DECLINED) {
@@ -5249,15 +5518,11 @@ public class Node {
                             if (r.getState() == ItemState.LOCKED) {
                                 r.setState(ItemState.APPROVED);
                                 r.save();
-                                synchronized (cache) {
-                                    cache.update(r.getId(), new ItemResult(r));
-                                }
+                                cache.update(r.getId(), new ItemResult(r));
                                 idsToRemove.add(r.getId());
                             } else if (r.getState() == ItemState.LOCKED_FOR_CREATION) {
                                 r.destroy();
-                                synchronized (cache) {
-                                    cache.update(r.getId(), null);
-                                }
+                                cache.update(r.getId(), null);
                                 idsToRemove.add(r.getId());
                             }
                         } else if (record.getState() == ItemState.REVOKED) {
@@ -5265,16 +5530,12 @@ public class Node {
                             if (r.getState() == ItemState.LOCKED) {
                                 r.setState(ItemState.REVOKED);
                                 r.save();
-                                synchronized (cache) {
-                                    cache.update(r.getId(), new ItemResult(r));
-                                }
+                                cache.update(r.getId(), new ItemResult(r));
                                 idsToRemove.add(r.getId());
                             } else if (r.getState() == ItemState.LOCKED_FOR_CREATION) {
                                 r.setState(ItemState.APPROVED);
                                 r.save();
-                                synchronized (cache) {
-                                    cache.update(r.getId(), new ItemResult(r));
-                                }
+                                cache.update(r.getId(), new ItemResult(r));
                                 idsToRemove.add(r.getId());
                             }
                         } else if (record.getState() == ItemState.UNDEFINED) {
@@ -5282,15 +5543,11 @@ public class Node {
                             if (r.getState() == ItemState.LOCKED) {
                                 r.setState(ItemState.APPROVED);
                                 r.save();
-                                synchronized (cache) {
-                                    cache.update(r.getId(), new ItemResult(r));
-                                }
+                                cache.update(r.getId(), new ItemResult(r));
                                 idsToRemove.add(r.getId());
                             } else if (r.getState() == ItemState.LOCKED_FOR_CREATION) {
                                 r.destroy();
-                                synchronized (cache) {
-                                    cache.update(r.getId(), null);
-                                }
+                                cache.update(r.getId(), null);
                                 idsToRemove.add(r.getId());
                             }
                         }
@@ -5335,9 +5592,7 @@ public class Node {
                 try {
                     itemLock.synchronize(record.getId(), lock -> {
                         record.destroy();
-                        synchronized (cache) {
-                            cache.update(record.getId(), new ItemResult(record));
-                        }
+                        cache.update(record.getId(), new ItemResult(record));
                         return null;
                     });
                 } catch (Exception e) {
@@ -5412,7 +5667,7 @@ public class Node {
         }
 
         // setting unlimited requests for a key
-        keyRequests.remove(key);
+        keyRequests.reset(key);
         keysUnlimited.remove(key);
         keysUnlimited.put(key, ZonedDateTime.now().plus(config.getUnlimitPeriod()));
     }
@@ -5664,16 +5919,16 @@ public class Node {
                     return;
             }
             if (revokedConsenus) {
-                executorService.submit(() -> resyncAndCommit(ItemState.REVOKED),
+                ioExecutorService.submit(() -> resyncAndCommit(ItemState.REVOKED),
                         Node.this.toString() + " > item " + hashId + " :: resyncVote -> resyncAndCommit");
             } else if (declinedConsenus) {
-                executorService.submit(() -> resyncAndCommit(ItemState.DECLINED),
+                ioExecutorService.submit(() -> resyncAndCommit(ItemState.DECLINED),
                         Node.this.toString() + " > item " + hashId + " :: resyncVote -> resyncAndCommit");
             } else if (approvedConsenus) {
-                executorService.submit(() -> resyncAndCommit(ItemState.APPROVED),
+                ioExecutorService.submit(() -> resyncAndCommit(ItemState.APPROVED),
                         Node.this.toString() + " > item " + hashId + " :: resyncVote -> resyncAndCommit");
             } else if (undefinedConsenus) {
-                executorService.submit(() -> resyncAndCommit(ItemState.UNDEFINED),
+                ioExecutorService.submit(() -> resyncAndCommit(ItemState.UNDEFINED),
 
                         Node.this.toString() + " > item " + hashId + " :: resyncVote -> resyncAndCommit");
             } else
@@ -5766,9 +6021,7 @@ public class Node {
                                     .setExpiresAt(expiresAt)
                                     .save();
                             this.record = newRecord;
-                            synchronized (cache) {
-                                cache.update(newRecord.getId(), new ItemResult(newRecord));
-                            }
+                            cache.update(newRecord.getId(), new ItemResult(newRecord));
                             return null;
                         });
                     } catch (Exception e) {
@@ -5865,7 +6118,7 @@ public class Node {
 
     public class UBotSessionProcessor {
 
-        private final VoteCache voteCache = new VoteCache(config.getMaxCacheAge());
+        private final VoteCache voteCache = new VoteCache(config.getMaxCacheAge(), expirationWheel);
         private HashId parentSessionId;
 
         public VoteCache getVoteCache() {
@@ -5896,7 +6149,7 @@ public class Node {
         private Map<NodeInfo,HashId> sessionIds = new ConcurrentHashMap<>();
 
         Node.UBotSessionState state;
-        private ScheduledFuture<?> broadcaster;
+        private RunnableWithDynamicPeriod broadcaster;
         private HashId mySessionId;
         private HashId sessionId;
         private Set<Integer> sessionPool;
@@ -6171,7 +6424,8 @@ public class Node {
 
         private synchronized void startBroadcastMyState() {
             stopBroadcastMyState();
-            broadcaster = executorService.scheduleAtFixedRate(this::broadcastMyState,0,500, TimeUnit.MILLISECONDS);
+            broadcaster = new RunnableWithDynamicPeriod(this::broadcastMyState, Arrays.asList(0, 500), taskScheduler);
+            broadcaster.run();
         }
 
         private synchronized void stopBroadcastMyState() {
@@ -6358,7 +6612,7 @@ public class Node {
             if(requestContract == null || !requestContract.getId().equals(requestId)) {
                 if(!requestContractSources.isEmpty()) {
                     try {
-                        requestContract = (Contract) network.getItem(requestId,Do.sample(requestContractSources), Duration.ofSeconds(15));
+                        requestContract = (Contract) network.getItem(requestId,Do.<NodeInfo>sample(requestContractSources), Duration.ofSeconds(15));
                         if(requestContract != null) {
                             cache.put(requestContract,checkItem(requestContract.getId()));
                         }
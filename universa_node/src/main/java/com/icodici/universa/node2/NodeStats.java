@@ -16,6 +16,9 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class NodeStats {
     public ZonedDateTime lastStatsBuildTime;
@@ -32,6 +35,34 @@ public class NodeStats {
     private Duration smallInterval;
     private DateTimeFormatter formatter;
 
+    private final LongAdder consensusCommits = new LongAdder();
+    private final LongAdder consensusCommitNanos = new LongAdder();
+    private final AtomicLong maxConsensusCommitNanos = new AtomicLong();
+
+    /**
+     * Count the item which consensus has been committed to the ledger.
+     *
+     * @param nanos is time between reaching consensus and committing it
+     */
+    public void registerConsensusCommit(long nanos) {
+        consensusCommits.increment();
+        consensusCommitNanos.add(nanos);
+        maxConsensusCommitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return {@link Binder} with count of committed consensuses, average and max time from reaching consensus to
+     * committing it
+     */
+    public Binder getConsensusCommitStats() {
+        long count = consensusCommits.sum();
+        return Binder.of(
+                "commits", count,
+                "avgMillis", count > 0 ? consensusCommitNanos.sum() / count / 1e6 : 0.0,
+                "maxMillis", TimeUnit.NANOSECONDS.toMillis(maxConsensusCommitNanos.get())
+        );
+    }
+
     public boolean collect(Ledger ledger, Config config) {
         if(!config.getStatsIntervalSmall().equals(smallInterval) || !config.getStatsIntervalBig().equals(bigInterval)) {
             //intervals changed. need to reset node
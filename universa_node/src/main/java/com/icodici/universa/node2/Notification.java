@@ -154,6 +154,7 @@ abstract public class Notification {
         // preload
         ItemNotification.init();
         ParcelNotification.init();
+        ItemBodyNotification.init();
         ResyncNotification.init();
         CallbackNotification.init();
         UBotSessionNotification.init();
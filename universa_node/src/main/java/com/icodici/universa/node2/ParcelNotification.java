@@ -49,8 +49,8 @@ public class ParcelNotification extends ItemNotification {
         super.writeTo(bw);
         bw.writeObject(type.ordinal());
         bw.writeObject(notificationClass.ordinal());
-        if(parcelId != null)
-            bw.writeObject(parcelId.getDigest());
+        // parcelId slot is always written so subclasses and batched notifications could follow it
+        bw.writeObject(parcelId != null ? parcelId.getDigest() : null);
     }
 
     @Override
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.DelayedScheduler;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Node-wide scheduler of delayed per-item tasks: pollers, consensus checkers, resyncers and broadcasters of item and
+ * session processors. Delays are counted by an {@link ExpirationWheel} with a short tick, so scheduling and cancelling
+ * a task take constant time however many tasks are pending, unlike the delay queue of a
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor}. Due tasks are handed over to the executor, so the wheel
+ * thread is never busy with the tasks themselves.
+ */
+public class TimingWheelScheduler implements DelayedScheduler {
+
+    /**
+     * Default tick. Polling delays start from tens of milliseconds.
+     */
+    static public final Duration DEFAULT_TICK = Duration.ofMillis(10);
+
+    private final ExpirationWheel wheel;
+    private final Executor executor;
+
+    /**
+     * Create scheduler and start its wheel thread.
+     *
+     * @param name is name of the wheel thread
+     * @param tick is precision of delays
+     * @param executor is executor to run due tasks
+     */
+    public TimingWheelScheduler(String name, Duration tick, Executor executor) {
+        this.wheel = new ExpirationWheel(name, tick);
+        this.executor = executor;
+    }
+
+    @Override
+    public Cancellable schedule(Runnable task, long delayMillis) {
+        return schedule(task, Duration.ofMillis(delayMillis));
+    }
+
+    /**
+     * Schedule the task.
+     *
+     * @param task is task to run in the executor
+     * @param delay is delay before the task runs, rounded up to the tick
+     *
+     * @return {@link ExpirationWheel.Timeout} to cancel the task with
+     */
+    public ExpirationWheel.Timeout schedule(Runnable task, Duration delay) {
+        return wheel.schedule(delay, () -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // executor is shutting down, the task is not needed any more
+            }
+        });
+    }
+
+    /**
+     * @return count of tasks waiting in the wheel, including cancelled ones that are not dropped yet
+     */
+    public int getQueueDepth() {
+        return wheel.getTimeoutsCount();
+    }
+
+    public void shutdown() {
+        wheel.shutdown();
+    }
+}
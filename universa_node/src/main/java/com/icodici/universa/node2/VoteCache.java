@@ -8,11 +8,7 @@
 package com.icodici.universa.node2;
 
 import com.icodici.crypto.PublicKey;
-import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
-import com.icodici.universa.node.ItemResult;
-import net.sergeych.utils.Base64;
-import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.time.Duration;
 import java.time.Instant;
@@ -23,28 +19,22 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class VoteCache {
 
-    private final Timer cleanerTimer = new Timer();
-    private final Duration maxAge;
+    private final ExpiringMap<HashId,Set<PublicKey>> records;
 
     public VoteCache(Duration maxAge) {
-        this.maxAge = maxAge;
-        cleanerTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                cleanUp();
-            }
-        }, 5000, 5000);
+        this(maxAge, ExpirationWheel.getDefault());
+    }
+
+    public VoteCache(Duration maxAge, ExpirationWheel expirationWheel) {
+        records = new ExpiringMap<>(expirationWheel, maxAge);
     }
 
     final void cleanUp() {
-        // we should avoid creating an object for each check:
-        Instant now = Instant.now();
-        records.values().forEach(r->r.checkExpiration(now));
+        records.cleanUp();
     }
 
     public void shutdown() {
-        cleanerTimer.cancel();
-        cleanerTimer.purge();
+        records.clear();
     }
 
 
@@ -54,41 +44,18 @@ public class VoteCache {
         return records.size();
     }
 
-    private Map<HashId,Record> records = new ConcurrentHashMap();
-
     public ZonedDateTime addVote(HashId itemId, PublicKey publicKey) {
-        records.putIfAbsent(itemId, new Record(itemId));
-        Record r = records.get(itemId);
-        r.votes.add(publicKey);
-        return ZonedDateTime.ofInstant(r.expiresAt, ZoneId.systemDefault());
+        // vote is added and expiration is read in the same operation, so the entry can't expire in between
+        Instant expiresAt = records.compute(itemId, ConcurrentHashMap::newKeySet, votes -> votes.add(publicKey));
+        return ZonedDateTime.ofInstant(expiresAt, ZoneId.systemDefault());
     }
 
     public ZonedDateTime getVoteExpires(HashId itemId) {
-        Record r = records.get(itemId);
-        return r != null ?  ZonedDateTime.ofInstant(r.expiresAt, ZoneId.systemDefault()) : null;
+        Instant expiresAt = records.getExpiresAt(itemId);
+        return expiresAt != null ?  ZonedDateTime.ofInstant(expiresAt, ZoneId.systemDefault()) : null;
     }
 
     public Set<PublicKey> getVoteKeys(HashId itemId) {
-        Record r = records.get(itemId);
-        return r != null ?  r.votes : null;
-    }
-
-    private class Record {
-        private Instant expiresAt;
-        private HashId itemId;
-        private Set<PublicKey> votes;
-
-        private Record(HashId itemId) {
-            expiresAt = Instant.now().plus(maxAge);
-            this.itemId = itemId;
-            this.votes = ConcurrentHashMap.newKeySet();
-        }
-
-        private void checkExpiration(Instant now) {
-            if( expiresAt.isBefore(now) ) {
-//                System.out.println("cache expired "+item.getId());
-                records.remove(itemId);
-            }
-        }
+        return records.get(itemId);
     }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import java.util.BitSet;
+
+/**
+ * Votes of the network nodes for one item. Each node has at most one vote, positive or negative, and could change it.
+ * Votes are kept as two bitsets indexed by node number, so counting a vote costs no hashing and the tally takes a
+ * couple of words per item instead of two hash sets of {@link NodeInfo}.
+ */
+public class VoteTally {
+
+    private final BitSet positive = new BitSet();
+    private final BitSet negative = new BitSet();
+
+    /**
+     * Count the vote of the node, replacing its former vote if any.
+     *
+     * @param node is node that votes
+     * @param isPositive is the vote
+     *
+     * @return false if the same vote of the node is already counted
+     */
+    public synchronized boolean vote(NodeInfo node, boolean isPositive) {
+        int n = node.getNumber();
+        BitSet add = isPositive ? positive : negative;
+        if (add.get(n))
+            return false;
+        add.set(n);
+        (isPositive ? negative : positive).clear(n);
+        return true;
+    }
+
+    public synchronized boolean isPositive(NodeInfo node) {
+        return positive.get(node.getNumber());
+    }
+
+    public synchronized boolean isNegative(NodeInfo node) {
+        return negative.get(node.getNumber());
+    }
+
+    /**
+     * @param node is node to check
+     *
+     * @return true if the node has voted either way
+     */
+    public synchronized boolean hasVoted(NodeInfo node) {
+        int n = node.getNumber();
+        return positive.get(n) || negative.get(n);
+    }
+
+    public synchronized int getPositiveCount() {
+        return positive.cardinality();
+    }
+
+    public synchronized int getNegativeCount() {
+        return negative.cardinality();
+    }
+
+    /**
+     * @return count of nodes that have voted either way
+     */
+    public synchronized int getVotesCount() {
+        return positive.cardinality() + negative.cardinality();
+    }
+}
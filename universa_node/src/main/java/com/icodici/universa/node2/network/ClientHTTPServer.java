@@ -529,6 +529,17 @@ public class ClientHTTPServer extends BasicHttpServer {
         return res;
     }
 
+    /**
+     * Answer to a registration refused by {@link Node#admitRegistration(boolean)}. Item is not registered; the error
+     * is {@link Errors#OVERLOADED} and "retryAfter" tells in how many milliseconds the client could repeat the request.
+     */
+    private Binder overloaded(String resultKey, String object, long retryAfter) {
+        return Binder.of(
+                resultKey, itemResultOfError(Errors.OVERLOADED, object,
+                        "node is overloaded, retry after " + retryAfter + " ms"),
+                "retryAfter", retryAfter);
+    }
+
     private ItemResult itemResultOfError(Errors error, String object, String message) {
         Binder binder = new Binder();
         binder.put("state",ItemState.UNDEFINED.name());
@@ -546,6 +557,10 @@ public class ClientHTTPServer extends BasicHttpServer {
         Contract contract;
         checkNode(session);
 
+        long retryAfter = node.admitRegistration(false);
+        if (retryAfter > 0)
+            return overloaded("itemResult", "approve", retryAfter);
+
         if (config.limitFreeRegistrations() &&
             (!(
                 config.getNetworkAdminKeyAddress().isMatchingKey(session.getPublicKey()) ||
@@ -647,6 +662,9 @@ public class ClientHTTPServer extends BasicHttpServer {
 
     private Binder approveParcel(Binder params, Session session) throws IOException, Quantiser.QuantiserException {
         checkNode(session);
+        long retryAfter = node.admitRegistration(true);
+        if (retryAfter > 0)
+            return overloaded("result", "approveParcel", retryAfter);
         try {
     //        System.out.println("Request to approve parcel, package size: " + params.getBinaryOrThrow("packedItem").length);
             return Binder.of(
@@ -662,6 +680,9 @@ public class ClientHTTPServer extends BasicHttpServer {
 
     private Binder approvePaidOperation(Binder params, Session session) throws IOException {
         checkNode(session);
+        long retryAfter = node.admitRegistration(true);
+        if (retryAfter > 0)
+            return overloaded("result", "approvePaidOperation", retryAfter);
         try {
             return Binder.of(
                     "result",
@@ -68,6 +68,37 @@ public abstract class DatagramAdapter {
      */
     static public final int RETRANSMIT_TIME_GROW_FACTOR = 4;
 
+    /**
+     * Bounds of retransmit timeout. Each session estimates it from round-trip time of acknowledged packets,
+     * {@link #RETRANSMIT_TIME} is used until first estimation. Retransmits are checked each MIN_RETRANSMIT_TIME. Upper
+     * bound is of RFC 6298 order (seconds) to follow WAN round-trip times; it is lower than 60s of the RFC as delays
+     * here grow linearly rather than double, so a packet is retransmitted for minutes at this timeout anyway.
+     */
+    static public final int MIN_RETRANSMIT_TIME = RETRANSMIT_TIME / 5;
+    static public final int MAX_RETRANSMIT_TIME = 3000;
+
+    /**
+     * Max time a packet is retransmitted with the given retransmit timeout: sum of {@link #RETRANSMIT_MAX_ATTEMPTS}
+     * growing delays, with +25% of randomization.
+     *
+     * @param retransmitTimeout is retransmit timeout, in milliseconds
+     * @return time in milliseconds
+     */
+    static public int getMaxRetransmitLifetime(int retransmitTimeout) {
+        int sum = 0;
+        for (int counter = 0; counter <= RETRANSMIT_MAX_ATTEMPTS; counter++)
+            sum += (RETRANSMIT_TIME_GROW_FACTOR * counter + RETRANSMIT_MAX_ATTEMPTS) * retransmitTimeout / RETRANSMIT_MAX_ATTEMPTS;
+        return sum * 5 / 4;
+    }
+
+    /**
+     * Congestion window limits number of not acknowledged data blocks of a session. It starts from
+     * INITIAL_CONGESTION_WINDOW, grows with acknowledgements and halves on retransmits, but no lower than
+     * MIN_CONGESTION_WINDOW and no higher than {@link #MAX_RETRANSMIT_QUEUE_SIZE}.
+     */
+    static public final int INITIAL_CONGESTION_WINDOW = 64;
+    static public final int MIN_CONGESTION_WINDOW = 8;
+
     /**
      * Time limit for handshaking procedure. If handshake is not complete for this time, it will be restarted.
      */
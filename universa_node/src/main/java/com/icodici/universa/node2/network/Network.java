@@ -17,9 +17,11 @@ import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import com.icodici.universa.node2.Notification;
 import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
 
 import java.io.IOException;
 import java.time.Duration;
+import java.util.Collection;
 import java.util.List;
 import java.util.function.Consumer;
 
@@ -78,6 +80,46 @@ public abstract class Network {
     public abstract PaidOperation getPaidOperation(HashId itemId, NodeInfo node, Duration maxTimeout)
             throws InterruptedException;
 
+    /**
+     * Block until the item will be available from any of specified nodes non excessing specified timeout. Default
+     * implementation asks one random node, networks could ask several nodes at once.
+     *
+     * @param itemId item do load
+     * @param sources nodes where the item could be loaded from, should not be empty
+     * @param maxTimeout is maximum timeout
+     * @return the downloaded item, null if nodes can't provide it or network error has occurred
+     *
+     * @throws InterruptedException with unexpected interruption
+     */
+    public Approvable getItem(HashId itemId, Collection<NodeInfo> sources, Duration maxTimeout)
+            throws InterruptedException {
+        return getItem(itemId, Do.<NodeInfo>sample(sources), maxTimeout);
+    }
+
+    /**
+     * Same as {@link #getItem(HashId, Collection, Duration)} for environments of smart contracts.
+     */
+    public NImmutableEnvironment getEnvironment(HashId itemId, Collection<NodeInfo> sources, Duration maxTimeout)
+            throws InterruptedException {
+        return getEnvironment(itemId, Do.<NodeInfo>sample(sources), maxTimeout);
+    }
+
+    /**
+     * Same as {@link #getItem(HashId, Collection, Duration)} for parcels.
+     */
+    public Parcel getParcel(HashId itemId, Collection<NodeInfo> sources, Duration maxTimeout)
+            throws InterruptedException {
+        return getParcel(itemId, Do.<NodeInfo>sample(sources), maxTimeout);
+    }
+
+    /**
+     * Same as {@link #getItem(HashId, Collection, Duration)} for paid operations.
+     */
+    public PaidOperation getPaidOperation(HashId itemId, Collection<NodeInfo> sources, Duration maxTimeout)
+            throws InterruptedException {
+        return getPaidOperation(itemId, Do.<NodeInfo>sample(sources), maxTimeout);
+    }
+
     /**
      * Deliver notification to all nodes except one
      *
@@ -111,6 +153,13 @@ public abstract class Network {
 
     public void shutdown() {}
 
+    /**
+     * @return max size of packed notification that could be delivered by this network at once
+     */
+    public int getMaxNotificationSize() {
+        return Integer.MAX_VALUE;
+    }
+
     public ItemResult getItemState(NodeInfo nodeInfo, HashId id) throws IOException {
         return null;
     }
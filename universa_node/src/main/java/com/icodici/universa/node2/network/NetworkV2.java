@@ -30,13 +30,62 @@ import java.net.URL;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.Callable;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 public class NetworkV2 extends Network {
 
+    /**
+     * Maximum number of notifications coalesced into one outgoing frame.
+     */
+    static public final int MAX_NOTIFICATIONS_PER_BATCH = 32;
+
+    /**
+     * Maximum size of packed notifications in one outgoing frame, in bytes. Leaves room for {@link UDPAdapter} packet
+     * header, session encryption and relay wrapping, so the datagram still fits {@link DatagramAdapter#MAX_PACKET_SIZE}.
+     * Single notification that is bigger is sent alone, as before.
+     */
+    static public final int MAX_BATCH_PAYLOAD_SIZE = 400;
+
+    /**
+     * Reserved for frame header (packet type code, sender number and notifications count), in bytes.
+     */
+    static private final int BATCH_HEADER_SIZE = 12;
+
+    /**
+     * Frame that is bigger than {@link #MAX_BATCH_PAYLOAD_SIZE} is sent to the nodes that can reassemble it (see
+     * {@link UDPAdapter#PROTOCOL_VERSION_ITEM_BODIES}) in fragments of this size, each in its own datagram.
+     */
+    static public final int FRAGMENT_SIZE = MAX_BATCH_PAYLOAD_SIZE - 32;
+
+    /**
+     * Max number of fragments of one frame.
+     */
+    static public final int MAX_FRAGMENTS = 256;
+
+    /**
+     * Incomplete fragmented frames are dropped after this time, in milliseconds.
+     */
+    static public final int FRAGMENTS_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Max number of fragmented frames being reassembled at once. Fragments of other frames are dropped.
+     */
+    static public final int MAX_INCOMPLETE_FRAMES = 1024;
+
+    static private final int FRAME_NOTIFICATIONS = 1;
+    static private final int FRAME_FRAGMENT = 2;
+
+    /**
+     * Default time an incomplete batch waits for more notifications to the same node, in microseconds.
+     */
+    static public final int DEFAULT_BATCH_FLUSH_DELAY_MICROS = 500;
+
     private final NodeInfo myInfo;
     private final PrivateKey myKey;
+    private final int udpEngine;
     private UDPAdapter adapter;
 
 //    private Map<NodeInfo, Node> nodes = new HashMap<>();
@@ -46,12 +95,54 @@ public class NetworkV2 extends Network {
     private Consumer<Notification> consumer;
     private Map<NodeInfo, ConnectivityInfo> connectivityMap;
 
+    private final ConcurrentHashMap<NodeInfo, OutgoingBatch> outgoingBatches = new ConcurrentHashMap<>();
+    private volatile int batchFlushDelayMicros = DEFAULT_BATCH_FLUSH_DELAY_MICROS;
+    private final ScheduledExecutorService batchFlusher;
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong notificationsSent = new AtomicLong();
+    private final AtomicLong packedBytesSent = new AtomicLong();
+
+    private final AtomicInteger nextFragmentedFrameId = new AtomicInteger();
+    private final ConcurrentHashMap<String, IncomingFrame> incomingFrames = new ConcurrentHashMap<>();
+    private final AtomicLong fragmentsSent = new AtomicLong();
+    private final AtomicLong framesReassembled = new AtomicLong();
+    private final AtomicLong fragmentedFramesDropped = new AtomicLong();
+
+    private final NodeHttpClient httpClient;
+
     public NetworkV2(NetConfig netConfig, NodeInfo myInfo, PrivateKey myKey) throws IOException {
+        this(netConfig, myInfo, myKey, UDPAdapter.Engines.SOCKET);
+    }
+
+    /**
+     * Create network with specified {@link UDPAdapter} engine.
+     *
+     * @param netConfig is {@link NetConfig} where all nodes data is stored
+     * @param myInfo is {@link NodeInfo} of this node
+     * @param myKey is {@link PrivateKey} of this node
+     * @param udpEngine is one of {@link UDPAdapter.Engines}
+     * @throws IOException if something went wrong
+     */
+    public NetworkV2(NetConfig netConfig, NodeInfo myInfo, PrivateKey myKey, int udpEngine) throws IOException {
         super(netConfig);
         this.myInfo = myInfo;
         this.myKey = myKey;
+        this.udpEngine = udpEngine;
+
+        batchFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setName("network-" + myInfo.getNumber() + "-batch-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
 
-        adapter = new UDPAdapter(myKey, new SymmetricKey(), myInfo, netConfig);
+        httpClient = new NodeHttpClient(myInfo);
+
+        batchFlusher.scheduleAtFixedRate(this::dropExpiredFrames,
+                FRAGMENTS_TIMEOUT_MILLIS / 2, FRAGMENTS_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+
+        adapter = new UDPAdapter(myKey, new SymmetricKey(), myInfo, netConfig, udpEngine);
 //        adapter.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
         adapter.receive(this::onReceived);
         adapter.addErrorsCallback(this::exceptionCallback);
@@ -60,6 +151,11 @@ public class NetworkV2 extends Network {
     private final void onReceived(byte[] packedNotifications) {
         try {
             if (consumer != null) {
+                if (isFragment(packedNotifications)) {
+                    packedNotifications = addFragment(packedNotifications);
+                    if (packedNotifications == null)
+                        return;
+                }
                 List<Notification> nn = unpack(packedNotifications);
                 for (Notification n : nn) {
                     if( n == null )
@@ -81,7 +177,7 @@ public class NetworkV2 extends Network {
         try {
             // packet type code
             Boss.Reader r = new Boss.Reader(packedNotifications);
-            if (r.readInt() != 1)
+            if (r.readInt() != FRAME_NOTIFICATIONS)
                 throw new IOException("invalid packed notification type code");
 
             // from node number
@@ -109,7 +205,7 @@ public class NetworkV2 extends Network {
     private final byte[] packNotifications(NodeInfo from, Collection<Notification> notifications) {
         Boss.Writer w = new Boss.Writer();
         try {
-            w.write(1)                                      // packet type code
+            w.write(FRAME_NOTIFICATIONS)                    // packet type code
                     .write(from.getNumber())                // from number
                     .write(notifications.size());           // count notifications
             notifications.forEach(n -> {
@@ -125,14 +221,108 @@ public class NetworkV2 extends Network {
         }
     }
 
+    /**
+     * Put the notification to the batch of its destination node. Batch is sent as one multi-notification frame when
+     * it reaches {@link #MAX_NOTIFICATIONS_PER_BATCH} or {@link #MAX_BATCH_PAYLOAD_SIZE}, or when
+     * {@link #getBatchFlushDelayMicros()} is passed since the first notification has been added to it.
+     *
+     * @param toNode is {@link NodeInfo} of node for sending
+     * @param notification is sending {@link Notification}
+     */
     @Override
     public void deliver(NodeInfo toNode, Notification notification) {
+        deliver(toNode, notification, batchFlushDelayMicros > 0 ? packedSize(notification) : 0);
+    }
+
+    /**
+     * Deliver notification to all nodes except one. Notification is packed only once to estimate its size.
+     *
+     * @param exceptNode   if not null, do not deliver to it.
+     * @param notification notification fo deliver
+     */
+    @Override
+    public void broadcast(NodeInfo exceptNode, Notification notification) {
+        int size = batchFlushDelayMicros > 0 ? packedSize(notification) : 0;
+        netConfig.forEachNode(node -> {
+            if (exceptNode != null && !exceptNode.equals(node))
+                deliver(node, notification, size);
+        });
+    }
+
+    private void deliver(NodeInfo toNode, Notification notification, int packedSize) {
+        if (notification instanceof ItemBodyNotification && !isItemBodySupported(toNode)) {
+            // node of previous version can't read it, and would drop whole frame with it
+            notification = ((ItemBodyNotification) notification).withoutBody();
+            packedSize = batchFlushDelayMicros > 0 ? packedSize(notification) : 0;
+        }
+
+        logNotification(notification,toNode);
+
+        if (batchFlushDelayMicros <= 0) {
+            sendFrame(toNode, Do.listOf(notification), packedSize);
+            return;
+        }
+
+        OutgoingBatch batch = outgoingBatches.computeIfAbsent(toNode, OutgoingBatch::new);
+        List<Notification> previous = null;
+        List<Notification> ready = null;
+        int previousSize = 0;
+        int readySize = 0;
+        synchronized (batch) {
+            if (!batch.notifications.isEmpty() && batch.packedSize + packedSize > MAX_BATCH_PAYLOAD_SIZE) {
+                previousSize = batch.packedSize;
+                previous = batch.drain();
+            }
+            batch.add(notification, packedSize);
+            if (batch.notifications.size() >= MAX_NOTIFICATIONS_PER_BATCH || batch.packedSize >= MAX_BATCH_PAYLOAD_SIZE) {
+                readySize = batch.packedSize;
+                ready = batch.drain();
+            } else if (batch.flushTask == null) {
+                try {
+                    batch.flushTask = batchFlusher.schedule(() -> flushBatch(batch), batchFlushDelayMicros, TimeUnit.MICROSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // network is shutting down, send immediately
+                    readySize = batch.packedSize;
+                    ready = batch.drain();
+                }
+            }
+        }
+        if (previous != null)
+            sendFrame(toNode, previous, previousSize);
+        if (ready != null)
+            sendFrame(toNode, ready, readySize);
+    }
+
+    private void flushBatch(OutgoingBatch batch) {
+        List<Notification> ready;
+        int readySize;
+        synchronized (batch) {
+            batch.flushTask = null;
+            if (batch.notifications.isEmpty())
+                return;
+            readySize = batch.packedSize;
+            ready = batch.drain();
+        }
+        sendFrame(batch.destination, ready, readySize);
+    }
+
+    private void flushAllBatches() {
+        outgoingBatches.values().forEach(this::flushBatch);
+    }
+
+    private void sendFrame(NodeInfo toNode, List<Notification> notifications, int packedSize) {
         try {
-            byte[] data = packNotifications(myInfo, Do.listOf(notification));
-            logNotification(notification,toNode);
+            byte[] data = packNotifications(myInfo, notifications);
+
+            framesSent.incrementAndGet();
+            notificationsSent.addAndGet(notifications.size());
+            packedBytesSent.addAndGet(packedSize);
 
             if(adapter != null) {
-                adapter.send(toNode, data);
+                if (data.length > MAX_BATCH_PAYLOAD_SIZE && isItemBodySupported(toNode))
+                    sendFragments(toNode, data);
+                else
+                    adapter.send(toNode, data);
             } else {
                 report(getLabel(), "UDPAdapter is null");
             }
@@ -144,6 +334,248 @@ public class NetworkV2 extends Network {
         }
     }
 
+    /**
+     * Send frame in fragments of {@link #FRAGMENT_SIZE}. UDP sessions deliver each of them, maybe in another order.
+     *
+     * @param toNode is {@link NodeInfo} of node for sending
+     * @param data is packed frame
+     */
+    private void sendFragments(NodeInfo toNode, byte[] data) throws InterruptedException, IOException {
+        int count = (data.length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+        if (count > MAX_FRAGMENTS)
+            throw new IOException("frame is too big to be sent: " + data.length);
+        int frameId = nextFragmentedFrameId.incrementAndGet();
+        for (int i = 0; i < count; i++) {
+            int from = i * FRAGMENT_SIZE;
+            Boss.Writer w = new Boss.Writer();
+            w.write(FRAME_FRAGMENT, myInfo.getNumber(), frameId, i, count,
+                    Arrays.copyOfRange(data, from, Math.min(data.length, from + FRAGMENT_SIZE)));
+            adapter.send(toNode, w.toByteArray());
+        }
+        fragmentsSent.addAndGet(count);
+    }
+
+    private static boolean isFragment(byte[] data) {
+        try {
+            return new Boss.Reader(data).readInt() == FRAME_FRAGMENT;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Put received fragment to its frame.
+     *
+     * @param data is packed fragment
+     * @return whole frame if it is complete now, otherwise null
+     */
+    private byte[] addFragment(byte[] data) throws IOException {
+        Boss.Reader r = new Boss.Reader(data);
+        r.readInt();
+        int number = r.readInt();
+        int frameId = r.readInt();
+        int index = r.readInt();
+        int count = r.readInt();
+        byte[] chunk = r.readBinary();
+        if (count <= 0 || count > MAX_FRAGMENTS || index < 0 || index >= count || chunk == null)
+            throw new IOException("invalid fragment " + index + " of " + count + " from node " + number);
+
+        String key = number + ":" + frameId;
+        IncomingFrame frame = incomingFrames.get(key);
+        if (frame == null) {
+            if (incomingFrames.size() >= MAX_INCOMPLETE_FRAMES) {
+                fragmentedFramesDropped.incrementAndGet();
+                report(getLabel(), "too many incomplete frames, fragment from node " + number + " is dropped",
+                        DatagramAdapter.VerboseLevel.BASE);
+                return null;
+            }
+            frame = incomingFrames.computeIfAbsent(key, k -> new IncomingFrame(count));
+        }
+
+        byte[] whole = frame.add(index, count, chunk);
+        if (whole != null) {
+            incomingFrames.remove(key, frame);
+            framesReassembled.incrementAndGet();
+        }
+        return whole;
+    }
+
+    private void dropExpiredFrames() {
+        long expiredAt = System.currentTimeMillis() - FRAGMENTS_TIMEOUT_MILLIS;
+        incomingFrames.forEach((key, frame) -> {
+            if (frame.createdAt < expiredAt && incomingFrames.remove(key, frame))
+                fragmentedFramesDropped.incrementAndGet();
+        });
+    }
+
+    /**
+     * @param node is {@link NodeInfo} of remote node
+     * @return true if node has reported it reads {@link ItemBodyNotification} and fragmented frames
+     */
+    private boolean isItemBodySupported(NodeInfo node) {
+        UDPAdapter a = adapter;
+        return a != null && a.getRemoteProtocolVersion(node) >= UDPAdapter.PROTOCOL_VERSION_ITEM_BODIES;
+    }
+
+    /**
+     * Fragments of the frame received so far.
+     */
+    private static class IncomingFrame {
+        private final long createdAt = System.currentTimeMillis();
+        private final byte[][] chunks;
+        private int received = 0;
+        private int size = 0;
+
+        IncomingFrame(int count) {
+            chunks = new byte[count][];
+        }
+
+        /**
+         * @return whole frame if it is complete with this fragment, otherwise null
+         */
+        private synchronized byte[] add(int index, int count, byte[] chunk) throws IOException {
+            if (count != chunks.length)
+                throw new IOException("fragments count mismatch: " + count + " instead of " + chunks.length);
+            if (chunks[index] != null || received == chunks.length)
+                return null;
+            chunks[index] = chunk;
+            size += chunk.length;
+            if (++received < chunks.length)
+                return null;
+            byte[] result = new byte[size];
+            int offset = 0;
+            for (byte[] c : chunks) {
+                System.arraycopy(c, 0, result, offset, c.length);
+                offset += c.length;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Estimate size of the notification in the frame. Notifications packed together could share Boss cache, so
+     * it is the upper bound.
+     *
+     * @param notification to estimate
+     * @return size in bytes
+     */
+    private int packedSize(Notification notification) {
+        Boss.Writer w = new Boss.Writer();
+        try {
+            Notification.write(w, notification);
+            return w.toByteArray().length;
+        } catch (IOException e) {
+            throw new RuntimeException("notificaiton pack failure", e);
+        }
+    }
+
+    /**
+     * Notifications waiting to be sent to the same node together.
+     */
+    private class OutgoingBatch {
+        private final NodeInfo destination;
+        private List<Notification> notifications = new ArrayList<>();
+        private int packedSize = BATCH_HEADER_SIZE;
+        private ScheduledFuture<?> flushTask;
+
+        OutgoingBatch(NodeInfo destination) {
+            this.destination = destination;
+        }
+
+        private void add(Notification notification, int size) {
+            notifications.add(notification);
+            packedSize += size;
+        }
+
+        private List<Notification> drain() {
+            List<Notification> result = notifications;
+            notifications = new ArrayList<>();
+            packedSize = BATCH_HEADER_SIZE;
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Statistics of outgoing notification frames: how many notifications are coalesced into one frame and how full
+     * frames are comparing to {@link #MAX_NOTIFICATIONS_PER_BATCH} and {@link #MAX_BATCH_PAYLOAD_SIZE}, and how
+     * bigger frames are fragmented and reassembled.
+     *
+     * @return {@link Binder} with batching stats
+     */
+    public Binder getBatchingStats() {
+        long frames = framesSent.get();
+        long notifications = notificationsSent.get();
+        long bytes = packedBytesSent.get();
+        return Binder.of(
+                "frames", frames,
+                "notifications", notifications,
+                "notificationsPerFrame", frames > 0 ? (double) notifications / frames : 0.0,
+                "countFillRatio", frames > 0 ? (double) notifications / frames / MAX_NOTIFICATIONS_PER_BATCH : 0.0,
+                "sizeFillRatio", frames > 0 ? (double) bytes / frames / MAX_BATCH_PAYLOAD_SIZE : 0.0,
+                "fragmentsSent", fragmentsSent.get(),
+                "framesReassembled", framesReassembled.get(),
+                "incompleteFrames", incomingFrames.size(),
+                "fragmentedFramesDropped", fragmentedFramesDropped.get(),
+                "flushDelayMicros", batchFlushDelayMicros
+        );
+    }
+
+    /**
+     * Statistics of UDP sessions with other nodes, see {@link UDPAdapter#getSessionsStats()}.
+     *
+     * @return {@link Binder} with stats for each remote node number
+     */
+    public Binder getUdpSessionsStats() {
+        return adapter != null ? adapter.getSessionsStats() : new Binder();
+    }
+
+    /**
+     * Statistics of UDP receiving, see {@link UDPAdapter#getReceiveStats()}.
+     *
+     * @return {@link Binder} with receive stats
+     */
+    public Binder getUdpReceiveStats() {
+        return adapter != null ? adapter.getReceiveStats() : new Binder();
+    }
+
+    /**
+     * Notification that doesn't fit {@link #MAX_BATCH_PAYLOAD_SIZE} is sent in fragments, so it is limited with
+     * {@link #MAX_FRAGMENTS}. Nodes of previous versions get {@link ItemBodyNotification} without body.
+     */
+    @Override
+    public int getMaxNotificationSize() {
+        return MAX_FRAGMENTS * FRAGMENT_SIZE - BATCH_HEADER_SIZE;
+    }
+
+    /**
+     * Statistics of downloads from other nodes, see {@link NodeHttpClient#getStats()}.
+     *
+     * @return {@link Binder} with stats for each remote node number
+     */
+    public Binder getHttpFetchStats() {
+        return httpClient.getStats();
+    }
+
+    public int getBatchFlushDelayMicros() {
+        return batchFlushDelayMicros;
+    }
+
+    /**
+     * Set time an incomplete batch waits for more notifications to the same node. Zero disables batching, so each
+     * notification is sent in its own frame.
+     *
+     * @param batchFlushDelayMicros delay in microseconds
+     */
+    public void setBatchFlushDelayMicros(int batchFlushDelayMicros) {
+        this.batchFlushDelayMicros = batchFlushDelayMicros;
+        if (batchFlushDelayMicros <= 0)
+            flushAllBatches();
+    }
+
     private void logNotification(Notification notification, NodeInfo to) {
         try {
 
@@ -220,20 +652,10 @@ public class NetworkV2 extends Network {
     @Override
     public Approvable getItem(HashId itemId, NodeInfo nodeInfo, Duration maxTimeout) throws InterruptedException {
         try {
-//            URL url = new URL("http://localhost:8080/contracts/" + itemId.toBase64String());
-            URL url = new URL((myInfo.hasV6() ? nodeInfo.serverUrlStringV6() : nodeInfo.serverUrlString()) + "/contracts/" + itemId.toBase64String());
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("User-Agent", "Universa JAVA API Client");
-            connection.setRequestProperty("Connection", "close");
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(4000);
-            connection.setReadTimeout((int) (maxTimeout.getSeconds()*1000));
-            if (200 != connection.getResponseCode())
+            byte[] data = httpClient.get(nodeInfo, "/contracts/" + itemId.toBase64String(), maxTimeout);
+            if (data == null)
                 return null;
-            byte[] data = Do.read(connection.getInputStream());
             TransactionPack tp = TransactionPack.unpack(data, true);
-//            tp.trace();
-//            Contract c = Contract.fromPackedTransaction(data);
             return tp.getContract();
         } catch (Exception e) {
             report(getLabel(), "download failure. from: " + nodeInfo.getNumber() + " by: " + myInfo.getNumber() +" reason: " + e, DatagramAdapter.VerboseLevel.BASE);
@@ -241,22 +663,25 @@ public class NetworkV2 extends Network {
         }
     }
 
+    @Override
+    public Approvable getItem(HashId itemId, Collection<NodeInfo> sources, Duration maxTimeout) throws InterruptedException {
+        return httpClient.race(sources, maxTimeout, nodeInfo -> {
+            try {
+                return getItem(itemId, nodeInfo, maxTimeout);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }, item -> itemId.equals(item.getId()));
+    }
+
 
     @Override
     public NImmutableEnvironment getEnvironment(HashId itemId, NodeInfo nodeInfo, Duration maxTimeout) throws InterruptedException {
         try {
             System.out.println("getEnvironment " + itemId.toBase64String());
-//            URL url = new URL("http://localhost:8080/contracts/" + itemId.toBase64String());
-            URL url = new URL((myInfo.hasV6() ? nodeInfo.serverUrlStringV6() : nodeInfo.serverUrlString()) + "/environments/" + itemId.toBase64String());
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("User-Agent", "Universa JAVA API Client");
-            connection.setRequestProperty("Connection", "close");
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(4000);
-            connection.setReadTimeout((int) (maxTimeout.getSeconds()*1000));
-            if (200 != connection.getResponseCode())
+            byte[] data = httpClient.get(nodeInfo, "/environments/" + itemId.toBase64String(), maxTimeout);
+            if (data == null)
                 return null;
-            byte[] data = Do.read(connection.getInputStream());
             return Boss.load(data);
 
         } catch (Exception e) {
@@ -266,51 +691,65 @@ public class NetworkV2 extends Network {
         }
     }
 
+    @Override
+    public NImmutableEnvironment getEnvironment(HashId itemId, Collection<NodeInfo> sources, Duration maxTimeout) throws InterruptedException {
+        return httpClient.race(sources, maxTimeout, nodeInfo -> {
+            try {
+                return getEnvironment(itemId, nodeInfo, maxTimeout);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }, environment -> itemId.equals(environment.getContract().getId()));
+    }
+
     @Override
     public Parcel getParcel(HashId itemId, NodeInfo nodeInfo, Duration maxTimeout) throws InterruptedException {
         try {
-//            URL url = new URL("http://localhost:8080/contracts/" + itemId.toBase64String());
-            URL url = new URL((myInfo.hasV6() ? nodeInfo.serverUrlStringV6() : nodeInfo.serverUrlString()) + "/parcels/" + itemId.toBase64String());
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("User-Agent", "Universa JAVA API Client");
-            connection.setRequestProperty("Connection", "close");
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(4000);
-            connection.setReadTimeout((int) (maxTimeout.getSeconds()*1000));
-            if (200 != connection.getResponseCode())
+            byte[] data = httpClient.get(nodeInfo, "/parcels/" + itemId.toBase64String(), maxTimeout);
+            if (data == null)
                 return null;
-            byte[] data = Do.read(connection.getInputStream());
-            Parcel parcel = Parcel.unpack(data);
-//            tp.trace();
-//            Contract c = Contract.fromPackedTransaction(data);
-            return parcel;
+            return Parcel.unpack(data);
         } catch (Exception e) {
             report(getLabel(), "download failure. from: " + nodeInfo.getNumber() + " by: " + myInfo.getNumber() +" reason: " + e);
             return null;
         }
     }
 
+    @Override
+    public Parcel getParcel(HashId itemId, Collection<NodeInfo> sources, Duration maxTimeout) throws InterruptedException {
+        return httpClient.race(sources, maxTimeout, nodeInfo -> {
+            try {
+                return getParcel(itemId, nodeInfo, maxTimeout);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }, parcel -> itemId.equals(parcel.getId()));
+    }
+
     @Override
     public PaidOperation getPaidOperation(HashId itemId, NodeInfo nodeInfo, Duration maxTimeout) throws InterruptedException {
         try {
-            URL url = new URL((myInfo.hasV6() ? nodeInfo.serverUrlStringV6() : nodeInfo.serverUrlString()) + "/paidOperation/" + itemId.toBase64String());
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("User-Agent", "Universa JAVA API Client");
-            connection.setRequestProperty("Connection", "close");
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(4000);
-            connection.setReadTimeout((int) (maxTimeout.getSeconds()*1000));
-            if (200 != connection.getResponseCode())
+            byte[] data = httpClient.get(nodeInfo, "/paidOperation/" + itemId.toBase64String(), maxTimeout);
+            if (data == null)
                 return null;
-            byte[] data = Do.read(connection.getInputStream());
-            PaidOperation paidOperation = PaidOperation.unpack(data);
-            return paidOperation;
+            return PaidOperation.unpack(data);
         } catch (Exception e) {
             report(getLabel(), "download(getPaidOperation) failure. from: " + nodeInfo.getNumber() + " by: " + myInfo.getNumber() +" reason: " + e);
             return null;
         }
     }
 
+    @Override
+    public PaidOperation getPaidOperation(HashId itemId, Collection<NodeInfo> sources, Duration maxTimeout) throws InterruptedException {
+        return httpClient.race(sources, maxTimeout, nodeInfo -> {
+            try {
+                return getPaidOperation(itemId, nodeInfo, maxTimeout);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }, paidOperation -> itemId.equals(paidOperation.getId()));
+    }
+
     private final Map<NodeInfo,Client> cachedClients = new HashMap<>();
 
     @Override
@@ -369,6 +808,9 @@ public class NetworkV2 extends Network {
     }
 
     public void shutdown() {
+        batchFlusher.shutdown();
+        flushAllBatches();
+        httpClient.shutdown();
         if(adapter != null)
             adapter.shutdown();
     }
@@ -382,7 +824,7 @@ public class NetworkV2 extends Network {
         if(adapter != null)
             adapter.shutdown();
 
-        adapter = new UDPAdapter(myKey, new SymmetricKey(), myInfo, netConfig);
+        adapter = new UDPAdapter(myKey, new SymmetricKey(), myInfo, netConfig, udpEngine);
         adapter.receive(this::onReceived);
         adapter.addErrorsCallback(this::exceptionCallback);
         adapter.setConnectivityMap(connectivityMap);
@@ -484,4 +926,12 @@ public class NetworkV2 extends Network {
         if(this.adapter != null)
             this.adapter.setConnectivityMap(connectivityMap);
     }
+
+    /**
+     * Should be called after each change of connectivity map, so relay routes of {@link UDPAdapter} are rebuilt.
+     */
+    public void onConnectivityMapChanged() {
+        if(this.adapter != null)
+            this.adapter.updateRoutingTable();
+    }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * HTTP client for node-to-node downloads (items, parcels, environments).
+ * <p>
+ * Connections are kept alive and reused: responses are always read to the end and the JVM keeps idle connections
+ * in its per-host pool (its size is set with <code>http.maxConnections</code> system property), so sequential
+ * downloads from the same node do not pay TCP setup again.
+ * <p>
+ * The same request could be raced against several sources with {@link #race(Collection, Duration, Function,
+ * Predicate)}: the first valid answer is taken, so one slow node does not stall the download. Fetches run on a fixed
+ * pool of {@link #FETCHER_THREADS} threads; losing fetches are interrupted and their connections are closed, so racing
+ * does not multiply the load. Latency of fetches is collected for each node, see {@link #getStats()}.
+ */
+class NodeHttpClient {
+
+    /**
+     * How many sources are asked at once by {@link #race(Collection, Duration, Function)}.
+     */
+    static public final int MAX_RACING_SOURCES = 3;
+
+    /**
+     * Threads fetching for races, and the limit of fetches waiting for them. When it is reached, race is run with
+     * fewer sources.
+     */
+    static public final int FETCHER_THREADS = 32;
+    static private final int FETCHER_QUEUE_SIZE = 64;
+
+    static private final int CONNECT_TIMEOUT_MILLIS = 4000;
+
+    private final NodeInfo myInfo;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<Integer, PeerStats> peerStats = new ConcurrentHashMap<>();
+
+    /**
+     * Fetch that runs in a race. Its connection is closed when it loses.
+     */
+    private static class Racer {
+        private volatile HttpURLConnection connection;
+        private volatile boolean cancelled = false;
+
+        synchronized void attach(HttpURLConnection connection) throws IOException {
+            if (cancelled)
+                throw new IOException("race is over");
+            this.connection = connection;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (connection != null)
+                connection.disconnect();
+        }
+    }
+
+    private static final ThreadLocal<Racer> currentRacer = new ThreadLocal<>();
+
+    NodeHttpClient(NodeInfo myInfo) {
+        this.myInfo = myInfo;
+        executor = new ThreadPoolExecutor(FETCHER_THREADS, FETCHER_THREADS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(FETCHER_QUEUE_SIZE), r -> {
+            Thread thread = new Thread(r);
+            thread.setName("network-" + myInfo.getNumber() + "-http-fetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Download resource from the node.
+     *
+     * @param nodeInfo is {@link NodeInfo} of node to download from
+     * @param path is path of the resource on node's server, starting with '/'
+     * @param maxTimeout is read timeout
+     * @return body of the response or null if node responded with other code than 200
+     * @throws IOException if connection failed
+     */
+    byte[] get(NodeInfo nodeInfo, String path, Duration maxTimeout) throws IOException {
+        PeerStats stats = peerStats.computeIfAbsent(nodeInfo.getNumber(), n -> new PeerStats());
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            URL url = new URL((myInfo.hasV6() ? nodeInfo.serverUrlStringV6() : nodeInfo.serverUrlString()) + path);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            Racer racer = currentRacer.get();
+            if (racer != null)
+                racer.attach(connection);
+            connection.setRequestProperty("User-Agent", "Universa JAVA API Client");
+            connection.setRequestMethod("GET");
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout((int) maxTimeout.toMillis());
+            if (200 != connection.getResponseCode()) {
+                // error body should be read out too, otherwise connection is not returned to the pool
+                InputStream errorStream = connection.getErrorStream();
+                if (errorStream != null) {
+                    Do.read(errorStream);
+                    errorStream.close();
+                }
+                return null;
+            }
+            byte[] data;
+            try (InputStream in = connection.getInputStream()) {
+                data = Do.read(in);
+            }
+            success = true;
+            return data;
+        } finally {
+            stats.register(success, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Run the fetch against up to {@link #MAX_RACING_SOURCES} random sources at once and take the first not null
+     * result that is accepted. Fetches that are still running after that are interrupted and their connections are
+     * closed.
+     *
+     * @param sources are nodes that have the resource
+     * @param maxTimeout is how long to wait for the result
+     * @param fetch downloads and unpacks the resource from given node, returns null if failed
+     * @param accept checks the result is the requested resource, e.g. compares its id with the requested one
+     * @param <T> is type of the resource
+     * @return first downloaded resource or null if all sources failed or timeout is expired
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    <T> T race(Collection<NodeInfo> sources, Duration maxTimeout, Function<NodeInfo, T> fetch, Predicate<T> accept)
+            throws InterruptedException {
+        List<NodeInfo> candidates = new ArrayList<>(sources);
+        if (candidates.isEmpty())
+            return null;
+        Collections.shuffle(candidates);
+        if (candidates.size() > MAX_RACING_SOURCES)
+            candidates = candidates.subList(0, MAX_RACING_SOURCES);
+
+        if (candidates.size() == 1)
+            return checked(candidates.get(0), fetch.apply(candidates.get(0)), accept);
+
+        CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+        Map<Future<T>, NodeInfo> racers = new HashMap<>();
+        List<Racer> connections = new ArrayList<>();
+        for (NodeInfo nodeInfo : candidates) {
+            Racer racer = new Racer();
+            try {
+                racers.put(completionService.submit(() -> {
+                    currentRacer.set(racer);
+                    try {
+                        return fetch.apply(nodeInfo);
+                    } finally {
+                        currentRacer.remove();
+                    }
+                }), nodeInfo);
+                connections.add(racer);
+            } catch (RejectedExecutionException e) {
+                // fetchers are busy, race with the sources that are already asked
+                break;
+            }
+        }
+        if (racers.isEmpty())
+            return checked(candidates.get(0), fetch.apply(candidates.get(0)), accept);
+
+        long deadline = System.nanoTime() + maxTimeout.toNanos() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MILLIS);
+        try {
+            for (int i = 0; i < racers.size(); i++) {
+                Future<T> done = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null)
+                    return null;
+                try {
+                    NodeInfo source = racers.get(done);
+                    T result = checked(source, done.get(), accept);
+                    if (result != null) {
+                        PeerStats winner = peerStats.get(source.getNumber());
+                        if (winner != null)
+                            winner.wins.incrementAndGet();
+                        return result;
+                    }
+                } catch (ExecutionException ignored) {
+                    // counted as a failure of the source, others could still succeed
+                }
+            }
+            return null;
+        } finally {
+            racers.keySet().forEach(f -> f.cancel(true));
+            connections.forEach(Racer::cancel);
+        }
+    }
+
+    /**
+     * @return the result if it is accepted, otherwise null; not accepted results are counted for the source
+     */
+    private <T> T checked(NodeInfo source, T result, Predicate<T> accept) {
+        if (result == null || accept.test(result))
+            return result;
+        peerStats.computeIfAbsent(source.getNumber(), n -> new PeerStats()).mismatches.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Statistics of downloads for each node: count of requests and failed ones, count of answers that are not the
+     * requested resource, how many races the node has won, average and last latency of successful downloads, in milliseconds.
+     *
+     * @return {@link Binder} with stats for each remote node number
+     */
+    Binder getStats() {
+        Binder result = new Binder();
+        peerStats.forEach((k, s) -> {
+            long successes = s.requests.get() - s.failures.get();
+            result.put(String.valueOf(k), Binder.of(
+                    "requests", s.requests.get(),
+                    "failures", s.failures.get(),
+                    "mismatches", s.mismatches.get(),
+                    "wins", s.wins.get(),
+                    "avgMillis", successes > 0 ? (double) s.totalNanos.get() / successes / 1e6 : 0.0,
+                    "lastMillis", s.lastNanos / 1e6
+            ));
+        });
+        return result;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class PeerStats {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong mismatches = new AtomicLong();
+        final AtomicLong wins = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        volatile long lastNanos;
+
+        void register(boolean success, long nanos) {
+            requests.incrementAndGet();
+            if (success) {
+                totalNanos.addAndGet(nanos);
+                lastNanos = nanos;
+            } else
+                failures.incrementAndGet();
+        }
+    }
+}
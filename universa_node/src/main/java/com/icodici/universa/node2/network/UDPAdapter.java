@@ -16,32 +16,82 @@ import com.icodici.universa.node2.Node;
 import com.icodici.universa.node2.NodeInfo;
 import net.sergeych.boss.Boss;
 import net.sergeych.tools.AsyncEvent;
+import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
 import net.sergeych.utils.Bytes;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
 public class UDPAdapter extends DatagramAdapter {
 
+    /**
+     * Number of packet workers of {@link Engines#CHANNEL} engine.
+     */
+    static public final int CHANNEL_WORKERS_COUNT = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Max number of received packets waiting for each packet worker of {@link Engines#CHANNEL} engine. Packets
+     * received while the queue is full are dropped, remote node retransmits them.
+     */
+    static public final int CHANNEL_WORKER_QUEUE_SIZE = 4096;
+
+    /**
+     * Protocol version with Boss-encoded packet header. Assumed for remote nodes until they report another version
+     * in {@link PacketTypes#WELCOME} or {@link PacketTypes#KEY_REQ_PART1}.
+     */
+    static public final int PROTOCOL_VERSION_BOSS_HEADER = 1;
+
+    /**
+     * Protocol version with fixed-layout binary packet header, see {@link Packet#writeTo(ByteBuffer)}.
+     */
+    static public final int PROTOCOL_VERSION_BINARY_HEADER = 2;
+
+    /**
+     * Protocol version of nodes that also read {@link com.icodici.universa.node2.ItemBodyNotification} and
+     * notification frames fragmented by {@link NetworkV2}. Packets are the same as in
+     * {@link #PROTOCOL_VERSION_BINARY_HEADER}.
+     */
+    static public final int PROTOCOL_VERSION_ITEM_BODIES = 3;
+
+    /**
+     * Protocol version of this adapter.
+     */
+    static public final int PROTOCOL_VERSION = PROTOCOL_VERSION_ITEM_BODIES;
+
     private DatagramSocket socket;
+    private DatagramChannel channel;
+    private ThreadPoolExecutor[] packetWorkers;
+    private final AtomicLong receiveQueueDrops = new AtomicLong();
+    private final ThreadLocal<ByteBuffer> sendBuffers = ThreadLocal.withInitial(() -> channel != null ?
+            ByteBuffer.allocateDirect(MAX_PACKET_SIZE) : ByteBuffer.allocate(MAX_PACKET_SIZE));
+    private final ThreadLocal<DatagramPacket> sendDatagrams = ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+    private final ConcurrentHashMap<NodeInfo, Integer> remoteProtocolVersions = new ConcurrentHashMap<>();
+    private volatile int protocolVersion = PROTOCOL_VERSION;
     private SocketListenThread socketListenThread;
     private ConcurrentHashMap<Integer, Session> sessionsByRemoteId = new ConcurrentHashMap<>();
     private ConcurrentHashMap<Integer, SessionReader> sessionReaders = new ConcurrentHashMap<>();
     private ConcurrentHashMap<Integer, SessionReader> sessionReaderCandidates = new ConcurrentHashMap<>();
     private String logLabel = "";
-    private Integer nextPacketId = 1;
+    private final AtomicInteger nextPacketId = new AtomicInteger(1);
     private Timer timerHandshake = new Timer();
     private Timer timerRetransmit = new Timer();
     private Timer timerProtectionFromDuple = new Timer();
     private Map<NodeInfo, ConnectivityInfo> connectivityMap;
+    private volatile RoutingTable routingTable = new RoutingTable(null, new HashMap<>());
+    private final Object routingTableLock = new Object();
 
 
     /**
@@ -55,16 +105,58 @@ public class UDPAdapter extends DatagramAdapter {
      * @throws IOException if something went wrong
      */
     public UDPAdapter(PrivateKey ownPrivateKey, SymmetricKey sessionKey, NodeInfo myNodeInfo, NetConfig netConfig) throws IOException {
+        this(ownPrivateKey, sessionKey, myNodeInfo, netConfig, Engines.SOCKET);
+    }
+
+
+    /**
+     * Create an instance that listens for the incoming datagrams using the specified configurations and engine.
+     *
+     * @param ownPrivateKey is {@link PrivateKey} for signing requests
+     * @param sessionKey is {@link SymmetricKey} with session
+     * @param myNodeInfo is {@link NodeInfo} object described node this UDPAdapter work with
+     * @param netConfig is {@link NetConfig} where all nodes data is stored
+     * @param engine is {@link Engines#SOCKET} for single listen thread on {@link DatagramSocket}, or
+     * {@link Engines#CHANNEL} for {@link DatagramChannel} with pool of packet workers
+     * @throws IOException if something went wrong
+     */
+    public UDPAdapter(PrivateKey ownPrivateKey, SymmetricKey sessionKey, NodeInfo myNodeInfo, NetConfig netConfig, int engine) throws IOException {
         super(ownPrivateKey, sessionKey, myNodeInfo, netConfig);
 
         logLabel = "udp" + myNodeInfo.getNumber() + ": ";
 
-        nextPacketId = new Random().nextInt(Integer.MAX_VALUE)+1;
+        nextPacketId.set(new Random().nextInt(Integer.MAX_VALUE)+1);
+
+        if (engine == Engines.CHANNEL) {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(myNodeInfo.getNodeAddress().getPort()));
+            channel.configureBlocking(true);
+            socket = channel.socket();
+
+            packetWorkers = new ThreadPoolExecutor[CHANNEL_WORKERS_COUNT];
+            for (int i = 0; i < packetWorkers.length; i++) {
+                int workerNumber = i;
+                packetWorkers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(CHANNEL_WORKER_QUEUE_SIZE), r -> {
+                    Thread thread = new Thread(r);
+                    thread.setName("UDP-packet-worker-" + myNodeInfo.getNumber() + "-" + workerNumber);
+                    thread.setDaemon(true);
+                    return thread;
+                }, (r, executor) -> {
+                    if (!executor.isShutdown())
+                        onReceiveQueueOverflow(workerNumber);
+                });
+            }
 
-        socket = new DatagramSocket(myNodeInfo.getNodeAddress().getPort());
-        socket.setReuseAddress(true);
+            socketListenThread = new ChannelListenThread(channel);
+        } else {
+            socket = new DatagramSocket(myNodeInfo.getNodeAddress().getPort());
+            socket.setReuseAddress(true);
 
-        socketListenThread = new SocketListenThread(socket);
+            socketListenThread = new SocketListenThread(socket);
+        }
+        // sends issued right after the constructor are not dropped while listener thread is starting
+        socketListenThread.isActive.set(true);
         socketListenThread.start();
 
         timerHandshake.scheduleAtFixedRate(new TimerTask() {
@@ -74,14 +166,17 @@ public class UDPAdapter extends DatagramAdapter {
             }
         }, RETRANSMIT_TIME, RETRANSMIT_TIME);
 
+        // each session has its own retransmit timeout, so pulse ticks at the lowest one
         timerRetransmit.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
                 pulseRetransmit();
             }
-        }, RETRANSMIT_TIME, RETRANSMIT_TIME);
+        }, MIN_RETRANSMIT_TIME, MIN_RETRANSMIT_TIME);
 
-        int dupleProtectionPeriod = 2 * RETRANSMIT_TIME_GROW_FACTOR * RETRANSMIT_TIME * RETRANSMIT_MAX_ATTEMPTS;
+        // packet id is remembered at least this long, so retransmits with the highest timeout are not taken twice
+        int dupleProtectionPeriod = Math.max(2 * RETRANSMIT_TIME_GROW_FACTOR * RETRANSMIT_TIME * RETRANSMIT_MAX_ATTEMPTS,
+                getMaxRetransmitLifetime(MAX_RETRANSMIT_TIME));
         timerProtectionFromDuple.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
@@ -91,18 +186,25 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
+    /**
+     * Sends payload to remote node, or queues it while session is in handshake, its congestion window is full or
+     * earlier payloads are still queued, so payloads to the same node are sent in order they were given. Sends to one
+     * remote node are serialized by its {@link Session}, sends to different nodes (including encryption) run in
+     * parallel in the calling threads.
+     * @param destination {@link NodeInfo} of remote node
+     * @param payload data to send
+     */
     @Override
-    synchronized public void send(NodeInfo destination, byte[] payload) throws InterruptedException {
+    public void send(NodeInfo destination, byte[] payload) throws InterruptedException {
         report(logLabel, () -> "send to "+destination.getNumber()+", isActive: "+socketListenThread.isActive.get(), VerboseLevel.DETAILED);
 
         if (!socketListenThread.isActive.get())
             return;
 
         Session session = getOrCreateSession(destination);
-        if (session.state.get() == Session.STATE_HANDSHAKE) {
-            session.addPayloadToOutputQueue(destination, payload);
-        } else {
-            if (session.retransmitMap.size() > MAX_RETRANSMIT_QUEUE_SIZE)
+        synchronized (session.sendLock) {
+            if (session.state.get() == Session.STATE_HANDSHAKE || !session.outputQueue.isEmpty()
+                    || session.retransmitMap.size() >= session.getCongestionWindow())
                 session.addPayloadToOutputQueue(destination, payload);
             else
                 sendPayload(session, payload);
@@ -116,85 +218,11 @@ public class UDPAdapter extends DatagramAdapter {
      * @param packet data to send. It's {@link Packet#makeByteArray()} should returns data with size less than {@link DatagramAdapter#MAX_PACKET_SIZE}
      */
     private void sendPacket(NodeInfo destination, Packet packet) {
-        //create immutable snapshot
-        Map<NodeInfo,ConnectivityInfo> connectivityMapInstant = this.connectivityMap != null ? new HashMap<>(this.connectivityMap) : new HashMap<>();
-
-        Set<NodeInfo> unreachableByMe = connectivityMapInstant.containsKey(myNodeInfo) ? connectivityMapInstant.get(myNodeInfo).getUnreachableNodes() : new HashSet<>();
+        RoutingTable routes = routingTable;
 
         //check if not ECHO packed and is being sent to an unreachable node
-        if(packet.type != PacketTypes.ECHO && unreachableByMe.contains(destination)) {
-            Map<NodeInfo,Integer> routeLengths = new HashMap<>();
-            routeLengths.put(destination,0);
-            Set<NodeInfo> uncheckedNodes = new HashSet<>(connectivityMapInstant.keySet());
-
-            //we might not receive connectivity diagnostics of the destination, so it is not on connectivityMap yet
-            //still need to add it to uncheckedNodes
-            uncheckedNodes.add(destination);
-
-            while(!routeLengths.containsKey(myNodeInfo) && !uncheckedNodes.isEmpty()) {
-
-                //find unchecked node with minimum known route length
-                NodeInfo x = uncheckedNodes.stream().min(Comparator.comparingInt(n->routeLengths.getOrDefault(n, connectivityMapInstant.size()))).get();
-                Integer xRouteLength = routeLengths.get(x);
-
-
-
-                //no unchecked elements with known route length exists
-                if(xRouteLength == null) {
-                    //NO ROUTE TO HOST
-                    break;
-                }
-
-                //find neighbors with unknown route length and set it to xRouteLength+1 for them
-                for(NodeInfo ni : connectivityMapInstant.keySet()) {
-                    if(!routeLengths.containsKey(ni) && !connectivityMapInstant.get(ni).getUnreachableNodes().contains(x)) {
-                        routeLengths.put(ni,xRouteLength+1);
-                    }
-                }
-
-                //mark x checked
-                uncheckedNodes.remove(x);
-
-            }
-
-            if(!routeLengths.containsKey(myNodeInfo)) {
-                //NO ROUTE TO HOST
-                return;
-            }
-
-            List<NodeInfo> route = new ArrayList<>();
-            while(true) {
-                NodeInfo x;
-                if(route.isEmpty()) {
-                    x = myNodeInfo;
-                } else {
-                    x = route.get(route.size()-1);
-                }
-
-                //find mininum route length node
-                Set<NodeInfo> toFindIn = new HashSet(connectivityMapInstant.keySet());
-
-                //... among ones reachable from x
-                toFindIn.removeAll(connectivityMapInstant.get(x).getUnreachableNodes());
-                //... among ones not on the route already
-                toFindIn.removeAll(route);
-
-                try {
-                    //next route node found
-                    NodeInfo next = toFindIn.stream().min(Comparator.comparingInt(n->routeLengths.getOrDefault(n, connectivityMapInstant.size()))).get();
-                    route.add(next);
-
-                    if(routeLengths.get(next) == 1) {
-                        break;
-                    }
-
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-
-            }
-
-            NodeInfo proxy = route.get(0);
+        if(packet.type != PacketTypes.ECHO && routes.isUnreachable(destination)) {
+            NodeInfo proxy = routes.getRelay(destination);
 
             if(proxy == null) {
                 //host unreachable
@@ -207,28 +235,86 @@ public class UDPAdapter extends DatagramAdapter {
 
                 Packet original = packet;
                 packet = new Packet(getNextPacketId(), myNodeInfo.getNumber(),
-                        proxy.getNumber(), PacketTypes.RETRANSMIT, original.makeByteArray());
+                        proxy.getNumber(), PacketTypes.RETRANSMIT, original.makeByteArray(isBinaryHeaderSupported(proxy)));
                 destination = proxy;
 
             }
         }
 
-        byte[] payload = packet.makeByteArray();
+        // handshake starts with the legacy header, so remote node of any version could answer
+        boolean binaryHeader = packet.type != PacketTypes.HELLO && packet.type != PacketTypes.WELCOME
+                && isBinaryHeaderSupported(destination);
         InetSocketAddress destAddr = myNodeInfo.hasV6() ? destination.getNodeAddressV6() : destination.getNodeAddress();
-        DatagramPacket dp = new DatagramPacket(payload, payload.length, destAddr.getAddress(), destAddr.getPort());
         try {
-            report(logLabel, ()->"sendPacket datagram size: " + payload.length, VerboseLevel.DETAILED);
             if ((testMode == TestModes.LOST_PACKETS || testMode == TestModes.LOST_AND_SHUFFLE_PACKETS)
                 && (new Random().nextInt(100) < lostPacketsPercent))
                 report(logLabel, ()->"test mode: skip socket.send", VerboseLevel.BASE);
             else
-                socket.send(dp);
+                sendDatagram(packet, binaryHeader, destAddr);
         } catch (Exception e) {
             callErrorCallbacks("sendPacket exception: " + e);
         }
     }
 
 
+    /**
+     * Sends packet to the network. Packet with binary header is written straight into the thread's send buffer,
+     * so nothing is allocated for packets that fit {@link DatagramAdapter#MAX_PACKET_SIZE}.
+     * @param packet to send
+     * @param binaryHeader use fixed-layout binary header instead of Boss-encoded one
+     * @param destAddr address:port to send to
+     * @throws IOException if something went wrong
+     */
+    private void sendDatagram(Packet packet, boolean binaryHeader, InetSocketAddress destAddr) throws IOException {
+        if (!binaryHeader || packet.getBinarySize() > MAX_PACKET_SIZE) {
+            byte[] payload = packet.makeByteArray(binaryHeader);
+            report(logLabel, ()->"sendPacket datagram size: " + payload.length, VerboseLevel.DETAILED);
+            sendDatagram(payload, destAddr);
+            return;
+        }
+
+        report(logLabel, ()->"sendPacket datagram size: " + packet.getBinarySize(), VerboseLevel.DETAILED);
+        ByteBuffer buffer = sendBuffers.get();
+        buffer.clear();
+        packet.writeTo(buffer);
+        buffer.flip();
+        if (channel != null) {
+            channel.send(buffer, destAddr);
+        } else {
+            DatagramPacket dp = sendDatagrams.get();
+            dp.setData(buffer.array(), 0, buffer.limit());
+            dp.setSocketAddress(destAddr);
+            socket.send(dp);
+        }
+    }
+
+
+    /**
+     * Sends raw datagram with the socket or, for {@link Engines#CHANNEL} engine, with the channel through the
+     * thread's direct buffer.
+     * @param data datagram to send
+     * @param destAddr address:port to send to
+     * @throws IOException if something went wrong
+     */
+    private void sendDatagram(byte[] data, InetSocketAddress destAddr) throws IOException {
+        // direct buffers are used by channel engine only, socket one sends given array as is
+        if (channel != null) {
+            ByteBuffer buffer;
+            if (data.length <= MAX_PACKET_SIZE) {
+                buffer = sendBuffers.get();
+                buffer.clear();
+                buffer.put(data);
+                buffer.flip();
+            } else {
+                buffer = ByteBuffer.wrap(data);
+            }
+            channel.send(buffer, destAddr);
+        } else {
+            socket.send(new DatagramPacket(data, data.length, destAddr.getAddress(), destAddr.getPort()));
+        }
+    }
+
+
     /**
      * All packets data ({@link Packet#payload}) of type {@link PacketTypes#DATA}
      * must be encrypted with sessionKey ({@link SymmetricKey}).
@@ -275,13 +361,8 @@ public class UDPAdapter extends DatagramAdapter {
      * Used for packet confirmations, in retransmission algorithm.
      * @return new packet id for sending
      */
-    synchronized private Integer getNextPacketId() {
-        Integer res = nextPacketId;
-        if (nextPacketId == Integer.MAX_VALUE)
-            nextPacketId = 1;
-        else
-            ++nextPacketId;
-        return res;
+    private Integer getNextPacketId() {
+        return nextPacketId.getAndUpdate(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
     }
 
 
@@ -301,6 +382,10 @@ public class UDPAdapter extends DatagramAdapter {
         } catch (InterruptedException e) {
             report(logLabel, ()->"shutting down... InterruptedException: "+e, VerboseLevel.BASE);
         }
+        if (packetWorkers != null) {
+            for (ThreadPoolExecutor worker : packetWorkers)
+                worker.shutdownNow();
+        }
         report(logLabel, ()->"shutting down... done", VerboseLevel.BASE);
     }
 
@@ -308,12 +393,7 @@ public class UDPAdapter extends DatagramAdapter {
 
     @Override
     public int pingNodeUDP(int number, int timeoutMillis) {
-        Packet p = new Packet();
-        p.type = PacketTypes.ECHO;
-        p.packetId = getNextPacketId();
-        p.payload = new byte[]{};
-        p.receiverNodeId = 0;
-        p.senderNodeId = 0;
+        Packet p = new Packet(getNextPacketId(), 0, 0, PacketTypes.ECHO, new byte[]{});
 
         AsyncEvent event = new AsyncEvent();
         long ts = Instant.now().toEpochMilli();
@@ -484,6 +564,60 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
+    /**
+     * Per remote node statistics of outgoing sessions: estimated round-trip time and retransmit timeout, congestion
+     * window and its fill, counters of data and handshake retransmits and dropped payloads.
+     *
+     * @return {@link Binder} with stats {@link Binder} for each remote node number
+     */
+    public Binder getSessionsStats() {
+        Binder result = new Binder();
+        sessionsByRemoteId.forEach((k, s) -> result.put(String.valueOf(k), Binder.of(
+                "rtt", s.getSmoothedRtt(),
+                "retransmitTimeout", s.getRetransmitTimeout(),
+                "congestionWindow", s.getCongestionWindow(),
+                "inFlight", s.retransmitMap.size(),
+                "queued", s.outputQueue.size(),
+                "retransmits", s.retransmits.get(),
+                "handshakeRetransmits", s.handshakeRetransmits.get(),
+                "retransmitDrops", s.retransmitDrops.get(),
+                "queueDrops", s.queueDrops.get()
+        )));
+        return result;
+    }
+
+
+    /**
+     * Statistics of receiving: packets waiting for packet workers of {@link Engines#CHANNEL} engine and packets
+     * dropped because worker queue was full.
+     *
+     * @return {@link Binder} with receive stats
+     */
+    public Binder getReceiveStats() {
+        int queued = 0;
+        if (packetWorkers != null) {
+            for (ThreadPoolExecutor worker : packetWorkers)
+                queued += worker.getQueue().size();
+        }
+        return Binder.of(
+                "engine", channel != null ? "channel" : "socket",
+                "queued", queued,
+                "queueDrops", receiveQueueDrops.get()
+        );
+    }
+
+
+    /**
+     * Calls when received packet is dropped because queue of its packet worker is full.
+     * @param workerNumber number of overflowed worker
+     */
+    private void onReceiveQueueOverflow(int workerNumber) {
+        // log first drop and then each thousandth one, drops go in series while worker is overloaded
+        if (receiveQueueDrops.incrementAndGet() % 1000 == 1)
+            callErrorCallbacks("queue of packet worker " + workerNumber + " is full, received packets are dropped, total: " + receiveQueueDrops.get());
+    }
+
+
     /**
      * for debug
      */
@@ -540,7 +674,10 @@ public class UDPAdapter extends DatagramAdapter {
             report(logLabel, () -> "send welcome to " + sessionReader.remoteNodeInfo.getNumber(), VerboseLevel.BASE);
             byte[] data = sessionReader.localNonce;
             byte[] sign = new PrivateKey(ownPrivateKey.pack()).sign(data, HashType.SHA512);
-            byte[] payload = Boss.dumpToArray(Arrays.asList(data, sign));
+            // nodes of first version don't report it
+            byte[] payload = protocolVersion > PROTOCOL_VERSION_BOSS_HEADER ?
+                    Boss.dumpToArray(Arrays.asList(data, sign, protocolVersion)) :
+                    Boss.dumpToArray(Arrays.asList(data, sign));
             Packet packet = new Packet(getNextPacketId(), myNodeInfo.getNumber(),
                     sessionReader.remoteNodeInfo.getNumber(), PacketTypes.WELCOME, payload);
             sendPacket(sessionReader.remoteNodeInfo, packet);
@@ -658,6 +795,59 @@ public class UDPAdapter extends DatagramAdapter {
 
     public void setConnectivityMap(Map<NodeInfo, ConnectivityInfo> connectivityMap) {
         this.connectivityMap = connectivityMap;
+        updateRoutingTable();
+    }
+
+
+    /**
+     * Rebuilds relay routes from current state of connectivity map. Should be called each time the map is changed,
+     * packets are sent with routes computed by last call.
+     */
+    public void updateRoutingTable() {
+        synchronized (routingTableLock) {
+            Map<NodeInfo, ConnectivityInfo> connectivityMapInstant = this.connectivityMap != null ? new HashMap<>(this.connectivityMap) : new HashMap<>();
+            routingTable = new RoutingTable(myNodeInfo, connectivityMapInstant);
+        }
+    }
+
+
+    /**
+     * Remembers protocol version reported by remote node during handshake.
+     * @param remoteNodeInfo {@link NodeInfo} of remote node
+     * @param version one of PROTOCOL_VERSION_* constants
+     */
+    private void setRemoteProtocolVersion(NodeInfo remoteNodeInfo, int version) {
+        remoteProtocolVersions.put(remoteNodeInfo, version);
+    }
+
+
+    /**
+     * @param destination {@link NodeInfo} of remote node
+     * @return protocol version reported by remote node, {@link #PROTOCOL_VERSION_BOSS_HEADER} until it is reported
+     */
+    public int getRemoteProtocolVersion(NodeInfo destination) {
+        return remoteProtocolVersions.getOrDefault(destination, PROTOCOL_VERSION_BOSS_HEADER);
+    }
+
+
+    /**
+     * @param destination {@link NodeInfo} of remote node
+     * @return true if both nodes can read packets with binary header
+     */
+    private boolean isBinaryHeaderSupported(NodeInfo destination) {
+        return protocolVersion >= PROTOCOL_VERSION_BINARY_HEADER
+                && getRemoteProtocolVersion(destination) >= PROTOCOL_VERSION_BINARY_HEADER;
+    }
+
+
+    /**
+     * for testing: makes this adapter talk as node of previous protocol version, e.g.
+     * {@link #PROTOCOL_VERSION_BOSS_HEADER} one, that neither reports its version nor sends binary headers.
+     * Should be called before any sessions are established.
+     * @param version one of PROTOCOL_VERSION_* constants
+     */
+    void setProtocolVersionForTest(int version) {
+        protocolVersion = version;
     }
 
     /**
@@ -665,10 +855,15 @@ public class UDPAdapter extends DatagramAdapter {
      */
     private class SocketListenThread extends Thread {
 
-        private AtomicBoolean isActive = new AtomicBoolean(false);
+        /**
+         * Set by the adapter constructor before the thread starts, and cleared only by {@link #shutdown()}. The thread
+         * itself never sets it, otherwise a shutdown before the thread has started would be undone and join in
+         * {@link #shutdown()} would never return.
+         */
+        protected final AtomicBoolean isActive = new AtomicBoolean(false);
         private final DatagramSocket threadSocket;
         private DatagramPacket receivedDatagram;
-        private String logLabel = "";
+        protected String logLabel = "";
 
         public SocketListenThread(DatagramSocket socket){
             byte[] buf = new byte[DatagramAdapter.MAX_PACKET_SIZE];
@@ -686,7 +881,6 @@ public class UDPAdapter extends DatagramAdapter {
             setName("UDP-socket-listener-" + socketListenThreadNumber++);
             logLabel = myNodeInfo.getNumber() + "-" + getName() + ": ";
 
-            isActive.set(true);
             while(isActive.get()) {
                 boolean isDatagramReceived = false;
                 try {
@@ -702,56 +896,10 @@ public class UDPAdapter extends DatagramAdapter {
 
                 if (isDatagramReceived) {
                     try {
-                        byte[] data = Arrays.copyOfRange(receivedDatagram.getData(), 0, receivedDatagram.getLength());
+                        // packet refers to the receive buffer, so it is processed before next receive
                         Packet packet = new Packet();
-                        packet.parseFromByteArray(data);
-
-                        switch (packet.type) {
-                            case PacketTypes.HELLO:
-                                onReceiveHello(packet);
-                                break;
-                            case PacketTypes.WELCOME:
-                                onReceiveWelcome(packet);
-                                break;
-                            case PacketTypes.KEY_REQ_PART1:
-                                onReceiveKeyReqPart1(packet);
-                                break;
-                            case PacketTypes.KEY_REQ_PART2:
-                                onReceiveKeyReqPart2(packet);
-                                break;
-                            case PacketTypes.SESSION_PART1:
-                                onReceiveSessionPart1(packet);
-                                break;
-                            case PacketTypes.SESSION_PART2:
-                                onReceiveSessionPart2(packet);
-                                break;
-                            case PacketTypes.DATA:
-                                onReceiveData(packet);
-                                break;
-                            case PacketTypes.ACK:
-                                onReceiveAck(packet);
-                                break;
-                            case PacketTypes.NACK:
-                                onReceiveNack(packet);
-                                break;
-                            case PacketTypes.SESSION_ACK:
-                                onReceiveSessionAck(packet);
-                                break;
-                            case PacketTypes.RETRANSMIT:
-                                onReceiveRetransmit(packet);
-                                break;
-                            case PacketTypes.ECHO:
-                                AsyncEvent e = pingWaiters.remove(packet.packetId);
-                                if( e != null) {
-                                    e.fire();
-                                } else {
-                                    threadSocket.send(receivedDatagram);
-                                }
-                                break;
-                            default:
-                                report(logLabel, () -> "received unknown packet type: " + packet.type, VerboseLevel.BASE);
-                                break;
-                        }
+                        packet.parseFromByteArray(receivedDatagram.getData(), receivedDatagram.getOffset(), receivedDatagram.getLength());
+                        dispatchPacket(packet, (InetSocketAddress) receivedDatagram.getSocketAddress());
                     } catch (Exception e) {
                         callErrorCallbacks("SocketListenThread exception: " + e);
                     }
@@ -765,6 +913,67 @@ public class UDPAdapter extends DatagramAdapter {
         }
 
 
+        /**
+         * Processes received packet by its type.
+         * @param packet received {@link Packet}
+         * @param sender address:port packet has received from
+         */
+        protected void dispatchPacket(Packet packet, InetSocketAddress sender) throws Exception {
+            if (packet.binaryHeader && protocolVersion < PROTOCOL_VERSION_BINARY_HEADER) {
+                // node of previous version can't read it
+                callErrorCallbacks("received packet with binary header from " + packet.senderNodeId);
+                return;
+            }
+            switch (packet.type) {
+                case PacketTypes.HELLO:
+                    onReceiveHello(packet);
+                    break;
+                case PacketTypes.WELCOME:
+                    onReceiveWelcome(packet);
+                    break;
+                case PacketTypes.KEY_REQ_PART1:
+                    onReceiveKeyReqPart1(packet);
+                    break;
+                case PacketTypes.KEY_REQ_PART2:
+                    onReceiveKeyReqPart2(packet);
+                    break;
+                case PacketTypes.SESSION_PART1:
+                    onReceiveSessionPart1(packet);
+                    break;
+                case PacketTypes.SESSION_PART2:
+                    onReceiveSessionPart2(packet);
+                    break;
+                case PacketTypes.DATA:
+                    onReceiveData(packet);
+                    break;
+                case PacketTypes.ACK:
+                    onReceiveAck(packet);
+                    break;
+                case PacketTypes.NACK:
+                    onReceiveNack(packet);
+                    break;
+                case PacketTypes.SESSION_ACK:
+                    onReceiveSessionAck(packet);
+                    break;
+                case PacketTypes.RETRANSMIT:
+                    onReceiveRetransmit(packet);
+                    break;
+                case PacketTypes.ECHO:
+                    AsyncEvent e = pingWaiters.remove(packet.packetId);
+                    if( e != null) {
+                        e.fire();
+                    } else {
+                        // reply in the same header format
+                        sendDatagram(packet, packet.binaryHeader, sender);
+                    }
+                    break;
+                default:
+                    report(logLabel, () -> "received unknown packet type: " + packet.type, VerboseLevel.BASE);
+                    break;
+            }
+        }
+
+
         /**
          * We have received {@link PacketTypes#HELLO} packet. Should create localNonce and send it in reply.
          * @param packet received {@link Packet}
@@ -773,6 +982,8 @@ public class UDPAdapter extends DatagramAdapter {
             report(logLabel, ()->"received hello from " + packet.senderNodeId, VerboseLevel.BASE);
             NodeInfo nodeInfo = netConfig.getInfo(packet.senderNodeId);
             if (nodeInfo != null) {
+                // remote node may be restarted with another version, it will report actual one with key_req
+                setRemoteProtocolVersion(nodeInfo, PROTOCOL_VERSION_BOSS_HEADER);
                 SessionReader sessionReader = getOrCreateSessionReaderCandidate(packet.senderNodeId);
                 if (sessionReader != null) {
                     sessionReader.protectFromDuples(packet.packetId, ()->{
@@ -802,16 +1013,20 @@ public class UDPAdapter extends DatagramAdapter {
                 session.protectFromDuples(packet.packetId, ()-> {
                     try {
                         if ((session.state.get() == Session.STATE_HANDSHAKE) && (session.handshakeStep.get() == Session.HANDSHAKE_STEP_WAIT_FOR_WELCOME)) {
-                            List packetData = Boss.load(packet.payload);
+                            List packetData = Boss.load(packet.getPayload());
                             byte[] remoteNonce = ((Bytes)packetData.get(0)).toArray();
                             byte[] packetSign = ((Bytes)packetData.get(1)).toArray();
                             if (new PublicKey(session.remoteNodeInfo.getPublicKey().pack()).verify(remoteNonce, packetSign, HashType.SHA512)) {
                                 session.removeHandshakePacketsFromRetransmitMap();
                                 session.remoteNonce = remoteNonce;
+                                if (packetData.size() > 2)
+                                    setRemoteProtocolVersion(session.remoteNodeInfo, (int) packetData.get(2));
 
                                 // send key_req
                                 session.localNonce = Do.randomBytes(64);
-                                List data = Arrays.asList(session.localNonce, session.remoteNonce);
+                                List data = protocolVersion > PROTOCOL_VERSION_BOSS_HEADER ?
+                                        Arrays.asList(session.localNonce, session.remoteNonce, protocolVersion) :
+                                        Arrays.asList(session.localNonce, session.remoteNonce);
                                 byte[] packed = Boss.pack(data);
                                 byte[] encrypted = new PublicKey(session.remoteNodeInfo.getPublicKey().pack()).encrypt(packed);
                                 byte[] sign = new PrivateKey(ownPrivateKey.pack()).sign(encrypted, HashType.SHA512);
@@ -840,7 +1055,7 @@ public class UDPAdapter extends DatagramAdapter {
             if (sessionReader != null) {
                 sessionReader.protectFromDuples(packet.packetId, ()->{
                     sessionReader.removeHandshakePacketsFromRetransmitMap();
-                    sessionReader.handshake_keyReqPart1 = packet.payload;
+                    sessionReader.handshake_keyReqPart1 = packet.getPayload();
                     onReceiveKeyReq(sessionReader);
                 });
             }
@@ -857,7 +1072,7 @@ public class UDPAdapter extends DatagramAdapter {
             if (sessionReader != null) {
                 sessionReader.protectFromDuples(packet.packetId, ()->{
                     sessionReader.removeHandshakePacketsFromRetransmitMap();
-                    sessionReader.handshake_keyReqPart2 = packet.payload;
+                    sessionReader.handshake_keyReqPart2 = packet.getPayload();
                     onReceiveKeyReq(sessionReader);
                 });
             }
@@ -885,6 +1100,8 @@ public class UDPAdapter extends DatagramAdapter {
                         if (new PublicKey(sessionReader.remoteNodeInfo.getPublicKey().pack()).verify(encrypted, sign, HashType.SHA512)) {
                             report(logLabel, ()->"key_req successfully verified", VerboseLevel.BASE);
                             sessionReader.remoteNonce = packet_senderNonce;
+                            if (nonceList.size() > 2)
+                                setRemoteProtocolVersion(sessionReader.remoteNodeInfo, (int) nonceList.get(2));
                             sessionReader.sessionKey = new SymmetricKey();
                             acceptSessionReaderCandidate(sessionReader);
                             sendSessionKey(sessionReader);
@@ -912,7 +1129,7 @@ public class UDPAdapter extends DatagramAdapter {
                 session.protectFromDuples(packet.packetId, ()->{
                     session.removeHandshakePacketsFromRetransmitMap();
                     if ((session.state.get() == Session.STATE_HANDSHAKE) && (session.handshakeStep.get() == Session.HANDSHAKE_STEP_WAIT_FOR_SESSION)) {
-                        session.handshake_sessionPart1 = packet.payload;
+                        session.handshake_sessionPart1 = packet.getPayload();
                         onReceiveSession(session);
                     }
                 });
@@ -931,7 +1148,7 @@ public class UDPAdapter extends DatagramAdapter {
                 session.protectFromDuples(packet.packetId, ()->{
                     session.removeHandshakePacketsFromRetransmitMap();
                     if ((session.state.get() == Session.STATE_HANDSHAKE) && (session.handshakeStep.get() == Session.HANDSHAKE_STEP_WAIT_FOR_SESSION)) {
-                        session.handshake_sessionPart2 = packet.payload;
+                        session.handshake_sessionPart2 = packet.getPayload();
                         onReceiveSession(session);
                     }
                 });
@@ -979,18 +1196,21 @@ public class UDPAdapter extends DatagramAdapter {
          * @param packet received {@link Packet}
          */
         private void onReceiveData(Packet packet) {
-            if (packet.payload.length > 4) {
-                byte[] encryptedPayload = new byte[packet.payload.length - 4];
-                byte[] crc32 = new byte[4];
-                System.arraycopy(packet.payload, 0, encryptedPayload, 0, packet.payload.length-4);
-                System.arraycopy(packet.payload, packet.payload.length-4, crc32, 0, 4);
-                byte[] calcCrc32 = new Crc32().digest(encryptedPayload);
-                if (Arrays.equals(crc32, calcCrc32)) {
+            if (packet.payloadLength > 4) {
+                int encryptedLength = packet.payloadLength - 4;
+                Crc32 crc32 = new Crc32();
+                crc32.update(packet.payload, packet.payloadOffset, encryptedLength);
+                byte[] calcCrc32 = crc32.digest();
+                boolean crc32Matches = true;
+                for (int i = 0; i < calcCrc32.length; i++)
+                    crc32Matches &= calcCrc32[i] == packet.payload[packet.payloadOffset + encryptedLength + i];
+                if (crc32Matches) {
                     SessionReader sessionReader = getSessionReader(packet.senderNodeId);
                     if (sessionReader != null) {
                         if (sessionReader.sessionKey != null) {
                             try {
-                                byte[] decrypted = new SymmetricKey(sessionReader.sessionKey.getKey()).etaDecrypt(encryptedPayload);
+                                byte[] decrypted = new SymmetricKey(sessionReader.sessionKey.getKey())
+                                        .etaDecrypt(packet.payload, packet.payloadOffset, encryptedLength);
                                 if (decrypted.length > 2) {
                                     byte[] payload = new byte[decrypted.length - 2];
                                     System.arraycopy(decrypted, 0, payload, 0, payload.length);
@@ -1033,8 +1253,9 @@ public class UDPAdapter extends DatagramAdapter {
             Session session = getOrCreateSession(packet.senderNodeId);
             if (session != null) {
                 if (session.state.get() == Session.STATE_EXCHANGING) {
-                    Integer ackPacketId = Boss.load(new SymmetricKey(session.sessionKey.getKey()).etaDecrypt(packet.payload));
-                    session.removePacketFromRetransmitMap(ackPacketId);
+                    Integer ackPacketId = Boss.load(new SymmetricKey(session.sessionKey.getKey())
+                            .etaDecrypt(packet.payload, packet.payloadOffset, packet.payloadLength));
+                    session.onAck(ackPacketId);
                 }
             }
         }
@@ -1050,7 +1271,7 @@ public class UDPAdapter extends DatagramAdapter {
             Session session = getOrCreateSession(packet.senderNodeId);
             if (session != null) {
                 if (session.state.get() == Session.STATE_EXCHANGING) {
-                    List dataList = Boss.load(packet.payload);
+                    List dataList = Boss.load(packet.getPayload());
                     byte[] data = ((Bytes)dataList.get(0)).toArray();
                     byte[] sign = ((Bytes)dataList.get(1)).toArray();
                     if (new PublicKey(session.remoteNodeInfo.getPublicKey().pack()).verify(data, sign, HashType.SHA512)) {
@@ -1082,13 +1303,69 @@ public class UDPAdapter extends DatagramAdapter {
 
     private void onReceiveRetransmit(Packet packet) {
         Packet packetToRetransmit = new Packet();
-        packetToRetransmit.parseFromByteArray(packet.payload);
+        packetToRetransmit.parseFromByteArray(packet.payload, packet.payloadOffset, packet.payloadLength);
         report(logLabel, ()->"retransmitting message from " + netConfig.getInfo(packetToRetransmit.senderNodeId) + " to " + netConfig.getInfo(packetToRetransmit.receiverNodeId), VerboseLevel.DETAILED);
         sendPacket(netConfig.getInfo(packetToRetransmit.receiverNodeId),packetToRetransmit);
 
     }
 
 
+    /**
+     * Listens {@link DatagramChannel} into direct buffer, decodes packets from it and hands them to {@link #packetWorkers}.
+     * Only payload is copied out of the buffer, since it is reused for the next datagram.
+     * Packets from the same node always go to the same worker, so they are processed in order they were received.
+     * Worker queues are bounded by {@link #CHANNEL_WORKER_QUEUE_SIZE}, packets that don't fit are dropped.
+     */
+    private class ChannelListenThread extends SocketListenThread {
+
+        private final DatagramChannel threadChannel;
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(DatagramAdapter.MAX_PACKET_SIZE);
+
+        public ChannelListenThread(DatagramChannel channel) {
+            super(channel.socket());
+            threadChannel = channel;
+        }
+
+        @Override
+        public void run() {
+            setName("UDP-channel-listener-" + socketListenThreadNumber++);
+            logLabel = myNodeInfo.getNumber() + "-" + getName() + ": ";
+
+            while(isActive.get()) {
+                try {
+                    receiveBuffer.clear();
+                    InetSocketAddress sender = (InetSocketAddress) threadChannel.receive(receiveBuffer);
+                    if (sender == null)
+                        continue;
+                    receiveBuffer.flip();
+                    Packet packet = new Packet();
+                    packet.parseFrom(receiveBuffer);
+                    packetWorkers[Math.floorMod(packet.senderNodeId, packetWorkers.length)].execute(() -> {
+                        try {
+                            dispatchPacket(packet, sender);
+                        } catch (Exception e) {
+                            callErrorCallbacks("ChannelListenThread exception: " + e);
+                        }
+                    });
+                } catch (ClosedChannelException e) {
+                    report(logLabel, ()->"channel closed: " + e, VerboseLevel.BASE);
+                    break;
+                } catch (Exception e) {
+                    callErrorCallbacks("ChannelListenThread exception: " + e);
+                }
+            }
+
+            try {
+                threadChannel.close();
+            } catch (IOException e) {
+                report(logLabel, ()->"channel close failed: " + e, VerboseLevel.BASE);
+            }
+
+            report(logLabel, ()->"ChannelListenThread has finished", VerboseLevel.BASE);
+        }
+    }
+
+
     /**
      * Implements protection from duplication received packets.
      */
@@ -1117,9 +1394,50 @@ public class UDPAdapter extends DatagramAdapter {
         public ConcurrentHashMap<Integer,RetransmitItem> retransmitMap = new ConcurrentHashMap<>();
         public NodeInfo remoteNodeInfo;
         public SymmetricKey sessionKey;
+        /** Retransmits of {@link PacketTypes#DATA} packets. */
+        public final AtomicLong retransmits = new AtomicLong();
+        /** Retransmits of handshake packets, they don't tell about congestion. */
+        public final AtomicLong handshakeRetransmits = new AtomicLong();
+        public final AtomicLong retransmitDrops = new AtomicLong();
+
+        private double smoothedRtt = 0;
+        private double rttVariation = 0;
+        private int retransmitTimeout = RETRANSMIT_TIME;
+
+        /**
+         * Updates round-trip time estimation and retransmit timeout (RFC 6298). Should be called only with packets that
+         * were not retransmitted, because ack of retransmitted packet can't be matched with one of the sendings
+         * (Karn's algorithm).
+         * @param rttMillis measured round-trip time
+         */
+        synchronized void onRttSample(double rttMillis) {
+            if (smoothedRtt == 0) {
+                smoothedRtt = rttMillis;
+                rttVariation = rttMillis / 2;
+            } else {
+                rttVariation = 0.75 * rttVariation + 0.25 * Math.abs(smoothedRtt - rttMillis);
+                smoothedRtt = 0.875 * smoothedRtt + 0.125 * rttMillis;
+            }
+            int timeout = (int) Math.ceil(smoothedRtt + 4 * rttVariation);
+            retransmitTimeout = Math.max(MIN_RETRANSMIT_TIME, Math.min(MAX_RETRANSMIT_TIME, timeout));
+        }
+
+        synchronized double getSmoothedRtt() {
+            return smoothedRtt;
+        }
+
+        synchronized int getRetransmitTimeout() {
+            return retransmitTimeout;
+        }
+
+        /**
+         * Calls for each retransmitted {@link PacketTypes#DATA} packet.
+         */
+        protected void onDataRetransmit() {
+        }
 
         public void addPacketToRetransmitMap(Integer packetId, Packet packet, byte[] sourcePayload) {
-            retransmitMap.put(packetId, new RetransmitItem(packet, sourcePayload));
+            retransmitMap.put(packetId, new RetransmitItem(packet, sourcePayload, getRetransmitTimeout()));
         }
 
         public void removePacketFromRetransmitMap(Integer packetId) {
@@ -1138,30 +1456,39 @@ public class UDPAdapter extends DatagramAdapter {
         }
 
         public void pulseRetransmit() {
+            // pulse ticks often and maps could be large, so the time is taken once
+            Instant now = Instant.now();
             if (getState() == Session.STATE_EXCHANGING) {
                 retransmitMap.forEach((itkey, item)-> {
-                    if (item.nextRetransmitTime.isBefore(Instant.now())) {
-                        item.updateNextRetransmitTime();
+                    if (item.nextRetransmitTime.isBefore(now)) {
+                        item.updateNextRetransmitTime(getRetransmitTimeout());
                         if (item.type == PacketTypes.DATA) {
                             if (item.packet == null) {
                                 byte[] dataToSend = preparePayloadForSession(sessionKey, item.sourcePayload);
                                 item.packet = new Packet(item.packetId, myNodeInfo.getNumber(), item.receiverNodeId, item.type, dataToSend);
                             }
                             sendPacket(remoteNodeInfo, item.packet);
-                            if (item.retransmitCounter++ >= RETRANSMIT_MAX_ATTEMPTS)
+                            retransmits.incrementAndGet();
+                            onDataRetransmit();
+                            if (item.retransmitCounter++ >= RETRANSMIT_MAX_ATTEMPTS) {
                                 retransmitMap.remove(itkey);
+                                onRetransmitDrop();
+                            }
                         }
                     }
                 });
             } else {
                 retransmitMap.forEach((itkey, item)-> {
-                    if (item.nextRetransmitTime.isBefore(Instant.now())) {
-                        item.updateNextRetransmitTime();
+                    if (item.nextRetransmitTime.isBefore(now)) {
+                        item.updateNextRetransmitTime(getRetransmitTimeout());
                         if (item.type != PacketTypes.DATA) {
                             if (item.packet != null) {
                                 sendPacket(remoteNodeInfo, item.packet);
-                                if (item.retransmitCounter++ >= RETRANSMIT_MAX_ATTEMPTS)
+                                handshakeRetransmits.incrementAndGet();
+                                if (item.retransmitCounter++ >= RETRANSMIT_MAX_ATTEMPTS) {
                                     retransmitMap.remove(itkey);
+                                    onRetransmitDrop();
+                                }
                             } else {
                                 retransmitMap.remove(itkey);
                             }
@@ -1170,6 +1497,13 @@ public class UDPAdapter extends DatagramAdapter {
                 });
             }
         }
+
+        private void onRetransmitDrop() {
+            // log first drop and then each thousandth one, drops go in series when remote node is down
+            if (retransmitDrops.incrementAndGet() % 1000 == 1)
+                report(logLabel, ()->"packets to node " + remoteNodeInfo.getNumber() + " are dropped after "
+                        + RETRANSMIT_MAX_ATTEMPTS + " retransmits, total: " + retransmitDrops.get(), VerboseLevel.BASE);
+        }
     }
 
 
@@ -1184,6 +1518,13 @@ public class UDPAdapter extends DatagramAdapter {
         private byte[] localNonce;
         private byte[] remoteNonce;
         private BlockingQueue<OutputQueueItem> outputQueue = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
+        /** Guards sending of payloads to this session, see {@link UDPAdapter#send(NodeInfo, byte[])}. */
+        private final Object sendLock = new Object();
+        public final AtomicLong queueDrops = new AtomicLong();
+
+        private double congestionWindow = INITIAL_CONGESTION_WINDOW;
+        private double slowStartThreshold = MAX_RETRANSMIT_QUEUE_SIZE;
+        private long lastWindowDecreaseNanos = 0;
 
         private AtomicInteger state;
         private AtomicInteger handshakeStep;
@@ -1219,9 +1560,56 @@ public class UDPAdapter extends DatagramAdapter {
             return state.get();
         }
 
+        /**
+         * @return max number of not acknowledged {@link PacketTypes#DATA} packets, next payloads wait in
+         * {@link Session#outputQueue}
+         */
+        synchronized int getCongestionWindow() {
+            return (int) congestionWindow;
+        }
+
+        /**
+         * Remote node has acknowledged the packet: stop its retransmitting, update round-trip time and grow
+         * congestion window, then send payloads the window has room for.
+         * @param packetId acknowledged packet id
+         */
+        public void onAck(Integer packetId) {
+            RetransmitItem item = retransmitMap.remove(packetId);
+            if (item == null || item.type != PacketTypes.DATA)
+                return;
+            if (item.retransmitCounter == 0)
+                onRttSample((System.nanoTime() - item.sentAtNanos) / 1e6);
+            synchronized (this) {
+                if (congestionWindow < slowStartThreshold)
+                    congestionWindow += 1;
+                else
+                    congestionWindow += 1 / congestionWindow;
+                congestionWindow = Math.min(congestionWindow, MAX_RETRANSMIT_QUEUE_SIZE);
+            }
+            if (!outputQueue.isEmpty())
+                sendAllFromOutputQueue();
+        }
+
+        /**
+         * Packet was lost or delayed: halve congestion window, but no more than once per retransmit timeout,
+         * because all packets in flight are retransmitted together.
+         */
+        @Override
+        protected void onDataRetransmit() {
+            long now = System.nanoTime();
+            synchronized (this) {
+                if (now - lastWindowDecreaseNanos > getRetransmitTimeout() * 1000000L) {
+                    slowStartThreshold = Math.max(congestionWindow / 2, MIN_CONGESTION_WINDOW);
+                    congestionWindow = slowStartThreshold;
+                    lastWindowDecreaseNanos = now;
+                }
+            }
+        }
+
         /**
          * If we send some payload into session, but session state is
-         * {@link Session#STATE_HANDSHAKE} - it accumulates in {@link Session#outputQueue}.
+         * {@link Session#STATE_HANDSHAKE} or congestion window is full - it accumulates in
+         * {@link Session#outputQueue}. If the queue is full, oldest payload is dropped.
          * @param destination instance of {@link NodeInfo} with net address for sending.
          * @param payload data to send
          */
@@ -1230,26 +1618,24 @@ public class UDPAdapter extends DatagramAdapter {
             if (!outputQueue.offer(outputQueueItem)) {
                 outputQueue.poll();
                 outputQueue.offer(outputQueueItem);
+                // log first drop and then each thousandth one, not to flood the log while queue is overflowed
+                if (queueDrops.incrementAndGet() % 1000 == 1)
+                    callErrorCallbacks("output queue to node " + remoteNodeInfo.getNumber() + " is full, oldest payloads are dropped, total: " + queueDrops.get());
             }
         }
 
         /**
-         * When handshake procedure completes, we should send all accumulated messages.
+         * When handshake procedure completes or congestion window has room, we should send accumulated messages.
+         * They are sent from the head of the queue under {@link #sendLock}, so they keep their order relative to
+         * each other and to the payloads given to {@link UDPAdapter#send(NodeInfo, byte[])} meanwhile.
          */
         public void sendAllFromOutputQueue() {
-            try {
+            synchronized (sendLock) {
                 if (state.get() != Session.STATE_HANDSHAKE) {
                     OutputQueueItem queuedItem;
-                    int maxOutputs = MAX_RETRANSMIT_QUEUE_SIZE - retransmitMap.size();
-                    int i = 0;
-                    while ((queuedItem = outputQueue.poll()) != null) {
-                        send(queuedItem.destination, queuedItem.payload);
-                        if (i++ > maxOutputs)
-                            break;
-                    }
+                    while (retransmitMap.size() < getCongestionWindow() && (queuedItem = outputQueue.poll()) != null)
+                        sendPayload(this, queuedItem.payload);
                 }
-            } catch (InterruptedException e) {
-                callErrorCallbacks("(sendAllFromOutputQueue) InterruptedException in node " + myNodeInfo.getNumber() + ": " + e);
             }
         }
 
@@ -1289,6 +1675,116 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
+    /**
+     * First byte of packet with binary header. Boss-encoded packet always starts with 5-items list header (0x2E).
+     */
+    static private final byte BINARY_HEADER_MARKER = (byte) 0xA5;
+    static private final byte BINARY_HEADER_VERSION = 1;
+    static private final int BINARY_HEADER_SIZE = 16;
+
+
+    /**
+     * Relay routes to the nodes unreachable by this one, indexed by node number. Built once from snapshot
+     * of connectivity map, so {@link #sendPacket(NodeInfo, Packet)} does only array lookups.
+     */
+    private static class RoutingTable {
+
+        private final boolean[] unreachable;
+        private final NodeInfo[] relays;
+
+        RoutingTable(NodeInfo myNodeInfo, Map<NodeInfo, ConnectivityInfo> connectivityMap) {
+            ConnectivityInfo myConnectivity = myNodeInfo != null ? connectivityMap.get(myNodeInfo) : null;
+            Set<NodeInfo> unreachableByMe = myConnectivity != null ? myConnectivity.getUnreachableNodes() : new HashSet<>();
+
+            int maxNumber = -1;
+            for (NodeInfo ni : unreachableByMe)
+                if (ni != null && ni.getNumber() >= 0)
+                    maxNumber = Math.max(maxNumber, ni.getNumber());
+            unreachable = new boolean[maxNumber + 1];
+            relays = new NodeInfo[maxNumber + 1];
+
+            // sorted, so equal routes are resolved the same way on every rebuild
+            List<NodeInfo> nodes = new ArrayList<>(connectivityMap.keySet());
+            nodes.sort(Comparator.comparingInt(NodeInfo::getNumber));
+
+            for (NodeInfo destination : unreachableByMe) {
+                if (destination == null || destination.getNumber() < 0)
+                    continue;
+                unreachable[destination.getNumber()] = true;
+                relays[destination.getNumber()] = findRelay(myNodeInfo, destination, nodes, connectivityMap);
+            }
+        }
+
+        /**
+         * Finds shortest route from myNodeInfo to destination with breadth-first search from destination back,
+         * through nodes that reported their connectivity.
+         * @return first node of the route, or null if there is no route to destination
+         */
+        private static NodeInfo findRelay(NodeInfo myNodeInfo, NodeInfo destination, List<NodeInfo> nodes,
+                                          Map<NodeInfo, ConnectivityInfo> connectivityMap) {
+            Map<NodeInfo, Integer> routeLengths = new HashMap<>();
+            routeLengths.put(destination, 0);
+            Deque<NodeInfo> queue = new ArrayDeque<>();
+            queue.add(destination);
+
+            while (!queue.isEmpty() && !routeLengths.containsKey(myNodeInfo)) {
+                NodeInfo x = queue.poll();
+                int xRouteLength = routeLengths.get(x);
+                for (NodeInfo ni : nodes) {
+                    if (!routeLengths.containsKey(ni) && !connectivityMap.get(ni).getUnreachableNodes().contains(x)) {
+                        routeLengths.put(ni, xRouteLength + 1);
+                        queue.add(ni);
+                    }
+                }
+            }
+
+            if (!routeLengths.containsKey(myNodeInfo))
+                return null;
+
+            // nearest to destination among the nodes reachable by me
+            Set<NodeInfo> unreachableByMe = connectivityMap.get(myNodeInfo).getUnreachableNodes();
+            NodeInfo relay = null;
+            int relayRouteLength = Integer.MAX_VALUE;
+            for (NodeInfo ni : nodes) {
+                Integer routeLength = routeLengths.get(ni);
+                if (!ni.equals(myNodeInfo) && routeLength != null && routeLength < relayRouteLength && !unreachableByMe.contains(ni)) {
+                    relay = ni;
+                    relayRouteLength = routeLength;
+                }
+            }
+            return relay;
+        }
+
+        boolean isUnreachable(NodeInfo destination) {
+            int number = destination.getNumber();
+            return number >= 0 && number < unreachable.length && unreachable[number];
+        }
+
+        NodeInfo getRelay(NodeInfo destination) {
+            return relays[destination.getNumber()];
+        }
+    }
+
+
+    /**
+     * Engines for receiving and sending datagrams.
+     */
+    public static class Engines
+    {
+        static public final int SOCKET =            0;
+        static public final int CHANNEL =           1;
+
+        public static int stringToInt(String engine) {
+            if(engine.equals("socket"))
+                return SOCKET;
+            if(engine.equals("channel"))
+                return CHANNEL;
+
+            throw new IllegalArgumentException("Unknown engine " + engine);
+        }
+    }
+
+
     /**
      * Packet is atomary object for sending to socket. It has size that fit socket buffer size.
      * Think about packet as about low-level structure. Has header and payload sections.
@@ -1315,7 +1811,12 @@ public class UDPAdapter extends DatagramAdapter {
         private int receiverNodeId;
         private int packetId = 0;
         private int type;
+        /** Array with payload. For packets parsed from binary header it may be the whole datagram. */
         private byte[] payload;
+        private int payloadOffset = 0;
+        private int payloadLength = 0;
+        /** Packet has been received with binary header. */
+        private boolean binaryHeader = false;
 
         public Packet() {
         }
@@ -1326,6 +1827,27 @@ public class UDPAdapter extends DatagramAdapter {
             this.receiverNodeId = receiverNodeId;
             this.type = type;
             this.payload = payload;
+            this.payloadLength = payload.length;
+        }
+
+        /**
+         * Returns payload as separate array, that may be kept after the packet is processed. Payload of packet parsed
+         * from binary header is copied from datagram on first call. Hot paths read {@link #payload} in place instead.
+         * @return payload
+         */
+        public byte[] getPayload() {
+            if (payloadOffset != 0 || payloadLength != payload.length) {
+                payload = Arrays.copyOfRange(payload, payloadOffset, payloadOffset + payloadLength);
+                payloadOffset = 0;
+            }
+            return payload;
+        }
+
+        /**
+         * @return size of packet with binary header, in bytes.
+         */
+        public int getBinarySize() {
+            return BINARY_HEADER_SIZE + payloadLength;
         }
 
         /**
@@ -1333,21 +1855,110 @@ public class UDPAdapter extends DatagramAdapter {
          * @return packed packet.
          */
         public byte[] makeByteArray() {
-            List data = Arrays.asList(packetId, senderNodeId, receiverNodeId, type, new Bytes(payload));
+            List data = Arrays.asList(packetId, senderNodeId, receiverNodeId, type, new Bytes(getPayload()));
             return Boss.dumpToArray(data);
         }
 
+        /**
+         * Pack header and payload to bytes array.
+         * @param binaryHeader use fixed-layout binary header, see {@link #writeTo(ByteBuffer)}
+         * @return packed packet.
+         */
+        public byte[] makeByteArray(boolean binaryHeader) {
+            if (!binaryHeader)
+                return makeByteArray();
+            byte[] result = new byte[getBinarySize()];
+            writeTo(ByteBuffer.wrap(result));
+            return result;
+        }
+
+        /**
+         * Write packet with fixed-layout binary header: marker byte, header version byte, type byte, reserved byte,
+         * then packetId, senderNodeId and receiverNodeId as big-endian ints. Payload takes the rest of datagram.
+         * @param buffer to write to, should have at least {@link #getBinarySize()} bytes remaining
+         */
+        public void writeTo(ByteBuffer buffer) {
+            buffer.put(BINARY_HEADER_MARKER)
+                    .put(BINARY_HEADER_VERSION)
+                    .put((byte) type)
+                    .put((byte) 0)
+                    .putInt(packetId)
+                    .putInt(senderNodeId)
+                    .putInt(receiverNodeId)
+                    .put(payload, payloadOffset, payloadLength);
+        }
+
         /**
          * Reconstruct packet from bytes array.
          * @param byteArray is bytes array for reconstruction.
          */
         public void parseFromByteArray(byte[] byteArray) {
-            List data = Boss.load(byteArray);
-            packetId = (int) data.get(0);
-            senderNodeId = (int) data.get(1);
-            receiverNodeId = (int) data.get(2);
-            type = (int) data.get(3);
-            payload = ((Bytes) data.get(4)).toArray();
+            parseFromByteArray(byteArray, 0, byteArray.length);
+        }
+
+        /**
+         * Reconstruct packet from part of bytes array, see {@link #parseFrom(ByteBuffer)}.
+         * Payload of packet with binary header is not copied, it refers to the given array.
+         * @param data is bytes array for reconstruction.
+         * @param offset packet start in data
+         * @param length packet length
+         */
+        public void parseFromByteArray(byte[] data, int offset, int length) {
+            parseFrom(ByteBuffer.wrap(data, offset, length));
+        }
+
+        /**
+         * Reconstruct packet from remaining bytes of the buffer. Both binary and Boss-encoded headers are accepted.
+         * Binary header is read in place. Payload of such packet refers to the array of heap buffer, and is the only
+         * part copied from direct buffer. Position of the buffer is not changed.
+         * @param buffer with packet between position and limit
+         */
+        public void parseFrom(ByteBuffer buffer) {
+            int start = buffer.position();
+            int length = buffer.remaining();
+            if (length >= BINARY_HEADER_SIZE && buffer.get(start) == BINARY_HEADER_MARKER) {
+                if (buffer.get(start + 1) != BINARY_HEADER_VERSION)
+                    throw new IllegalArgumentException("unsupported packet header version: " + buffer.get(start + 1));
+                type = buffer.get(start + 2) & 0xFF;
+                packetId = buffer.getInt(start + 4);
+                senderNodeId = buffer.getInt(start + 8);
+                receiverNodeId = buffer.getInt(start + 12);
+                payloadLength = length - BINARY_HEADER_SIZE;
+                if (buffer.hasArray()) {
+                    payload = buffer.array();
+                    payloadOffset = buffer.arrayOffset() + start + BINARY_HEADER_SIZE;
+                } else {
+                    payload = new byte[payloadLength];
+                    payloadOffset = 0;
+                    ByteBuffer source = buffer.duplicate();
+                    source.position(start + BINARY_HEADER_SIZE);
+                    source.get(payload);
+                }
+                binaryHeader = true;
+            } else {
+                ByteArrayInputStream in;
+                if (buffer.hasArray()) {
+                    in = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + start, length);
+                } else {
+                    byte[] data = new byte[length];
+                    buffer.duplicate().get(data);
+                    in = new ByteArrayInputStream(data);
+                }
+                List list;
+                try {
+                    list = new Boss.Reader(in).read();
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("can't parse packet header", e);
+                }
+                packetId = (int) list.get(0);
+                senderNodeId = (int) list.get(1);
+                receiverNodeId = (int) list.get(2);
+                type = (int) list.get(3);
+                payload = ((Bytes) list.get(4)).toArray();
+                payloadOffset = 0;
+                payloadLength = payload.length;
+                binaryHeader = false;
+            }
         }
     }
 
@@ -1384,21 +1995,26 @@ public class UDPAdapter extends DatagramAdapter {
         public int packetId = 0;
         public int type;
         public Instant nextRetransmitTime;
-        public RetransmitItem(Packet packet, byte[] sourcePayload) {
+        public final long sentAtNanos = System.nanoTime();
+        public RetransmitItem(Packet packet, byte[] sourcePayload, int retransmitTimeout) {
             this.packet = packet;
             this.sourcePayload = sourcePayload;
             this.retransmitCounter = 0;
             this.receiverNodeId = packet.receiverNodeId;
             this.packetId = packet.packetId;
             this.type = packet.type;
-            updateNextRetransmitTime();
-        }
-        public void updateNextRetransmitTime() {
-            int maxRetransmitDelay = RETRANSMIT_TIME_GROW_FACTOR*retransmitCounter + RETRANSMIT_MAX_ATTEMPTS;
-            maxRetransmitDelay /= RETRANSMIT_MAX_ATTEMPTS;
-            maxRetransmitDelay *= RETRANSMIT_TIME;
-            maxRetransmitDelay += RETRANSMIT_TIME/2;
-            nextRetransmitTime = Instant.now().plusMillis(new Random().nextInt(maxRetransmitDelay));
+            updateNextRetransmitTime(retransmitTimeout);
+        }
+        /**
+         * Each next retransmit is delayed little bit more than previous one, starting from given timeout.
+         * Delay is randomized by +-25% to spread retransmits of packets sent together.
+         * @param retransmitTimeout current retransmit timeout of the session, in milliseconds
+         */
+        public void updateNextRetransmitTime(int retransmitTimeout) {
+            int retransmitDelay = RETRANSMIT_TIME_GROW_FACTOR*retransmitCounter + RETRANSMIT_MAX_ATTEMPTS;
+            retransmitDelay *= retransmitTimeout;
+            retransmitDelay /= RETRANSMIT_MAX_ATTEMPTS;
+            nextRetransmitTime = Instant.now().plusMillis(retransmitDelay*3/4 + ThreadLocalRandom.current().nextInt(retransmitDelay/2 + 1));
         }
     }
 
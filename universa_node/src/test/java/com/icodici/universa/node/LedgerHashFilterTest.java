@@ -0,0 +1,57 @@
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LedgerHashFilterTest {
+
+    @Test
+    public void noFalseNegatives() throws Exception {
+        LedgerHashFilter.BloomFilter filter = new LedgerHashFilter.BloomFilter(10000, 0.01);
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            HashId id = HashId.createRandom();
+            ids.add(id);
+            filter.add(id);
+        }
+        for (HashId id : ids)
+            assertTrue(filter.mightContain(id));
+        assertEquals(1, filter.getStagesCount());
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++)
+            if (filter.mightContain(HashId.createRandom()))
+                falsePositives++;
+        assertTrue(falsePositives < 200);
+        assertTrue(filter.getExpectedFalsePositiveRate() < 0.01);
+    }
+
+    @Test
+    public void grows() throws Exception {
+        LedgerHashFilter.BloomFilter filter = new LedgerHashFilter.BloomFilter(1024, 0.01);
+        long memory = filter.getMemoryBytes();
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            HashId id = HashId.createRandom();
+            ids.add(id);
+            filter.add(id);
+        }
+        for (HashId id : ids)
+            assertTrue(filter.mightContain(id));
+        assertTrue(filter.getStagesCount() > 1);
+        assertTrue(filter.getMemoryBytes() > memory);
+        // target rate is kept while growing
+        assertTrue(filter.getExpectedFalsePositiveRate() < 0.01);
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++)
+            if (filter.mightContain(HashId.createRandom()))
+                falsePositives++;
+        assertTrue(falsePositives < 200);
+    }
+}
@@ -193,6 +193,123 @@ public class PostgresLedgerTest extends TestCase {
         assertEquals(ItemState.DECLINED, r2.getState());
     }
 
+    @Test
+    public void groupCommit() throws Exception {
+        ledger.enableGroupCommit(64, Duration.ofMillis(2));
+        try {
+            int count = 200;
+            ExecutorService es = Executors.newFixedThreadPool(16);
+            // records are prepared first and saved all at once, so saves surely come concurrently
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<StateRecord>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                StateRecord r = i % 2 == 0 ? new StateRecord(HashId.createRandom()) : ledger.findOrCreate(HashId.createRandom());
+                r.setState(ItemState.APPROVED);
+                r.setExpiresAt(ZonedDateTime.now().plusDays(1));
+                futures.add(es.submit(() -> {
+                    start.await();
+                    ledger.save(r);
+                    return r;
+                }));
+            }
+            start.countDown();
+            for (Future<StateRecord> f : futures) {
+                StateRecord r = f.get();
+                assertNotEquals(0, r.getRecordId());
+                assertEquals(ItemState.APPROVED, ledger.getRecord(r.getId()).getState());
+            }
+            es.shutdown();
+
+            // inside transaction records are written with it
+            StateRecord r1 = futures.get(0).get();
+            Object y = ledger.transaction(() -> {
+                r1.setState(ItemState.REVOKED);
+                r1.save();
+                throw new Ledger.Rollback();
+            });
+            assertNull(y);
+            assertEquals(ItemState.APPROVED, ledger.getRecord(r1.getId()).getState());
+
+            Binder stats = ledger.getGroupCommitStats();
+            assertEquals((long) count, stats.getLongOrThrow("records"));
+            // concurrent saves are grouped: in average more than one record is written per batch
+            assertTrue(stats.getLongOrThrow("batches") < count);
+        } finally {
+            ledger.disableGroupCommit();
+        }
+    }
+
+    @Test
+    public void hashFilter() throws Exception {
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+        ledger.enableHashFilter(1000, 0.01);
+        try {
+            while (!ledger.getHashFilterStats().getBooleanOrThrow("ready"))
+                Thread.sleep(10);
+            ledger.enableCache(false);
+            assertNotNull(ledger.getRecord(existing.getId()));
+            for (int i = 0; i < 100; i++)
+                assertNull(ledger.getRecord(HashId.createRandom()));
+            assertTrue(ledger.getHashFilterStats().getLongOrThrow("absent") > 90);
+
+            // new records are found
+            StateRecord created = ledger.findOrCreate(HashId.createRandom());
+            assertNotNull(ledger.getRecord(created.getId()));
+            StateRecord saved = new StateRecord(HashId.createRandom());
+            ledger.save(saved);
+            assertNotNull(ledger.getRecord(saved.getId()));
+            HashId newId = HashId.createRandom();
+            assertEquals(1, created.createOutputLockRecords(Arrays.asList(newId)).size());
+            assertNotNull(ledger.getRecord(newId));
+        } finally {
+            ledger.enableCache(true);
+            ledger.disableHashFilter();
+        }
+    }
+
+    @Test
+    public void bulkOperations() throws Exception {
+        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
+        List<HashId> existing = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.setState(ItemState.APPROVED);
+            r.save();
+            existing.add(r.getId());
+        }
+        List<HashId> ids = new ArrayList<>(existing);
+        ids.add(HashId.createRandom());
+        Map<HashId, StateRecord> found = ledger.getRecords(ids);
+        assertEquals(10, found.size());
+        for (HashId id : existing)
+            assertEquals(ItemState.APPROVED, found.get(id).getState());
+
+        List<HashId> newIds = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            newIds.add(HashId.createRandom());
+        List<HashId> toCreate = new ArrayList<>(newIds);
+        toCreate.add(existing.get(0));
+        Map<HashId, StateRecord> created = owner.createOutputLockRecords(toCreate);
+        assertEquals(10, created.size());
+        assertFalse(created.containsKey(existing.get(0)));
+        for (HashId id : newIds) {
+            StateRecord r = ledger.getRecord(id);
+            assertEquals(ItemState.LOCKED_FOR_CREATION, r.getState());
+            assertEquals(owner.getRecordId(), r.getLockedByRecordId());
+        }
+
+        List<StateRecord> locked = new ArrayList<>();
+        for (HashId id : existing)
+            locked.add(owner.lockToRevoke(found.get(id), false));
+        ledger.saveAll(locked);
+        for (HashId id : existing) {
+            StateRecord r = ledger.getRecord(id);
+            r.reload();
+            assertEquals(ItemState.LOCKED, r.getState());
+            assertEquals(owner.getRecordId(), r.getLockedByRecordId());
+        }
+    }
+
     @Test
     public void approve() throws Exception {
         StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
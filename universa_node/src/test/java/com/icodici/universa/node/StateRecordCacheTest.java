@@ -0,0 +1,72 @@
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StateRecordCacheTest {
+
+    private static final Ledger ledger = (Ledger) Proxy.newProxyInstance(Ledger.class.getClassLoader(),
+            new Class<?>[]{Ledger.class}, (p, m, args) -> null);
+
+    private static StateRecord record(HashId id, long recordId) {
+        StateRecord r = new StateRecord(ledger);
+        r.setId(id);
+        r.setRecordId(recordId);
+        return r;
+    }
+
+    private static StateRecord record(long recordId) {
+        return record(HashId.createRandom(), recordId);
+    }
+
+    @Test
+    public void findByHashAndId() throws Exception {
+        StateRecordCache cache = new StateRecordCache(10);
+        StateRecord r = record(1);
+        cache.put(r);
+        assertSame(r, cache.get(r.getId()));
+        assertSame(r, cache.getById(1));
+        assertNull(cache.getById(2));
+
+        // saved instance replaces the cached one
+        StateRecord copy = record(r.getId(), 1);
+        cache.put(copy);
+        assertSame(copy, cache.get(r.getId()));
+        assertSame(copy, cache.getById(1));
+
+        cache.remove(copy);
+        assertNull(cache.get(r.getId()));
+        assertNull(cache.getById(1));
+
+        assertEquals(4L, cache.getStats().getLongOrThrow("hits"));
+        assertEquals(3L, cache.getStats().getLongOrThrow("misses"));
+    }
+
+    @Test
+    public void recentAreHeld() throws Exception {
+        StateRecordCache cache = new StateRecordCache(100);
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            StateRecord r = record(i);
+            ids.add(r.getId());
+            cache.put(r);
+        }
+        System.gc();
+        for (HashId id : ids)
+            assertNotNull(cache.get(id));
+
+        // records that are not recent anymore are kept while somebody holds them
+        StateRecord held = record(1000);
+        cache.put(held);
+        for (int i = 0; i < 300; i++)
+            cache.put(record(2000 + i));
+        System.gc();
+        assertSame(held, cache.getById(1000));
+    }
+}
@@ -0,0 +1,44 @@
+package com.icodici.universa.node2;
+
+import com.icodici.universa.TestKeys;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AdaptiveScheduleTest {
+
+    private static final List<Integer> configured = Arrays.asList(0, 1000, 1000, 1000, 2000, 4000, 8000);
+
+    @Test
+    public void adaptToLatency() throws Exception {
+        NodeInfo n1 = new NodeInfo(TestKeys.publicKey(0), 1, "test1", "localhost", 17101, 17102, 17104);
+        NodeInfo n2 = new NodeInfo(TestKeys.publicKey(1), 2, "test2", "localhost", 17111, 17112, 17114);
+
+        AdaptiveSchedule schedule = new AdaptiveSchedule();
+        // not enough answers yet
+        schedule.registerAnswer(n1, TimeUnit.MILLISECONDS.toNanos(50));
+        assertSame(configured, schedule.adapt(configured));
+
+        AdaptiveSchedule fast = new AdaptiveSchedule();
+        for (int i = 0; i < 10; i++) {
+            fast.registerAnswer(n1, TimeUnit.MILLISECONDS.toNanos(40));
+            fast.registerAnswer(n2, TimeUnit.MILLISECONDS.toNanos(i < 9 ? 50 : 900));
+        }
+        // 90th percentile ignores the single slow answer
+        assertEquals(50, fast.getLatencyMillis());
+        assertEquals(Arrays.asList(0, 50, 100, 200, 400, 800, 1600), fast.adapt(configured));
+        assertEquals(20, fast.getStats().getIntOrThrow("samples"));
+        assertEquals(2, fast.getStats().getIntOrThrow("peers"));
+
+        AdaptiveSchedule slow = new AdaptiveSchedule();
+        for (int i = 0; i < 20; i++)
+            slow.registerAnswer(n1, TimeUnit.MILLISECONDS.toNanos(3000));
+        // configured schedule caps the delays
+        assertEquals(configured, slow.adapt(configured));
+    }
+}
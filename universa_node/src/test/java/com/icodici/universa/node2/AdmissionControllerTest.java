@@ -0,0 +1,82 @@
+package com.icodici.universa.node2;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void paidBeforeFree() throws Exception {
+        Config config = new Config();
+        config.setMaxItemsInFlight(100);
+        config.setMaxLedgerLatency(Duration.ofMillis(100));
+        AtomicInteger inFlight = new AtomicInteger();
+        AdmissionController admission = new AdmissionController(config, inFlight::get, () -> 0);
+
+        assertEquals(0, admission.admit(false));
+        assertEquals(0, admission.admit(true));
+
+        // free registrations are refused first
+        inFlight.set(80);
+        assertTrue(admission.admit(false) >= AdmissionController.MIN_RETRY_AFTER_MILLIS);
+        assertEquals(0, admission.admit(true));
+
+        inFlight.set(100);
+        long retryAfter = admission.admit(true);
+        assertTrue(retryAfter >= AdmissionController.MIN_RETRY_AFTER_MILLIS);
+        // the more load, the longer to wait
+        inFlight.set(1000);
+        assertTrue(admission.admit(true) > retryAfter);
+        assertEquals(AdmissionController.MAX_RETRY_AFTER_MILLIS, admission.admit(false));
+
+        assertEquals(1L, admission.getStats().getLongOrThrow("admittedFree"));
+        assertEquals(2L, admission.getStats().getLongOrThrow("admittedPaid"));
+        assertEquals(2L, admission.getStats().getLongOrThrow("rejectedFree"));
+        assertEquals(2L, admission.getStats().getLongOrThrow("rejectedPaid"));
+    }
+
+    @Test
+    public void slowLedger() throws Exception {
+        Config config = new Config();
+        config.setMaxLedgerLatency(Duration.ofMillis(100));
+        AdmissionController admission = new AdmissionController(config, () -> 0, () -> 0);
+
+        for (int i = 0; i < 100; i++)
+            admission.registerLedgerLatency(TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(admission.getLoad() > 1);
+        assertTrue(admission.admit(true) > 0);
+    }
+
+    @Test
+    public void recoverAfterLatencySpike() throws Exception {
+        Config config = new Config();
+        config.setMaxLedgerLatency(Duration.ofMillis(100));
+        AtomicLong nanos = new AtomicLong();
+        AdmissionController admission = new AdmissionController(config, () -> 0, () -> 0, nanos::get);
+
+        for (int i = 0; i < 100; i++)
+            admission.registerLedgerLatency(TimeUnit.MILLISECONDS.toNanos(400));
+        assertTrue(admission.getLoad() > 2);
+        assertTrue(admission.admit(true) > 0);
+
+        // no ledger operations are done while admission is refused, yet the average decays
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(AdmissionController.LATENCY_HALF_LIFE_MILLIS));
+        assertTrue(admission.getLoad() > 1);
+        assertTrue(admission.admit(true) > 0);
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(AdmissionController.LATENCY_HALF_LIFE_MILLIS * 2));
+        assertTrue(admission.getLoad() < AdmissionController.FREE_SHARE);
+        assertEquals(0, admission.admit(true));
+        assertEquals(0, admission.admit(false));
+
+        // fast operations keep it low
+        admission.registerLedgerLatency(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(admission.getLoad() < AdmissionController.FREE_SHARE);
+    }
+}
@@ -3276,6 +3276,88 @@ public class BaseNetworkTest extends TestCase {
 
 
 
+    /**
+     * Many parcels are registered at once, each of them revokes two of the shared contracts, so they conflict with
+     * each other on overlapping sets of records. Declined ones roll back their locks concurrently: no contract should
+     * be left locked or revoked twice.
+     */
+    @Test(timeout = 90000)
+    public void concurrentConflictingParcels() throws Exception {
+        if(node == null) {
+            System.out.println("network not inited");
+            return;
+        }
+
+        PrivateKey key = new PrivateKey(Do.read(ROOT_PATH + "_xer0yfe2nn1xthc.private.unikey"));
+        Set<PrivateKey> keys = new HashSet<>(Arrays.asList(key));
+        int N = 6;
+
+        List<Contract> sources = new ArrayList<>();
+        for (int i = 0; i < N; i++) {
+            Contract c = new Contract(key);
+            c.seal();
+            registerAndCheckApproved(c);
+            sources.add(c);
+        }
+
+        // two variants of each revision, every one revokes its parent and the next source
+        List<Contract> payloads = new ArrayList<>();
+        List<Parcel> parcels = new ArrayList<>();
+        for (int i = 0; i < N; i++) {
+            for (int variant = 0; variant < 2; variant++) {
+                Contract c = sources.get(i).createRevision();
+                c.getStateData().set("variant", variant);
+                c.addSignerKey(key);
+                c.addRevokingItems(sources.get((i + 1) % N));
+                c.seal();
+                payloads.add(c);
+                parcels.add(createParcelWithFreshU(c, keys));
+            }
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (Parcel parcel : parcels) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    node.registerParcel(parcel);
+                    node.waitParcel(parcel.getId(), 30000);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            thread.setName("conflicting parcel: " + parcel.getId());
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        Map<HashId, Integer> revokedBy = new HashMap<>();
+        for (Contract c : payloads) {
+            ItemState state = node.waitItem(c.getId(), 8000).state;
+            assertFalse(state.isPending());
+            if (state == ItemState.APPROVED) {
+                for (Approvable revoked : c.getRevokingItems())
+                    revokedBy.merge(revoked.getId(), 1, Integer::sum);
+            }
+        }
+        // at least one of the conflicting parcels wins, each source is revoked by no more than one of them
+        assertTrue(revokedBy.size() > 0);
+        for (Contract c : sources) {
+            Integer count = revokedBy.get(c.getId());
+            ItemState state = node.waitItem(c.getId(), 8000).state;
+            if (count == null) {
+                assertEquals(ItemState.APPROVED, state);
+            } else {
+                assertEquals(1, (int) count);
+                assertEquals(ItemState.REVOKED, state);
+            }
+        }
+    }
+
     @Test(timeout = 90000)
     public void registerPayingParcelGood() throws Exception {
 
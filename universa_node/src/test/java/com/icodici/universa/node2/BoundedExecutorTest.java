@@ -0,0 +1,86 @@
+package com.icodici.universa.node2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedExecutorTest {
+
+    @Test
+    public void saturateAndDefer() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        BoundedExecutor executor = new BoundedExecutor("test-pool", 1, 4, Thread.NORM_PRIORITY, scheduler);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger done = new AtomicInteger();
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            done.incrementAndGet();
+        };
+
+        executor.submit(blocked);
+        while (executor.getActiveCount() == 0)
+            Thread.sleep(1);
+        assertFalse(executor.isSaturated());
+        for (int i = 0; i < 4; i++)
+            executor.submit(done::incrementAndGet);
+        assertTrue(executor.isSaturated());
+        assertEquals(0, executor.getRejectedCount());
+
+        // queue is full, so tasks are deferred rather than run in this thread
+        Thread submitter = Thread.currentThread();
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<Thread> ranIn = new AtomicReference<>();
+        List<Future<?>> deferredTasks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            int n = i;
+            deferredTasks.add(executor.submit(() -> {
+                ranIn.set(Thread.currentThread());
+                order.add(n);
+                done.incrementAndGet();
+            }));
+        }
+        assertEquals(4, executor.getRejectedCount());
+        assertEquals(4, executor.getDeferredCount());
+        // deferred queue is full too, so the task is dropped and cancelled
+        Future<?> droppedTask = executor.submit(done::incrementAndGet);
+        assertTrue(droppedTask.isCancelled());
+        // notifications are dropped as soon as the pool queue is full
+        executor.executeOrDrop(done::incrementAndGet);
+        assertEquals(2L, executor.getStats().getLongOrThrow("dropped"));
+        Thread.sleep(BoundedExecutor.RETRY_DELAY_MILLIS * 3);
+        // still full: deferred tasks wait
+        assertEquals(4L, executor.getStats().getLongOrThrow("deferred"));
+        assertEquals(0, done.get());
+
+        release.countDown();
+        for (Future<?> f : deferredTasks)
+            f.get(5, TimeUnit.SECONDS);
+        assertNotSame(submitter, ranIn.get());
+        // deferred tasks keep the order they were submitted in
+        assertEquals(Arrays.asList(0, 1, 2, 3), order);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(9, done.get());
+        assertEquals(0, executor.getDeferredCount());
+        assertFalse(executor.isSaturated());
+        scheduler.shutdown();
+    }
+}
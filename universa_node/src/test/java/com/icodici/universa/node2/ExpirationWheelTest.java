@@ -0,0 +1,105 @@
+package com.icodici.universa.node2;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExpirationWheelTest {
+
+    @Test
+    public void fireInTime() throws Exception {
+        ExpirationWheel wheel = new ExpirationWheel("test-wheel", Duration.ofMillis(5));
+        int count = 300;
+        CountDownLatch latch = new CountDownLatch(count / 2);
+        AtomicInteger early = new AtomicInteger();
+        AtomicInteger cancelledFired = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            // delays up to 1.5s cover several levels of the wheel (64 ticks is 320ms)
+            long delayMillis = i * 5;
+            long deadline = System.currentTimeMillis() + delayMillis;
+            if (i % 2 == 0) {
+                wheel.schedule(Duration.ofMillis(delayMillis), () -> {
+                    if (System.currentTimeMillis() < deadline)
+                        early.incrementAndGet();
+                    latch.countDown();
+                });
+            } else {
+                wheel.schedule(Duration.ofMillis(delayMillis), cancelledFired::incrementAndGet).cancel();
+            }
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(0, early.get());
+        Thread.sleep(100);
+        assertEquals(0, cancelledFired.get());
+        assertEquals(0, wheel.getTimeoutsCount());
+        wheel.shutdown();
+    }
+
+    @Test
+    public void expiringMap() throws Exception {
+        // the wheel is driven by hand, so the test does not depend on timing of the wheel thread
+        AtomicLong nanos = new AtomicLong();
+        ExpirationWheel wheel = new ExpirationWheel(Duration.ofMillis(10), nanos::get);
+        ConcurrentHashMap<String, Integer> expired = new ConcurrentHashMap<>();
+        ExpiringMap<String, Integer> map = new ExpiringMap<>(wheel, Duration.ofMillis(200), expired::put);
+
+        map.put("a", 1);
+        map.put("b", 2);
+        assertNull(map.putIfAbsent("c", 3));
+        assertEquals(3, (int) map.putIfAbsent("c", 4));
+        assertEquals(2, (int) map.remove("b"));
+        advance(wheel, nanos, 100);
+        // replaced entry lives maxAge since replacement
+        map.put("a", 5);
+        advance(wheel, nanos, 150);
+
+        assertEquals(1, map.size());
+        assertEquals(5, (int) map.get("a"));
+        assertNull(map.get("c"));
+        assertEquals(3, (int) expired.get("c"));
+        assertNull(expired.get("b"));
+
+        advance(wheel, nanos, 100);
+        assertEquals(0, map.size());
+        assertEquals(5, (int) expired.get("a"));
+        assertEquals(0, wheel.getTimeoutsCount());
+    }
+
+    @Test
+    public void computeExpiringMap() throws Exception {
+        AtomicLong nanos = new AtomicLong();
+        ExpirationWheel wheel = new ExpirationWheel(Duration.ofMillis(10), nanos::get);
+        ExpiringMap<String, Set<Integer>> map = new ExpiringMap<>(wheel, Duration.ofMillis(200));
+
+        Instant expiresAt = map.compute("a", ConcurrentHashMap::newKeySet, s -> s.add(1));
+        assertEquals(expiresAt, map.getExpiresAt("a"));
+        advance(wheel, nanos, 100);
+        // existing entry keeps its expiration
+        assertEquals(expiresAt, map.compute("a", ConcurrentHashMap::newKeySet, s -> s.add(2)));
+        assertEquals(2, map.get("a").size());
+
+        advance(wheel, nanos, 150);
+        assertNull(map.get("a"));
+        // expired entry is put again
+        map.compute("a", ConcurrentHashMap::newKeySet, s -> s.add(3));
+        assertEquals(1, map.get("a").size());
+        assertEquals(1, wheel.getTimeoutsCount());
+    }
+
+    private static void advance(ExpirationWheel wheel, AtomicLong nanos, long millis) {
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        wheel.runDueTicks();
+    }
+}
@@ -8,12 +8,20 @@
 package com.icodici.universa.node2;
 
 import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
 import com.icodici.universa.node.TestItem;
+import net.sergeych.tools.Binder;
 import org.junit.Test;
 
 import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class ItemCacheTest {
     @Test
@@ -26,4 +34,129 @@ public class ItemCacheTest {
         c.cleanUp();
         assertEquals(null, c.get(i1.getId()));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        TestItem i1 = new TestItem(true);
+        TestItem i2 = new TestItem(true);
+        TestItem i3 = new TestItem(true);
+        TestItem i4 = new TestItem(true);
+        long itemSize = ItemCache.estimateSize(i1);
+        ItemCache c = new ItemCache(Duration.ofMinutes(1), itemSize * 3);
+        c.put(i1, ItemResult.UNDEFINED);
+        c.put(i2, ItemResult.UNDEFINED);
+        c.put(i3, ItemResult.UNDEFINED);
+        // i1 becomes the most recently used, so i2 is evicted
+        assertEquals(i1, c.get(i1.getId()));
+        c.put(i4, ItemResult.UNDEFINED);
+
+        assertEquals(3, c.size());
+        assertEquals(itemSize * 3, c.getEstimatedSize());
+        assertNull(c.get(i2.getId()));
+        assertEquals(i1, c.get(i1.getId()));
+        assertEquals(i3, c.get(i3.getId()));
+        assertEquals(i4, c.get(i4.getId()));
+
+        // replacing the item does not change the size
+        c.put(i3, ItemResult.DISCARDED);
+        assertEquals(itemSize * 3, c.getEstimatedSize());
+        assertSame(ItemResult.DISCARDED, c.getResult(i3.getId()));
+
+        Binder stats = c.getStats();
+        assertEquals(1, stats.getLongOrThrow("evictions"));
+        assertEquals(5, stats.getLongOrThrow("hits"));
+        assertEquals(1, stats.getLongOrThrow("misses"));
+        c.shutdown();
+    }
+
+    @Test
+    public void expireInPutOrder() throws Exception {
+        ItemCache c = new ItemCache(Duration.ofMillis(50));
+        TestItem i1 = new TestItem(true);
+        TestItem i2 = new TestItem(true);
+        c.put(i1, ItemResult.UNDEFINED);
+        Thread.sleep(30);
+        c.put(i2, ItemResult.UNDEFINED);
+        // re-put of i1 restarts its expiration
+        c.put(i1, ItemResult.UNDEFINED);
+        Thread.sleep(30);
+        c.cleanUp();
+        assertEquals(i1, c.get(i1.getId()));
+        assertEquals(i2, c.get(i2.getId()));
+        Thread.sleep(60);
+        c.cleanUp();
+        assertEquals(0, c.size());
+        assertEquals(0, c.getEstimatedSize());
+        assertEquals(2, c.getStats().getLongOrThrow("expirations"));
+        c.shutdown();
+    }
+
+    @Test
+    public void atomicUpdates() throws Exception {
+        ItemCache c = new ItemCache(Duration.ofMinutes(1));
+        TestItem i1 = new TestItem(true);
+        assertNull(c.compute(i1.getId(), r -> ItemResult.DISCARDED));
+        c.putOrUpdate(i1, ItemResult.UNDEFINED);
+        assertSame(ItemResult.UNDEFINED, c.getResult(i1.getId()));
+
+        ZonedDateTime now = ZonedDateTime.now();
+        ItemResult initial = new ItemResult(ItemState.PENDING, false, now, now);
+        initial.extraDataBinder = Binder.of("counter", 0);
+        c.putOrUpdate(i1, initial);
+
+        int threadsCount = 8;
+        int repetitions = 1000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadsCount; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < repetitions; i++) {
+                    c.compute(i1.getId(), r -> {
+                        // new result carries extra data of the current one over
+                        ItemResult rr = new ItemResult(ItemState.PENDING, false, now, now);
+                        rr.extraDataBinder = Binder.of("counter", r.extraDataBinder.getIntOrThrow("counter") + 1);
+                        return rr;
+                    });
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(threadsCount * repetitions, c.getResult(i1.getId()).extraDataBinder.getIntOrThrow("counter"));
+        c.shutdown();
+    }
+
+    @Test
+    public void concurrentEviction() throws Exception {
+        List<TestItem> items = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            items.add(new TestItem(true));
+        long itemSize = ItemCache.estimateSize(items.get(0));
+        ItemCache c = new ItemCache(Duration.ofMinutes(1), itemSize * 50);
+
+        int threadsCount = 8;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadsCount; t++) {
+            int offset = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    TestItem item = items.get((i * 7 + offset) % items.size());
+                    if (c.get(item.getId()) == null)
+                        c.putOrUpdate(item, ItemResult.UNDEFINED);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        // size accounting stays consistent with the records left in the cache
+        assertEquals(c.size() * itemSize, c.getEstimatedSize());
+        assertTrue(c.size() <= 50);
+        assertTrue(c.getStats().getLongOrThrow("evictions") > 0);
+        c.shutdown();
+    }
+}
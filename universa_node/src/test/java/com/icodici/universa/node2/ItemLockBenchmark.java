@@ -0,0 +1,117 @@
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures throughput of {@link ItemLock#synchronize(HashId, java.util.function.Function)} under contention, depending
+ * on count of threads, and compares it with the former implementation that took a global monitor on every call. Each
+ * thread locks random ids from a shared pool, so threads mostly lock different ids, like processors of different items.
+ */
+public class ItemLockBenchmark {
+
+    private static final int idsCount = 10000;
+    private static final int warmupRepetitions = 200000;
+    private static final int repetitions = 2000000;
+    private static final int maxThreads = 16;
+
+    private interface Locker {
+        void synchronize(HashId id, Runnable r) throws Exception;
+    }
+
+    /**
+     * Former implementation: WeakHashMap guarded by one monitor.
+     */
+    private static class GlobalMonitorLock implements Locker {
+        private final WeakHashMap<HashId, Object> monitors = new WeakHashMap<>();
+
+        @Override
+        public void synchronize(HashId id, Runnable r) {
+            Object lock;
+            synchronized (monitors) {
+                lock = monitors.get(id);
+                if (lock == null) {
+                    lock = new Object();
+                    monitors.put(id, lock);
+                }
+            }
+            synchronized (lock) {
+                r.run();
+            }
+        }
+    }
+
+    private final List<HashId> ids = new ArrayList<>();
+
+    private ItemLockBenchmark() {
+        for (int i = 0; i < idsCount; i++)
+            ids.add(HashId.createRandom());
+    }
+
+    /**
+     * @return lock acquisitions per second for given count of threads
+     */
+    private double measure(Locker locker, int threadsCount, int locksPerThread) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        long[] counters = new long[idsCount];
+        for (int t = 0; t < threadsCount; t++) {
+            int seed = t * 7919;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    int x = seed;
+                    for (int i = 0; i < locksPerThread; i++) {
+                        x = x * 1103515245 + 12345;
+                        int index = (x >>> 8) % idsCount;
+                        locker.synchronize(ids.get(index), () -> counters[index]++);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        long spent = System.nanoTime() - startTime;
+
+        long total = 0;
+        for (long c : counters)
+            total += c;
+        if (total != (long) threadsCount * locksPerThread)
+            throw new IllegalStateException("lost updates: " + total);
+
+        return (double) threadsCount * locksPerThread * 1e9 / spent;
+    }
+
+    void run() throws Exception {
+        ItemLock itemLock = new ItemLock();
+        Locker concurrent = (id, r) -> itemLock.synchronize(id, (__) -> {
+            r.run();
+            return null;
+        });
+        Locker global = new GlobalMonitorLock();
+
+        measure(global, 1, warmupRepetitions);
+        measure(concurrent, 1, warmupRepetitions);
+        for (int threadsCount = 1; threadsCount <= maxThreads; threadsCount *= 2) {
+            double globalRate = measure(global, threadsCount, repetitions / threadsCount);
+            double itemLockRate = measure(concurrent, threadsCount, repetitions / threadsCount);
+            System.out.printf("%s threads: global monitor %.0f locks/s, ItemLock %.0f locks/s (x%.2f)\n",
+                    threadsCount, globalRate, itemLockRate, itemLockRate / globalRate);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ItemLockBenchmark().run();
+    }
+}
@@ -11,6 +11,7 @@ import com.icodici.universa.HashId;
 import com.icodici.universa.node.ItemResult;
 import com.icodici.universa.node.ItemState;
 import com.icodici.universa.TestKeys;
+import net.sergeych.tools.Do;
 import org.junit.Test;
 
 import java.time.ZonedDateTime;
@@ -18,7 +19,9 @@ import java.time.temporal.ChronoUnit;
 import java.util.List;
 
 import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class ItemNotificationTest {
     @Test
@@ -46,4 +49,29 @@ public class ItemNotificationTest {
         assertEquals(n, n3);
     }
 
+    @Test
+    public void packUnpackItemBody() throws Exception {
+        NodeInfo ni = new NodeInfo(TestKeys.publicKey(0),1, "test1", "localhost", 17101, 17102, 17104);
+        HashId id1 = HashId.createRandom();
+        ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        ItemResult ir = new ItemResult(ItemState.PENDING, true, now, now.plusDays(30));
+        byte[] body = Do.randomBytes(100);
+
+        // parcel notification without parcel id should not break notifications following it
+        ParcelNotification n1 = new ParcelNotification(ni, id1, null, ir, true,
+                ParcelNotification.ParcelNotificationType.PAYLOAD, ParcelNotification.ParcelNotificationClass.PARCEL);
+        ItemBodyNotification n2 = new ItemBodyNotification(ni, id1, ir, true,
+                ParcelNotification.ParcelNotificationType.PAYLOAD, body);
+        ItemNotification n3 = new ItemNotification(ni, id1, ir, false);
+
+        List<Notification> l = Notification.unpack(ni, Notification.pack(asList(n1, n2, n3)));
+        assertEquals(3, l.size());
+        assertEquals(ParcelNotification.class, l.get(0).getClass());
+        assertNull(((ParcelNotification) l.get(0)).getParcelId());
+        ItemBodyNotification n = (ItemBodyNotification) l.get(1);
+        assertEquals(n2, n);
+        assertArrayEquals(body, n.getPackedItem());
+        assertEquals(n3, l.get(2));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyRateLimiterTest {
+
+    @Test
+    public void limitPerKey() throws Exception {
+        KeyRateLimiter<String> limiter = new KeyRateLimiter<>(Duration.ofMinutes(1));
+        for (int i = 0; i < 10; i++)
+            assertTrue(limiter.tryAcquire("a", 10));
+        assertFalse(limiter.tryAcquire("a", 10));
+        assertFalse(limiter.tryAcquire("a", 10));
+        // other keys are not affected
+        assertTrue(limiter.tryAcquire("b", 10));
+        assertEquals(10, limiter.getRequestsCount("a"));
+
+        Binder stats = limiter.getStats();
+        assertEquals(2, stats.getIntOrThrow("keys"));
+        assertEquals(1, stats.getIntOrThrow("throttledKeys"));
+        assertEquals(11, stats.getLongOrThrow("allowedRequests"));
+        assertEquals(2, stats.getLongOrThrow("throttledRequests"));
+
+        limiter.reset("a");
+        assertEquals(0, limiter.getRequestsCount("a"));
+        assertTrue(limiter.tryAcquire("a", 10));
+    }
+
+    @Test
+    public void slidingWindow() throws Exception {
+        // 12 buckets of 50ms, time is driven by hand
+        AtomicLong millis = new AtomicLong(1000);
+        KeyRateLimiter<String> limiter = new KeyRateLimiter<>(Duration.ofMillis(600), millis::get);
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire("a", 10));
+        millis.addAndGet(300);
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire("a", 10));
+        // first requests are still in the window
+        assertFalse(limiter.tryAcquire("a", 10));
+        millis.addAndGet(299);
+        assertEquals(10, limiter.getRequestsCount("a"));
+        millis.addAndGet(1);
+        // first requests have left the window, the last ones have not
+        assertEquals(5, limiter.getRequestsCount("a"));
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire("a", 10));
+        assertFalse(limiter.tryAcquire("a", 10));
+        millis.addAndGet(600);
+        assertEquals(0, limiter.getRequestsCount("a"));
+    }
+
+    @Test
+    public void concurrentRequests() throws Exception {
+        // time stands still, so no bucket is reset while requests are counted
+        KeyRateLimiter<String> limiter = new KeyRateLimiter<>(Duration.ofMinutes(1), () -> 1000);
+        int limit = 1000;
+        AtomicInteger allowed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < limit; i++) {
+                        if (limiter.tryAcquire("a", limit))
+                            allowed.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertTrue(allowed.get() <= limit);
+        assertTrue(allowed.get() > limit / 2);
+        assertEquals(allowed.get(), limiter.getRequestsCount("a"));
+    }
+}
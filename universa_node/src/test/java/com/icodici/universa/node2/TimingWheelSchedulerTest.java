@@ -0,0 +1,63 @@
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.RunnableWithDynamicPeriod;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelSchedulerTest {
+
+    @Test
+    public void scheduleAndCancel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        TimingWheelScheduler scheduler = new TimingWheelScheduler("test-tasks", Duration.ofMillis(5), executor);
+
+        int count = 1000;
+        CountDownLatch latch = new CountDownLatch(count);
+        AtomicInteger cancelledRun = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            scheduler.schedule(latch::countDown, 50 + i % 100);
+            scheduler.schedule(cancelledRun::incrementAndGet, 50 + i % 100).cancel();
+        }
+        assertTrue(scheduler.getQueueDepth() > 0);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(0, cancelledRun.get());
+        assertEquals(0, scheduler.getQueueDepth());
+
+        scheduler.shutdown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void dynamicPeriod() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        TimingWheelScheduler scheduler = new TimingWheelScheduler("test-tasks", Duration.ofMillis(5), executor);
+
+        AtomicInteger ticks = new AtomicInteger();
+        RunnableWithDynamicPeriod r = new RunnableWithDynamicPeriod(ticks::incrementAndGet,
+                Arrays.asList(0, 50, 50, 100), scheduler);
+        r.run();
+        // ticks at 0, 50, 100, 200, 300...
+        Thread.sleep(330);
+        r.cancel(true);
+        int ticksWere = ticks.get();
+        assertTrue(ticksWere >= 4 && ticksWere <= 5);
+        Thread.sleep(200);
+        assertEquals(ticksWere, ticks.get());
+        assertEquals(0, scheduler.getQueueDepth());
+
+        scheduler.shutdown();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,37 @@
+package com.icodici.universa.node2;
+
+import com.icodici.universa.TestKeys;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VoteTallyTest {
+
+    @Test
+    public void countVotes() throws Exception {
+        NodeInfo n1 = new NodeInfo(TestKeys.publicKey(0), 1, "test1", "localhost", 17101, 17102, 17104);
+        NodeInfo n2 = new NodeInfo(TestKeys.publicKey(1), 2, "test2", "localhost", 17111, 17112, 17114);
+        NodeInfo n3 = new NodeInfo(TestKeys.publicKey(2), 3, "test3", "localhost", 17121, 17122, 17124);
+
+        VoteTally votes = new VoteTally();
+        assertTrue(votes.vote(n1, true));
+        assertFalse(votes.vote(n1, true));
+        assertTrue(votes.vote(n2, true));
+        assertTrue(votes.vote(n3, false));
+        assertEquals(2, votes.getPositiveCount());
+        assertEquals(1, votes.getNegativeCount());
+        assertEquals(3, votes.getVotesCount());
+
+        // node changes its vote
+        assertTrue(votes.vote(n2, false));
+        assertEquals(1, votes.getPositiveCount());
+        assertEquals(2, votes.getNegativeCount());
+        assertEquals(3, votes.getVotesCount());
+        assertTrue(votes.isNegative(n2));
+        assertFalse(votes.isPositive(n2));
+        assertTrue(votes.isPositive(n1));
+        assertTrue(votes.hasVoted(n3));
+    }
+}
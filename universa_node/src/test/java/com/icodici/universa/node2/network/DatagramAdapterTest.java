@@ -9,13 +9,19 @@ package com.icodici.universa.node2.network;
 
 import com.icodici.crypto.SymmetricKey;
 import com.icodici.universa.TestKeys;
+import com.icodici.universa.node2.ConnectivityInfo;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import net.sergeych.tools.AsyncEvent;
+import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -1590,4 +1596,297 @@ public class DatagramAdapterTest {
         assertEquals(node2senderCounter.get(), d1receiveCounter.get());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void channelEngineSendAndReceive() throws Exception {
+
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+        NodeInfo node3 = new NodeInfo(TestKeys.publicKey(2),12, "test_node_12", "localhost", 16205, 16206, 16303);
+
+        List<NodeInfo> nodes = new ArrayList<>();
+        nodes.add(node1);
+        nodes.add(node2);
+        nodes.add(node3);
+
+        NetConfig nc = new NetConfig(nodes);
+
+        // channel engine must talk with both engines
+        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc, UDPAdapter.Engines.CHANNEL);
+        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc, UDPAdapter.Engines.CHANNEL);
+        DatagramAdapter d3 = new UDPAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc, UDPAdapter.Engines.SOCKET);
+
+        final int count = 300;
+        List<byte[]> receivedFor1 = Collections.synchronizedList(new ArrayList<>());
+        List<byte[]> receivedFor2 = Collections.synchronizedList(new ArrayList<>());
+        List<byte[]> receivedFor3 = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(3 * count);
+
+        d1.receive(d -> { receivedFor1.add(d); latch.countDown(); });
+        d2.receive(d -> { receivedFor2.add(d); latch.countDown(); });
+        d3.receive(d -> { receivedFor3.add(d); latch.countDown(); });
+
+        for (int i = 0; i < count; i++) {
+            d1.send(node2, ("1_to_2_" + i).getBytes());
+            d2.send(node3, ("2_to_3_" + i).getBytes());
+            d3.send(node1, ("3_to_1_" + i).getBytes());
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(count, receivedFor1.size());
+        assertEquals(count, receivedFor2.size());
+        assertEquals(count, receivedFor3.size());
+
+        assertTrue(d1.pingNodeUDP(node3.getNumber(), 1000) >= 0);
+        assertTrue(d3.pingNodeUDP(node2.getNumber(), 1000) >= 0);
+
+        d1.shutdown();
+        d2.shutdown();
+        d3.shutdown();
+    }
+
+    @Test
+    public void channelWorkerQueueOverflow() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+        NetConfig nc = new NetConfig(asList(node1, node2));
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc, UDPAdapter.Engines.CHANNEL);
+
+        // each hello is answered with signed welcome, so flood of hellos from one node overflows its worker
+        try (DatagramSocket flooder = new DatagramSocket()) {
+            for (int i = 0; i < 4 * UDPAdapter.CHANNEL_WORKER_QUEUE_SIZE; i++) {
+                byte[] data = d1.createTestPacket(i + 1, 11, 10, UDPAdapter.PacketTypes.HELLO, Do.randomBytes(256)).makeByteArray(true);
+                flooder.send(new DatagramPacket(data, data.length, node1.getNodeAddress()));
+            }
+        }
+
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (d1.getReceiveStats().getLongOrThrow("queueDrops") == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+            Binder stats = d1.getReceiveStats();
+            assertTrue(stats.getLongOrThrow("queueDrops") > 0);
+            assertTrue(stats.getIntOrThrow("queued") <= UDPAdapter.CHANNEL_WORKER_QUEUE_SIZE);
+        } finally {
+            d1.shutdown();
+        }
+    }
+
+    @Test
+    public void packetHeaders() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NetConfig nc = new NetConfig(asList(node1));
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc);
+
+        byte[] payload = Do.randomBytes(100);
+        UDPAdapter.Packet packet = d1.createTestPacket(0x7FFFFFF0, 10, 1234567, UDPAdapter.PacketTypes.DATA, payload);
+
+        byte[] binary = packet.makeByteArray(true);
+        byte[] legacy = packet.makeByteArray(false);
+        assertEquals(payload.length + 16, binary.length);
+        assertArrayEquals(legacy, packet.makeByteArray());
+
+        // both headers are recognized by receiver
+        UDPAdapter.Packet fromBinary = d1.createTestPacket(0, 0, 0, 0, new byte[0]);
+        fromBinary.parseFromByteArray(binary);
+        assertArrayEquals(payload, fromBinary.getPayload());
+        assertArrayEquals(legacy, fromBinary.makeByteArray(false));
+
+        UDPAdapter.Packet fromLegacy = d1.createTestPacket(0, 0, 0, 0, new byte[0]);
+        fromLegacy.parseFromByteArray(legacy);
+        assertArrayEquals(payload, fromLegacy.getPayload());
+        assertArrayEquals(binary, fromLegacy.makeByteArray(true));
+
+        // payload of binary packet is sliced from the datagram
+        byte[] datagram = new byte[binary.length + 10];
+        System.arraycopy(binary, 0, datagram, 5, binary.length);
+        UDPAdapter.Packet sliced = d1.createTestPacket(0, 0, 0, 0, new byte[0]);
+        sliced.parseFromByteArray(datagram, 5, binary.length);
+        assertArrayEquals(binary, sliced.makeByteArray(true));
+        assertArrayEquals(payload, sliced.getPayload());
+
+        // header is read from direct buffer in place, only payload is copied out of it
+        ByteBuffer direct = ByteBuffer.allocateDirect(datagram.length);
+        direct.put(datagram).position(5).limit(5 + binary.length);
+        UDPAdapter.Packet fromDirect = d1.createTestPacket(0, 0, 0, 0, new byte[0]);
+        fromDirect.parseFrom(direct);
+        assertEquals(5, direct.position());
+        assertArrayEquals(binary, fromDirect.makeByteArray(true));
+        assertArrayEquals(payload, fromDirect.getPayload());
+
+        d1.shutdown();
+    }
+
+    @Test
+    public void oldAndNewProtocolVersions() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+        NodeInfo node3 = new NodeInfo(TestKeys.publicKey(2),12, "test_node_12", "localhost", 16205, 16206, 16303);
+        NetConfig nc = new NetConfig(asList(node1, node2, node3));
+
+        // d1 is node of first version, it can read only Boss-encoded headers
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc);
+        d1.setProtocolVersionForTest(UDPAdapter.PROTOCOL_VERSION_BOSS_HEADER);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc);
+        UDPAdapter d3 = new UDPAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc, UDPAdapter.Engines.CHANNEL);
+
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        for (UDPAdapter d : asList(d1, d2, d3))
+            d.addErrorsCallback(m -> { errors.add(m); return m; });
+
+        final int count = 100;
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(6 * count);
+        for (UDPAdapter d : asList(d1, d2, d3))
+            d.receive(data -> { if (received.add(new String(data))) latch.countDown(); });
+
+        try {
+            for (int i = 0; i < count; i++) {
+                d1.send(node2, ("1_to_2_" + i).getBytes());
+                d1.send(node3, ("1_to_3_" + i).getBytes());
+                d2.send(node1, ("2_to_1_" + i).getBytes());
+                d2.send(node3, ("2_to_3_" + i).getBytes());
+                d3.send(node1, ("3_to_1_" + i).getBytes());
+                d3.send(node2, ("3_to_2_" + i).getBytes());
+            }
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+
+            assertEquals(UDPAdapter.PROTOCOL_VERSION_BOSS_HEADER, d2.getRemoteProtocolVersion(node1));
+            assertEquals(UDPAdapter.PROTOCOL_VERSION_BOSS_HEADER, d3.getRemoteProtocolVersion(node1));
+            assertEquals(UDPAdapter.PROTOCOL_VERSION, d2.getRemoteProtocolVersion(node3));
+            assertEquals(UDPAdapter.PROTOCOL_VERSION, d3.getRemoteProtocolVersion(node2));
+            assertTrue(d1.pingNodeUDP(node2.getNumber(), 1000) >= 0);
+            assertTrue(d3.pingNodeUDP(node1.getNumber(), 1000) >= 0);
+            // nothing was sent to d1 with binary header
+            assertTrue(errors.stream().noneMatch(m -> m.contains("binary header")));
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+            d3.shutdown();
+        }
+    }
+
+    @Test
+    public void sendThroughRelay() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+        NodeInfo node3 = new NodeInfo(TestKeys.publicKey(2),12, "test_node_12", "localhost", 16205, 16206, 16303);
+
+        NetConfig nc = new NetConfig(asList(node1, node2, node3));
+
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc);
+        UDPAdapter d3 = new UDPAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc);
+
+        // node1 and node3 can't see each other, node2 sees both
+        Duration validity = Duration.ofMinutes(5);
+        Map<NodeInfo, ConnectivityInfo> connectivityMap = new ConcurrentHashMap<>();
+        connectivityMap.put(node2, new ConnectivityInfo(node2, validity, new HashSet<>()));
+        d1.setConnectivityMap(connectivityMap);
+        d2.setConnectivityMap(connectivityMap);
+        d3.setConnectivityMap(connectivityMap);
+        connectivityMap.put(node1, new ConnectivityInfo(node1, validity, new HashSet<>(asList(node3))));
+        connectivityMap.put(node3, new ConnectivityInfo(node3, validity, new HashSet<>(asList(node1))));
+        d1.updateRoutingTable();
+        d3.updateRoutingTable();
+
+        final int count = 50;
+        List<byte[]> receivedFor3 = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(count);
+        d3.receive(d -> { receivedFor3.add(d); latch.countDown(); });
+
+        AtomicLong relayed = new AtomicLong();
+        d2.receive(d -> relayed.incrementAndGet());
+
+        for (int i = 0; i < count; i++)
+            d1.send(node3, ("1_to_3_" + i).getBytes());
+
+        try {
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+            assertEquals(count, receivedFor3.size());
+            // relay only forwards packets, nothing is addressed to it
+            assertEquals(0, relayed.get());
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+            d3.shutdown();
+        }
+    }
+
+    @Test
+    public void payloadsToNodeKeepOrder() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+        NetConfig nc = new NetConfig(asList(node1, node2));
+
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc);
+
+        // first payloads wait for handshake, next ones for room in congestion window
+        final int count = 20 * DatagramAdapter.INITIAL_CONGESTION_WINDOW;
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(count);
+        d2.receive(d -> { received.add(Integer.valueOf(new String(d))); latch.countDown(); });
+
+        try {
+            for (int i = 0; i < count; i++)
+                d1.send(node2, String.valueOf(i).getBytes());
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+
+            Binder stats = d1.getSessionsStats().getBinderOrThrow("11");
+            // order can be broken only by lost packets, there should be none on local host
+            if (stats.getLongOrThrow("retransmits") == 0) {
+                for (int i = 0; i < count; i++)
+                    assertEquals(i, (int) received.get(i));
+            }
+            assertEquals(0, stats.getLongOrThrow("queueDrops"));
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+        }
+    }
+
+    @Test
+    public void sessionStatsWithLostPackets() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+
+        NetConfig nc = new NetConfig(asList(node1, node2));
+
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc);
+
+        final int count = 500;
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(count);
+        d2.receive(d -> { if (received.add(new String(d))) latch.countDown(); });
+
+        // establish session and measure rtt without losses
+        d1.send(node2, "first".getBytes());
+        for (int i = 0; i < 10; i++) {
+            d1.send(node2, ("no_loss_" + i).getBytes());
+        }
+        Thread.sleep(1000);
+
+        d1.setTestMode(DatagramAdapter.TestModes.LOST_PACKETS);
+        d1.setLostPacketsPercentInTestMode(20);
+        for (int i = 0; i < count; i++) {
+            d1.send(node2, ("1_to_2_" + i).getBytes());
+        }
+
+        try {
+            assertTrue(latch.await(60, TimeUnit.SECONDS));
+
+            Binder stats = d1.getSessionsStats().getBinderOrThrow("11");
+            assertTrue(stats.getLongOrThrow("retransmits") > 0);
+            assertTrue((double) stats.get("rtt") > 0);
+            assertTrue(stats.getIntOrThrow("retransmitTimeout") >= DatagramAdapter.MIN_RETRANSMIT_TIME);
+            assertTrue(stats.getIntOrThrow("retransmitTimeout") <= DatagramAdapter.MAX_RETRANSMIT_TIME);
+            assertTrue(stats.getIntOrThrow("congestionWindow") >= DatagramAdapter.MIN_CONGESTION_WINDOW);
+            assertEquals(0, stats.getLongOrThrow("queueDrops"));
+            assertEquals(0, stats.getLongOrThrow("retransmitDrops"));
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.TestKeys;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.TransactionPack;
+import com.icodici.universa.node2.ItemBodyNotification;
+import com.icodici.universa.node2.ItemNotification;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.Notification;
+import com.icodici.universa.node2.ParcelNotification;
+import net.sergeych.tools.Binder;
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkV2Test {
+
+    @Test
+    public void deliverBatched() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16401, 16402, 16501);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16403, 16404, 16502);
+
+        List<NodeInfo> nodes = new ArrayList<>();
+        nodes.add(node1);
+        nodes.add(node2);
+
+        NetworkV2 n1 = new NetworkV2(new NetConfig(nodes), node1, TestKeys.privateKey(0));
+        NetworkV2 n2 = new NetworkV2(new NetConfig(nodes), node2, TestKeys.privateKey(1));
+
+        int count = 200;
+        CountDownLatch latch = new CountDownLatch(count);
+        Set<HashId> received = ConcurrentHashMap.newKeySet();
+        n2.subscribe(node2, n -> {
+            if (n instanceof ItemNotification && received.add(((ItemNotification) n).getItemId()))
+                latch.countDown();
+        });
+
+        ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        Set<HashId> sent = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            HashId id = HashId.createRandom();
+            sent.add(id);
+            n1.deliver(node2, new ItemNotification(node1, id, new ItemResult(ItemState.PENDING, false, now, now.plusDays(30)), false));
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(sent, received);
+
+        Binder stats = n1.getBatchingStats();
+        assertEquals(count, stats.getLongOrThrow("notifications"));
+        assertTrue(stats.getLongOrThrow("frames") < count);
+        assertTrue((double) stats.get("sizeFillRatio") <= 1.0);
+
+        n1.shutdown();
+        n2.shutdown();
+    }
+
+    @Test
+    public void deliverUnbatched() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16411, 16412, 16511);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16413, 16414, 16512);
+
+        List<NodeInfo> nodes = new ArrayList<>();
+        nodes.add(node1);
+        nodes.add(node2);
+
+        NetworkV2 n1 = new NetworkV2(new NetConfig(nodes), node1, TestKeys.privateKey(0));
+        NetworkV2 n2 = new NetworkV2(new NetConfig(nodes), node2, TestKeys.privateKey(1));
+        n1.setBatchFlushDelayMicros(0);
+
+        int count = 20;
+        CountDownLatch latch = new CountDownLatch(count);
+        n2.subscribe(node2, n -> latch.countDown());
+
+        ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        for (int i = 0; i < count; i++) {
+            Notification n = new ItemNotification(node1, HashId.createRandom(), new ItemResult(ItemState.PENDING, false, now, now.plusDays(30)), false);
+            n1.deliver(node2, n);
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(count, n1.getBatchingStats().getLongOrThrow("frames"));
+
+        n1.shutdown();
+        n2.shutdown();
+    }
+
+    @Test
+    public void deliverItemBody() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16421, 16422, 16521);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16423, 16424, 16522);
+        NodeInfo node3 = new NodeInfo(TestKeys.publicKey(2),12, "test_node_12", "localhost", 16425, 16426, 16523);
+        List<NodeInfo> nodes = asList(node1, node2, node3);
+
+        NetworkV2 n1 = new NetworkV2(new NetConfig(nodes), node1, TestKeys.privateKey(0));
+        NetworkV2 n2 = new NetworkV2(new NetConfig(nodes), node2, TestKeys.privateKey(1));
+        // n3 is node of previous version, it can't read item bodies
+        NetworkV2 n3 = new NetworkV2(new NetConfig(nodes), node3, TestKeys.privateKey(2));
+        n3.getUDPAdapter().setProtocolVersionForTest(UDPAdapter.PROTOCOL_VERSION_BINARY_HEADER);
+
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        byte[] packed = contract.getPackedTransaction();
+        assertTrue(packed.length > NetworkV2.MAX_BATCH_PAYLOAD_SIZE);
+        assertTrue(packed.length <= n1.getMaxNotificationSize());
+
+        BlockingQueue<Notification> received2 = new LinkedBlockingQueue<>();
+        BlockingQueue<Notification> received3 = new LinkedBlockingQueue<>();
+        n2.subscribe(node2, received2::add);
+        n3.subscribe(node3, received3::add);
+
+        ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        ItemResult ir = new ItemResult(ItemState.PENDING, false, now, now.plusDays(30));
+        try {
+            // versions are learned with handshakes
+            n1.broadcast(node1, new ItemNotification(node1, HashId.createRandom(), ir, false));
+            assertNotNull(received2.poll(10, TimeUnit.SECONDS));
+            assertNotNull(received3.poll(10, TimeUnit.SECONDS));
+
+            n1.broadcast(node1, new ItemBodyNotification(node1, contract.getId(), ir, true,
+                    ParcelNotification.ParcelNotificationType.PAYLOAD, packed));
+
+            Notification n = received2.poll(10, TimeUnit.SECONDS);
+            assertTrue(n instanceof ItemBodyNotification);
+            Contract inlined = TransactionPack.unpack(((ItemBodyNotification) n).getPackedItem(), true).getContract();
+            assertEquals(contract.getId(), inlined.getId());
+            assertTrue(inlined.check());
+
+            n = received3.poll(10, TimeUnit.SECONDS);
+            assertEquals(ParcelNotification.class, n.getClass());
+            assertEquals(contract.getId(), ((ParcelNotification) n).getItemId());
+
+            assertTrue(n1.getBatchingStats().getLongOrThrow("fragmentsSent") > 1);
+            assertEquals(1L, n2.getBatchingStats().getLongOrThrow("framesReassembled"));
+            assertEquals(0, n2.getBatchingStats().getIntOrThrow("incompleteFrames"));
+        } finally {
+            n1.shutdown();
+            n2.shutdown();
+            n3.shutdown();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.TestKeys;
+import com.icodici.universa.node2.NodeInfo;
+import com.sun.net.httpserver.HttpServer;
+import net.sergeych.tools.Binder;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NodeHttpClientTest {
+
+    private static HttpServer startServer(int port, byte[] body, long delayMillis) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/contracts/", exchange -> {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ignored) {
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    @Test
+    public void raceTakesFastestSource() throws Exception {
+        NodeInfo me = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16801, 16802, 16803);
+        NodeInfo slow = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16811, 16812, 16813);
+        NodeInfo fast = new NodeInfo(TestKeys.publicKey(2), 12, "test_node_12", "localhost", 16821, 16822, 16823);
+        HttpServer slowServer = startServer(16812, new byte[]{1}, 3000);
+        HttpServer fastServer = startServer(16822, new byte[]{2}, 0);
+        NodeHttpClient client = new NodeHttpClient(me);
+        try {
+            for (int i = 0; i < 3; i++) {
+                long started = System.nanoTime();
+                byte[] result = client.race(Arrays.asList(slow, fast), Duration.ofSeconds(10), ni -> {
+                    try {
+                        return client.get(ni, "/contracts/test", Duration.ofSeconds(10));
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }, data -> true);
+                assertArrayEquals(new byte[]{2}, result);
+                assertTrue(System.nanoTime() - started < 2_000_000_000L);
+            }
+
+            Binder stats = client.getStats().getBinderOrThrow("12");
+            assertEquals(3, stats.getLongOrThrow("requests"));
+            assertEquals(3, stats.getLongOrThrow("wins"));
+            assertEquals(0, stats.getLongOrThrow("failures"));
+            // losing fetches are not left to complete: their connections are closed at once
+            Thread.sleep(500);
+            assertEquals(3, client.getStats().getBinderOrThrow("11").getLongOrThrow("failures"));
+
+            // unreachable source is a failure, not an exception
+            NodeInfo dead = new NodeInfo(TestKeys.publicKey(3), 13, "test_node_13", "localhost", 16831, 16832, 16833);
+            assertNull(client.race(Arrays.asList(dead), Duration.ofSeconds(2), ni -> {
+                try {
+                    return client.get(ni, "/contracts/test", Duration.ofSeconds(2));
+                } catch (IOException e) {
+                    return null;
+                }
+            }, data -> true));
+            assertEquals(1, client.getStats().getBinderOrThrow("13").getLongOrThrow("failures"));
+        } finally {
+            client.shutdown();
+            slowServer.stop(0);
+            fastServer.stop(0);
+        }
+    }
+
+    @Test
+    public void raceChecksAnswer() throws Exception {
+        NodeInfo me = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16841, 16842, 16843);
+        NodeInfo wrong = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16851, 16852, 16853);
+        NodeInfo right = new NodeInfo(TestKeys.publicKey(2), 12, "test_node_12", "localhost", 16861, 16862, 16863);
+        // the fastest source answers with something else than requested
+        HttpServer wrongServer = startServer(16852, new byte[]{1}, 0);
+        HttpServer rightServer = startServer(16862, new byte[]{2}, 300);
+        NodeHttpClient client = new NodeHttpClient(me);
+        try {
+            byte[] result = client.race(Arrays.asList(wrong, right), Duration.ofSeconds(10), ni -> {
+                try {
+                    return client.get(ni, "/contracts/test", Duration.ofSeconds(10));
+                } catch (IOException e) {
+                    return null;
+                }
+            }, data -> data[0] == 2);
+            assertArrayEquals(new byte[]{2}, result);
+            assertEquals(1, client.getStats().getBinderOrThrow("11").getLongOrThrow("mismatches"));
+            assertEquals(1, client.getStats().getBinderOrThrow("12").getLongOrThrow("wins"));
+
+            // the only source is checked too
+            assertNull(client.race(Arrays.asList(wrong), Duration.ofSeconds(10), ni -> {
+                try {
+                    return client.get(ni, "/contracts/test", Duration.ofSeconds(10));
+                } catch (IOException e) {
+                    return null;
+                }
+            }, data -> data[0] == 2));
+            assertEquals(2, client.getStats().getBinderOrThrow("11").getLongOrThrow("mismatches"));
+        } finally {
+            client.shutdown();
+            wrongServer.stop(0);
+            rightServer.stop(0);
+        }
+    }
+}
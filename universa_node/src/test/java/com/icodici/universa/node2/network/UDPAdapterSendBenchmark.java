@@ -0,0 +1,116 @@
+package com.icodici.universa.node2.network;
+
+import com.icodici.crypto.SymmetricKey;
+import com.icodici.universa.TestKeys;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.tools.Do;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of {@link UDPAdapter#send(NodeInfo, byte[])} from one node to several peers, depending on
+ * count of sender threads. Each sender thread sends to its own peer, so with independent sessions throughput
+ * should grow with threads count up to count of cores.
+ */
+public class UDPAdapterSendBenchmark {
+
+    private static final int peersCount = 8;
+    private static final int warmupRepetition = 2000;
+    private static final int repetitions = 20000;
+    private static final int payloadSize = 200;
+
+    private final NodeInfo senderInfo;
+    private final List<NodeInfo> peerInfos = new ArrayList<>();
+    private final UDPAdapter sender;
+    private final List<UDPAdapter> peers = new ArrayList<>();
+
+    private UDPAdapterSendBenchmark() throws Exception {
+        List<NodeInfo> nodes = new ArrayList<>();
+        senderInfo = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16601, 16602, 16701);
+        nodes.add(senderInfo);
+        for (int i = 0; i < peersCount; i++) {
+            NodeInfo ni = new NodeInfo(TestKeys.publicKey(i + 1), 11 + i, "test_node_" + (11 + i), "localhost",
+                    16603 + i * 2, 16604 + i * 2, 16702 + i);
+            nodes.add(ni);
+            peerInfos.add(ni);
+        }
+        NetConfig nc = new NetConfig(nodes);
+
+        sender = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), senderInfo, nc);
+        for (int i = 0; i < peersCount; i++)
+            peers.add(new UDPAdapter(TestKeys.privateKey(i + 1), new SymmetricKey(), peerInfos.get(i), nc));
+
+        System.out.printf("Establishing sessions... ");
+        CountDownLatch handshakes = new CountDownLatch(peersCount);
+        for (UDPAdapter peer : peers)
+            peer.receive(data -> handshakes.countDown());
+        for (NodeInfo ni : peerInfos)
+            sender.send(ni, new byte[]{1});
+        if (!handshakes.await(30, TimeUnit.SECONDS))
+            throw new IllegalStateException("sessions are not established");
+        for (UDPAdapter peer : peers)
+            peer.receive(data -> {});
+        System.out.printf(" done!\n");
+    }
+
+    /**
+     * @return sends per second for given count of sender threads
+     */
+    private double measure(int threadsCount, int sendsPerThread) throws Exception {
+        byte[] payload = Do.randomBytes(payloadSize);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadsCount; t++) {
+            NodeInfo destination = peerInfos.get(t % peersCount);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < sendsPerThread; i++)
+                        sender.send(destination, payload);
+                } catch (InterruptedException ignored) {
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        long spent = System.nanoTime() - startTime;
+
+        // let acks drain retransmit queues before next round
+        Thread.sleep(1000);
+        return (double) threadsCount * sendsPerThread * 1e9 / spent;
+    }
+
+    void run() throws Exception {
+        measure(1, warmupRepetition);
+        double single = 0;
+        for (int threadsCount = 1; threadsCount <= peersCount; threadsCount *= 2) {
+            double rate = measure(threadsCount, repetitions / threadsCount);
+            if (threadsCount == 1)
+                single = rate;
+            System.out.printf("%s sender threads: %.0f sends/s (x%.2f)\n", threadsCount, rate, rate / single);
+        }
+    }
+
+    void shutdown() {
+        sender.shutdown();
+        peers.forEach(UDPAdapter::shutdown);
+    }
+
+    public static void main(String[] args) throws Exception {
+        UDPAdapterSendBenchmark benchmark = new UDPAdapterSendBenchmark();
+        try {
+            benchmark.run();
+        } finally {
+            benchmark.shutdown();
+        }
+    }
+}